@@ -0,0 +1,28 @@
+package controllers;
+
+import models.Item;
+import play.db.jpa.JPA;
+import play.db.jpa.ReadOnlyTransaction;
+import play.mvc.Controller;
+
+/**
+ * The actions simulated by the load test.  They run in the transaction started by the MJPA plugin
+ * for the request's host.
+ */
+public class Bench extends Controller
+{
+	@ReadOnlyTransaction
+	public static void read()
+	{
+		renderText(JPA.em().createQuery("select count(i) from Item i").getSingleResult());
+	}
+
+	public static void write()
+	{
+		Item item = new Item();
+		item.name = "item";
+		item.quantity = 1;
+		JPA.em().persist(item);
+		renderText(item.id);
+	}
+}
@@ -0,0 +1,16 @@
+package models;
+
+import javax.persistence.Entity;
+
+import play.db.jpa.Model;
+
+/**
+ * The entity read and written by the benchmarks.
+ */
+@Entity
+public class Item extends Model
+{
+	public String name;
+
+	public int quantity;
+}
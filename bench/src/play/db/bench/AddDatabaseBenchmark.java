@@ -0,0 +1,56 @@
+package play.db.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cost of adding a database while running, with 1, 100 or 1,000 databases already added.
+ * Each operation adds a new in-memory database: its pool, its schema and its entity manager
+ * factory.
+ *
+ * @author dcardon
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, batchSize = 1)
+@Measurement(iterations = 20, batchSize = 1)
+@Fork(1)
+public class AddDatabaseBenchmark
+{
+	@Param({ "1", "100", "1000" })
+	public int tenants;
+
+	private int added;
+
+	@Setup
+	public void start()
+	{
+		BenchApp.start(tenants);
+		added = tenants;
+	}
+
+	@TearDown
+	public void stop()
+	{
+		BenchApp.stop();
+	}
+
+	@Benchmark
+	public void addDatabase()
+	{
+		BenchApp.addTenant(BenchApp.host(added++));
+	}
+}
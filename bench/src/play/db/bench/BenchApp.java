@@ -0,0 +1,107 @@
+package play.db.bench;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import play.Play;
+import play.db.MDB;
+import play.db.MDBPlugin;
+import play.db.jpa.JPA;
+import play.mvc.Http.Request;
+
+/**
+ * Starts the benchmark application, found in bench/app, and its tenants: in-memory HSQLDB
+ * databases keyed by the hosts t0.bench.local, t1.bench.local, etc.  They are added with
+ * MDBPlugin.addDatabase, as an application would add them while running.
+ *
+ * @author dcardon
+ */
+public class BenchApp
+{
+	/**
+	 * The directory of the benchmark application.
+	 */
+	public static final String APP_PATH = System.getProperty("bench.app", "bench/app");
+
+	/**
+	 * Starts the application if needed, and adds the tenants it does not have yet.
+	 * @param tenants The number of tenants.
+	 */
+	public static synchronized void start(int tenants)
+	{
+		if (!Play.started)
+		{
+			Play.init(new File(APP_PATH).getAbsoluteFile(), "bench");
+			Play.start();
+		}
+		for (int i = 0; i < tenants; i++)
+		{
+			addTenant(host(i));
+		}
+
+		//
+		//	addDatabase leaves the last factory in JPA.entityManagerFactory; clear it, as
+		//	MJPAPlugin.beforeInvocation does, so that MDB hands out plain connections.
+		//
+		JPA.entityManagerFactory = null;
+	}
+
+	/**
+	 * Adds a tenant database.
+	 * @param host The tenant's host, which is its database key.
+	 */
+	public static void addTenant(String host)
+	{
+		if (MDB.getDataSource(host) != null)
+		{
+			return;
+		}
+		String group = host.replace('.', '_');
+		Map<String, String> parms = new HashMap<String, String>();
+		parms.put(MDBPlugin.MDB_KEY_PREFIX + group, host);
+		parms.put(MDBPlugin.MDB_URL_PREFIX + group, "jdbc:hsqldb:mem:" + group);
+		MDBPlugin.addDatabase(parms);
+		if (MDB.getDataSource(host) == null)
+		{
+			throw new IllegalStateException("Unable to add tenant " + host);
+		}
+	}
+
+	/**
+	 * @param i
+	 * @return The host of the i-th tenant.
+	 */
+	public static String host(int i)
+	{
+		return "t" + i + ".bench.local";
+	}
+
+	/**
+	 * Builds a request to a tenant, as the HTTP server would.
+	 * @param host
+	 * @param action The action, e.g. Bench.read, or null to let the request be routed.
+	 * @return
+	 */
+	public static Request request(String host, String action)
+	{
+		Request request = new Request();
+		request.host = host;
+		request.domain = host;
+		request.method = "GET";
+		request.path = "/" + (action == null ? "" : action.substring(action.indexOf('.') + 1));
+		request.action = action;
+		return request;
+	}
+
+	/**
+	 * Stops the application.
+	 */
+	public static synchronized void stop()
+	{
+		if (Play.started)
+		{
+			Play.stop();
+		}
+	}
+}
@@ -0,0 +1,435 @@
+package play.db.bench;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import play.Invoker.Invocation;
+import play.Play;
+import play.classloading.enhancers.ControllersEnhancer.ControllerInstrumentation;
+import play.db.MDB;
+import play.db.MDBDataSource;
+import play.mvc.Http.Request;
+import play.mvc.results.Result;
+
+import com.mchange.v2.c3p0.ComboPooledDataSource;
+
+/**
+ * Drives simulated requests at the benchmark application, reproducing a production traffic
+ * pattern: tenants picked from a Zipf distribution, so that a few hosts get most requests, a mix of
+ * read-only and read-write actions, and a few slow tenants whose transactions hold their
+ * connection for a while.  Each request goes through the plugins as a Play invocation would.
+ * <p>
+ * The report gives the throughput and latency percentiles, and for the busiest and the slow
+ * tenants their latency and the saturation of their pool, sampled every 100 ms.  Settings are
+ * system properties:
+ * <pre>
+ * load.tenants=200     tenants
+ * load.threads=32      concurrent clients
+ * load.duration=30     seconds measured, after load.warmup=5 seconds of warm-up
+ * load.zipf=1.0        exponent of the Zipf distribution, 0 for uniform traffic
+ * load.writes=0.2      share of read-write requests
+ * load.slow=3          slow tenants, spread among the busiest ones
+ * load.slowDelay=50    milliseconds the slow tenants' transactions last
+ * load.report=20       busiest tenants reported
+ * </pre>
+ *
+ * @author dcardon
+ */
+public class LoadTest
+{
+	private static final long SAMPLE_MILLIS = 100;
+
+	final int tenants = Integer.getInteger("load.tenants", 200);
+	final int threads = Integer.getInteger("load.threads", 32);
+	final long warmupMillis = Integer.getInteger("load.warmup", 5) * 1000L;
+	final long durationMillis = Integer.getInteger("load.duration", 30) * 1000L;
+	final double exponent = Double.parseDouble(System.getProperty("load.zipf", "1.0"));
+	final double writes = Double.parseDouble(System.getProperty("load.writes", "0.2"));
+	final int slowCount = Integer.getInteger("load.slow", 3);
+	final long slowDelay = Integer.getInteger("load.slowDelay", 50);
+	final int reported = Integer.getInteger("load.report", 20);
+
+	final Zipf zipf;
+	final TenantStats[] stats;
+	final boolean[] slow;
+	Method read;
+	Method write;
+	volatile boolean measuring;
+	volatile boolean running = true;
+
+	LoadTest()
+	{
+		zipf = new Zipf(tenants, exponent);
+		stats = new TenantStats[tenants];
+		slow = new boolean[tenants];
+		for (int i = 0; i < tenants; i++)
+		{
+			stats[i] = new TenantStats(BenchApp.host(i));
+		}
+
+		//
+		//	Tenant 0 is the busiest.  Slow tenants are spread over the busiest tenth.
+		//
+		int step = Math.max(1, tenants / 10 / Math.max(1, slowCount));
+		for (int i = 0; i < slowCount && 1 + i * step < tenants; i++)
+		{
+			slow[1 + i * step] = true;
+		}
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		LoadTest test = new LoadTest();
+		try
+		{
+			test.run();
+		}
+		finally
+		{
+			BenchApp.stop();
+		}
+		System.exit(0);
+	}
+
+	void run() throws Exception
+	{
+		System.out.println("Starting the application with " + tenants + " tenants...");
+		BenchApp.start(tenants);
+		Class<?> controller = Play.classloader.loadClass("controllers.Bench");
+		read = controller.getMethod("read");
+		write = controller.getMethod("write");
+
+		List<Worker> workers = new ArrayList<Worker>();
+		CountDownLatch done = new CountDownLatch(threads);
+		for (int i = 0; i < threads; i++)
+		{
+			Worker worker = new Worker(i, done);
+			workers.add(worker);
+			worker.start();
+		}
+		Thread sampler = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				while (running)
+				{
+					sample();
+					try
+					{
+						Thread.sleep(SAMPLE_MILLIS);
+					}
+					catch (InterruptedException e)
+					{
+						return;
+					}
+				}
+			}
+		}, "load-sampler");
+		sampler.setDaemon(true);
+
+		System.out.println("Warming up for " + warmupMillis / 1000 + " s...");
+		Thread.sleep(warmupMillis);
+		measuring = true;
+		sampler.start();
+		System.out.println("Measuring for " + durationMillis / 1000 + " s...");
+		long start = System.nanoTime();
+		Thread.sleep(durationMillis);
+		measuring = false;
+		long elapsed = System.nanoTime() - start;
+		running = false;
+		done.await(30, TimeUnit.SECONDS);
+		report(workers, elapsed);
+	}
+
+	/**
+	 * Records the busy connections and waiting threads of each tenant's pool.
+	 */
+	void sample()
+	{
+		if (!measuring)
+		{
+			return;
+		}
+		for (TenantStats tenant : stats)
+		{
+			MDBDataSource ds = MDB.getDataSource(tenant.host);
+			if (ds == null)
+			{
+				continue;
+			}
+			ComboPooledDataSource pool = ds.getDelegate();
+			try
+			{
+				tenant.sample(pool.getNumBusyConnectionsDefaultUser(), pool.getMaxPoolSize(),
+						pool.getNumThreadsAwaitingCheckoutDefaultUser());
+			}
+			catch (Exception e)
+			{
+				//
+				//	The pool is being replaced; skip this sample.
+				//
+			}
+		}
+	}
+
+	/**
+	 * A simulated client, sending one request after the other.
+	 */
+	class Worker extends Thread
+	{
+		final Random random;
+		final CountDownLatch done;
+		long[] latencies = new long[1 << 16];
+		int count;
+		int errors;
+
+		Worker(int id, CountDownLatch done)
+		{
+			super("load-" + id);
+			this.random = new Random(id);
+			this.done = done;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				while (running)
+				{
+					request();
+				}
+			}
+			finally
+			{
+				done.countDown();
+			}
+		}
+
+		void request()
+		{
+			final int tenant = zipf.sample(random);
+			final boolean isWrite = random.nextDouble() < writes;
+			Request.current.set(BenchApp.request(BenchApp.host(tenant), isWrite ? "Bench.write" : "Bench.read"));
+			long start = System.nanoTime();
+			boolean failed = false;
+			try
+			{
+				new Invocation()
+				{
+					@Override
+					public void execute() throws Exception
+					{
+						if (slow[tenant])
+						{
+							Thread.sleep(slowDelay);
+						}
+						invoke(isWrite ? write : read);
+					}
+				}.run();
+			}
+			catch (Throwable e)
+			{
+				failed = true;
+			}
+			finally
+			{
+				Request.current.remove();
+			}
+			long nanos = System.nanoTime() - start;
+			if (measuring)
+			{
+				record(tenant, nanos, failed);
+			}
+		}
+
+		void record(int tenant, long nanos, boolean failed)
+		{
+			if (count == latencies.length)
+			{
+				latencies = Arrays.copyOf(latencies, count * 2);
+			}
+			latencies[count++] = nanos;
+			if (failed)
+			{
+				errors++;
+			}
+			stats[tenant].record(nanos, failed);
+		}
+	}
+
+	/**
+	 * Calls an action as the action invoker would; the result it throws is the normal outcome.
+	 */
+	static void invoke(Method action) throws Exception
+	{
+		ControllerInstrumentation.initActionCall();
+		try
+		{
+			action.invoke(null);
+		}
+		catch (InvocationTargetException e)
+		{
+			if (!(e.getTargetException() instanceof Result))
+			{
+				throw e;
+			}
+		}
+	}
+
+	void report(List<Worker> workers, long elapsed)
+	{
+		int total = 0;
+		int errors = 0;
+		for (Worker worker : workers)
+		{
+			total += worker.count;
+			errors += worker.errors;
+		}
+		long[] all = new long[total];
+		int n = 0;
+		for (Worker worker : workers)
+		{
+			System.arraycopy(worker.latencies, 0, all, n, worker.count);
+			n += worker.count;
+		}
+		Arrays.sort(all);
+
+		System.out.println();
+		System.out.println(String.format("Tenants: %d, threads: %d, zipf: %.2f, writes: %.0f%%, slow tenants: %d (%d ms)",
+				tenants, threads, exponent, writes * 100, slowCount, slowDelay));
+		System.out.println(String.format("Requests: %d in %.1f s, %.0f req/s, %d errors", total, elapsed / 1e9,
+				total * 1e9 / elapsed, errors));
+		System.out.println(String.format("Latency (ms): p50 %.2f, p99 %.2f, p999 %.2f, max %.2f", percentile(all, 0.5),
+				percentile(all, 0.99), percentile(all, 0.999), total == 0 ? 0 : all[total - 1] / 1e6));
+		System.out.println();
+
+		List<TenantStats> busiest = new ArrayList<TenantStats>(Arrays.asList(stats));
+		Collections.sort(busiest, new Comparator<TenantStats>()
+		{
+			@Override
+			public int compare(TenantStats a, TenantStats b)
+			{
+				return (a.count == b.count ? 0 : (a.count > b.count ? -1 : 1));
+			}
+		});
+		List<TenantStats> shown = new ArrayList<TenantStats>(busiest.subList(0, Math.min(reported, tenants)));
+		for (int i = 0; i < tenants; i++)
+		{
+			if (slow[i] && !shown.contains(stats[i]))
+			{
+				shown.add(stats[i]);
+			}
+		}
+		System.out.println(String.format("%-20s %9s %6s %9s %9s %9s %10s %10s %8s", "Tenant", "Requests", "Errors",
+				"p50 (ms)", "p99 (ms)", "p999 (ms)", "Busy avg", "Busy max", "Waiting"));
+		for (TenantStats tenant : shown)
+		{
+			int i = Arrays.asList(stats).indexOf(tenant);
+			System.out.println(tenant.format(slow[i]));
+		}
+	}
+
+	static double percentile(long[] sorted, double p)
+	{
+		if (sorted.length == 0)
+		{
+			return 0;
+		}
+		int i = (int) Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, i))] / 1e6;
+	}
+
+	/**
+	 * The requests and pool samples of one tenant.
+	 */
+	static class TenantStats
+	{
+		final String host;
+		int count;
+		int errors;
+		long[] latencies = new long[256];
+		int samples;
+		long busySum;
+		int busyMax;
+		int poolSize;
+		int waitingMax;
+
+		TenantStats(String host)
+		{
+			this.host = host;
+		}
+
+		synchronized void record(long nanos, boolean failed)
+		{
+			if (count == latencies.length)
+			{
+				latencies = Arrays.copyOf(latencies, count * 2);
+			}
+			latencies[count++] = nanos;
+			if (failed)
+			{
+				errors++;
+			}
+		}
+
+		synchronized void sample(int busy, int size, int waiting)
+		{
+			samples++;
+			busySum += busy;
+			busyMax = Math.max(busyMax, busy);
+			poolSize = size;
+			waitingMax = Math.max(waitingMax, waiting);
+		}
+
+		synchronized String format(boolean slow)
+		{
+			long[] sorted = Arrays.copyOf(latencies, count);
+			Arrays.sort(sorted);
+			double busyAvg = (samples == 0 ? 0 : (double) busySum / samples);
+			return String.format("%-20s %9d %6d %9.2f %9.2f %9.2f %5.1f/%-4d %5d/%-4d %8d", host + (slow ? " *" : ""),
+					count, errors, percentile(sorted, 0.5), percentile(sorted, 0.99), percentile(sorted, 0.999),
+					busyAvg, poolSize, busyMax, poolSize, waitingMax);
+		}
+	}
+
+	/**
+	 * Samples tenant ranks from a Zipf distribution: rank k is picked with a probability
+	 * proportional to 1 / (k + 1)^exponent.
+	 */
+	static class Zipf
+	{
+		final double[] cumulative;
+
+		Zipf(int n, double exponent)
+		{
+			cumulative = new double[n];
+			double sum = 0;
+			for (int k = 0; k < n; k++)
+			{
+				sum += 1 / Math.pow(k + 1, exponent);
+				cumulative[k] = sum;
+			}
+			for (int k = 0; k < n; k++)
+			{
+				cumulative[k] /= sum;
+			}
+		}
+
+		int sample(Random random)
+		{
+			int i = Arrays.binarySearch(cumulative, random.nextDouble());
+			return Math.min(cumulative.length - 1, i >= 0 ? i : -i - 1);
+		}
+	}
+}
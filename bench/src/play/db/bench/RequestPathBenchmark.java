@@ -0,0 +1,157 @@
+package play.db.bench;
+
+import java.sql.Connection;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import play.Play;
+import play.db.MDB;
+import play.db.MDBPlugin;
+import play.db.jpa.MJPAPlugin;
+import play.mvc.Http.Request;
+
+/**
+ * The per-request cost of the plugins as the number of tenants grows.  Each thread goes through
+ * the tenants in turn, so that every tenant's pool and factory is used.  Run with -prof gc to see
+ * the bytes allocated per operation next to the throughput.
+ *
+ * @author dcardon
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestPathBenchmark
+{
+	@Param({ "1", "100", "1000" })
+	public int tenants;
+
+	private MJPAPlugin mjpa;
+	private MDBPlugin mdb;
+
+	@Setup
+	public void start()
+	{
+		BenchApp.start(tenants);
+		mjpa = Play.plugin(MJPAPlugin.class);
+		mdb = Play.plugin(MDBPlugin.class);
+	}
+
+	@TearDown
+	public void stop()
+	{
+		BenchApp.stop();
+	}
+
+	/**
+	 * The requests of one thread, one per tenant, and the next one to use.
+	 */
+	@State(Scope.Thread)
+	public static class Requests
+	{
+		Request[] requests;
+		String[] keys;
+		int next;
+
+		@Setup(Level.Trial)
+		public void build(RequestPathBenchmark benchmark)
+		{
+			requests = new Request[benchmark.tenants];
+			keys = new String[benchmark.tenants];
+			for (int i = 0; i < requests.length; i++)
+			{
+				keys[i] = BenchApp.host(i);
+				requests[i] = BenchApp.request(keys[i], "Bench.write");
+			}
+		}
+
+		Request nextRequest()
+		{
+			next = (next + 1 == requests.length ? 0 : next + 1);
+			return requests[next];
+		}
+
+		String nextKey()
+		{
+			next = (next + 1 == keys.length ? 0 : next + 1);
+			return keys[next];
+		}
+	}
+
+	/**
+	 * Finding the database key of a request.
+	 */
+	@Benchmark
+	public String extractKey(Requests requests)
+	{
+		return MJPAPlugin.keyExtractor.extractKey(requests.nextRequest());
+	}
+
+	/**
+	 * Beginning and committing an empty transaction.
+	 */
+	@Benchmark
+	public void beginCommit(Requests requests)
+	{
+		MJPAPlugin.startTx(requests.nextKey(), false);
+		MJPAPlugin.closeTx(false);
+	}
+
+	/**
+	 * Beginning and rolling back an empty read-only transaction.
+	 */
+	@Benchmark
+	public void beginCommitReadOnly(Requests requests)
+	{
+		MJPAPlugin.startTx(requests.nextKey(), true);
+		MJPAPlugin.closeTx(false);
+	}
+
+	/**
+	 * The plugins' whole share of a request without database work: key extraction, transaction
+	 * begin and commit, and the end of the invocation.
+	 */
+	@Benchmark
+	public void requestPath(Requests requests)
+	{
+		Request.current.set(requests.nextRequest());
+		try
+		{
+			mjpa.beforeInvocation();
+			mjpa.afterInvocation();
+		}
+		finally
+		{
+			mjpa.invocationFinally();
+			mdb.invocationFinally();
+			Request.current.remove();
+		}
+	}
+
+	/**
+	 * Checking a connection out of a tenant's pool with MDB, and returning it.
+	 */
+	@Benchmark
+	public void connectionCheckout(Requests requests, Blackhole blackhole)
+	{
+		Connection connection = MDB.getConnection(requests.nextKey());
+		blackhole.consume(connection);
+		MDB.close();
+	}
+}
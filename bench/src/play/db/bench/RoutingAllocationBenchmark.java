@@ -0,0 +1,316 @@
+package play.db.bench;
+
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.FlushModeType;
+import javax.persistence.LockModeType;
+import javax.persistence.Query;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import play.Play;
+import play.db.jpa.MJPAPlugin;
+import play.mvc.Http.Request;
+
+/**
+ * The bytes allocated by the plugin's routing path, apart from the entity manager: key extraction,
+ * action policy, transaction begin and commit, and the end of the invocation.  The tenants'
+ * factories all hand out the same stub entity manager, so that the entity manager and Hibernate
+ * allocate nothing, and the application need not be started.  Run with -prof gc and read
+ * gc.alloc.rate.norm.
+ *
+ * @author dcardon
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoutingAllocationBenchmark
+{
+	@Param({ "1", "1000" })
+	public int tenants;
+
+	private MJPAPlugin mjpa;
+	private Request[] requests;
+	private int next;
+
+	@Setup
+	public void start()
+	{
+		if (Play.configuration == null)
+		{
+			Play.configuration = new Properties();
+		}
+		mjpa = new MJPAPlugin();
+		StubFactory factory = new StubFactory();
+		requests = new Request[tenants];
+		for (int i = 0; i < tenants; i++)
+		{
+			String host = BenchApp.host(i);
+			MJPAPlugin.factoryMap.put(host, factory);
+			requests[i] = BenchApp.request(host, "Bench.write");
+		}
+	}
+
+	@TearDown
+	public void stop()
+	{
+		MJPAPlugin.factoryMap.clear();
+	}
+
+	private Request nextRequest()
+	{
+		next = (next + 1 == requests.length ? 0 : next + 1);
+		return requests[next];
+	}
+
+	/**
+	 * A routed request through the plugin: the transaction begins, commits and the invocation ends.
+	 */
+	@Benchmark
+	public void requestPath()
+	{
+		Request.current.set(nextRequest());
+		try
+		{
+			mjpa.beforeInvocation();
+			mjpa.beforeActionInvocation(null);
+			mjpa.afterInvocation();
+		}
+		finally
+		{
+			mjpa.invocationFinally();
+			Request.current.remove();
+		}
+	}
+
+	/**
+	 * Beginning and committing a transaction, as a job does.
+	 */
+	@Benchmark
+	public void beginCommit()
+	{
+		MJPAPlugin.startTx(nextRequest().domain, false);
+		MJPAPlugin.closeTx(false);
+	}
+
+	/**
+	 * A factory handing out a single entity manager, whose transaction does nothing.
+	 */
+	static class StubFactory implements EntityManagerFactory
+	{
+		private final StubManager manager = new StubManager();
+
+		@Override
+		public EntityManager createEntityManager()
+		{
+			return manager;
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public EntityManager createEntityManager(Map map)
+		{
+			return manager;
+		}
+
+		@Override
+		public void close()
+		{
+		}
+
+		@Override
+		public boolean isOpen()
+		{
+			return true;
+		}
+	}
+
+	static class StubManager implements EntityManager, EntityTransaction
+	{
+		private boolean active;
+		private FlushModeType flushMode = FlushModeType.AUTO;
+
+		@Override
+		public EntityTransaction getTransaction()
+		{
+			return this;
+		}
+
+		@Override
+		public void begin()
+		{
+			active = true;
+		}
+
+		@Override
+		public void commit()
+		{
+			active = false;
+		}
+
+		@Override
+		public void rollback()
+		{
+			active = false;
+		}
+
+		@Override
+		public void setRollbackOnly()
+		{
+		}
+
+		@Override
+		public boolean getRollbackOnly()
+		{
+			return false;
+		}
+
+		@Override
+		public boolean isActive()
+		{
+			return active;
+		}
+
+		@Override
+		public void setFlushMode(FlushModeType flushMode)
+		{
+			this.flushMode = flushMode;
+		}
+
+		@Override
+		public FlushModeType getFlushMode()
+		{
+			return flushMode;
+		}
+
+		@Override
+		public void flush()
+		{
+		}
+
+		@Override
+		public void clear()
+		{
+		}
+
+		@Override
+		public void close()
+		{
+		}
+
+		@Override
+		public boolean isOpen()
+		{
+			return true;
+		}
+
+		@Override
+		public Object getDelegate()
+		{
+			return this;
+		}
+
+		@Override
+		public void joinTransaction()
+		{
+		}
+
+		@Override
+		public void persist(Object entity)
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public <T> T merge(T entity)
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void remove(Object entity)
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public <T> T find(Class<T> entityClass, Object primaryKey)
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public <T> T getReference(Class<T> entityClass, Object primaryKey)
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void lock(Object entity, LockModeType lockMode)
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void refresh(Object entity)
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public boolean contains(Object entity)
+		{
+			return false;
+		}
+
+		@Override
+		public Query createQuery(String qlString)
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public Query createNamedQuery(String name)
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public Query createNativeQuery(String sqlString)
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public Query createNativeQuery(String sqlString, Class resultClass)
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public Query createNativeQuery(String sqlString, String resultSetMapping)
+		{
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -0,0 +1,372 @@
+package play.db;
+
+import java.lang.ref.WeakReference;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import play.Logger;
+
+import com.mchange.v2.c3p0.ComboPooledDataSource;
+
+/**
+ * Keeps the connection a thread returns parked on the thread for a short while, so that the next
+ * checkout of the same database on the same thread takes it back without going through the pool:
+ * no pool lock and no validation query.  Worker threads often serve the same tenant several times
+ * in a row under steady load.
+ * <p>
+ * Each thread parks at most one connection.  Parked connections are returned to their pool once
+ * their time-to-live has passed, when their pool has threads waiting, or when the database's
+ * connections are all checked out and another thread needs one.  A parked connection is taken
+ * back, by its thread or by the reclaimer, with a compare-and-set on its thread's slot.
+ *
+ * @author dcardon
+ */
+public class ConnectionAffinity
+{
+	public static final String AFFINITY_CONF_PREFIX = MDBPlugin.MDB_CONF_PREFIX + "affinity.";
+
+	/**
+	 * Whether returned connections are parked on their thread.
+	 */
+	public static volatile boolean enabled = false;
+
+	/**
+	 * How long a connection stays parked, in milliseconds.
+	 */
+	public static volatile long ttlMillis = 1000;
+
+	private static final int EMPTY = 0;
+	private static final int PARKED = 1;
+	private static final int TAKEN = 2;
+
+	/**
+	 * The slot of each thread that parked a connection.
+	 */
+	private static final Set<Slot> slots = Collections.newSetFromMap(new ConcurrentHashMap<Slot, Boolean>());
+
+	private static final ThreadLocal<Slot> slot = new ThreadLocal<Slot>()
+	{
+		@Override
+		protected Slot initialValue()
+		{
+			Slot created = new Slot();
+			slots.add(created);
+			return created;
+		}
+	};
+
+	private static ScheduledFuture<?> task;
+
+	final MDBDataSource dataSource;
+
+	/**
+	 * The connections checked out of the pool through the datasource, parked ones included.
+	 */
+	final AtomicInteger outstanding = new AtomicInteger();
+
+	private final AtomicInteger parked = new AtomicInteger();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong parks = new AtomicLong();
+	private final AtomicLong expired = new AtomicLong();
+	private final AtomicLong reclaimed = new AtomicLong();
+
+	ConnectionAffinity(MDBDataSource dataSource)
+	{
+		this.dataSource = dataSource;
+	}
+
+	/**
+	 * Reads the mdb.affinity.* settings and schedules the reclaimer.  The connections parked so far
+	 * are returned to their pools, as the datasources may be replaced.
+	 * @param configuration
+	 */
+	public static synchronized void configure(Properties configuration)
+	{
+		enabled = Boolean.parseBoolean(configuration.getProperty(AFFINITY_CONF_PREFIX + "enabled", "false"));
+		ttlMillis = Long.parseLong(configuration.getProperty(AFFINITY_CONF_PREFIX + "ttl", "1000"));
+		if (task != null)
+		{
+			task.cancel(false);
+			task = null;
+		}
+		reclaim(null);
+		if (enabled)
+		{
+			task = MDBTasks.schedule("connection affinity", new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					check();
+				}
+			}, Math.max(100, ttlMillis / 2));
+		}
+	}
+
+	/**
+	 * Takes back the connection the current thread parked for this database, if it is still fresh.
+	 * @param pool The current pool of the database.
+	 * @return The pooled connection, or null to check one out of the pool.
+	 */
+	Connection take(ComboPooledDataSource pool)
+	{
+		Slot mine = slot.get();
+		if (mine.owner != this || !mine.state.compareAndSet(PARKED, TAKEN))
+		{
+			return null;
+		}
+		Connection connection = mine.connection;
+		boolean fresh = (mine.pool == pool && System.nanoTime() - mine.parkedAt < ttlMillis * 1000000L);
+		mine.clear();
+		parked.decrementAndGet();
+		if (fresh)
+		{
+			hits.incrementAndGet();
+			return connection;
+		}
+		expired.incrementAndGet();
+		close(connection);
+		return null;
+	}
+
+	/**
+	 * Called before a checkout from the pool: when every connection of the database is checked out
+	 * and some are parked, they are returned to the pool for this checkout to use.
+	 * @param pool
+	 */
+	void beforeCheckout(ComboPooledDataSource pool)
+	{
+		if (parked.get() > 0 && outstanding.get() >= pool.getMaxPoolSize())
+		{
+			reclaim(this);
+		}
+	}
+
+	/**
+	 * Returns a connection its holder has closed: it is parked on the thread, or returned to its
+	 * pool if affinity is off or the connection was left with work in progress.
+	 * @param connection The pooled connection.
+	 * @param clean Whether the holder closed all its statements and left the session state the pool
+	 * resets on check-in unchanged.
+	 */
+	void release(Connection connection, boolean clean)
+	{
+		if (!enabled || !clean || ttlMillis <= 0 || !isIdle(connection))
+		{
+			close(connection);
+			return;
+		}
+		Slot mine = slot.get();
+		if (mine.state.compareAndSet(PARKED, TAKEN))
+		{
+			//
+			//	The thread keeps a single connection; the previous one goes back to its pool.
+			//
+			mine.empty();
+		}
+		else if (mine.state.get() != EMPTY)
+		{
+			//
+			//	The reclaimer is closing the slot's connection.
+			//
+			close(connection);
+			return;
+		}
+		mine.owner = this;
+		mine.connection = connection;
+		mine.pool = dataSource.getDelegate();
+		mine.parkedAt = System.nanoTime();
+		parked.incrementAndGet();
+		parks.incrementAndGet();
+		mine.state.set(PARKED);
+	}
+
+	/**
+	 * Whether a connection has no transaction in progress, and so can be handed out again without
+	 * the reset the pool does on check-in.  The rest of the state the pool resets is watched by the
+	 * connection's proxy.
+	 */
+	private boolean isIdle(Connection connection)
+	{
+		try
+		{
+			return connection.getAutoCommit() && !connection.isReadOnly();
+		}
+		catch (SQLException e)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Returns a pooled connection to its pool.
+	 * @param connection
+	 */
+	void close(Connection connection)
+	{
+		outstanding.decrementAndGet();
+		try
+		{
+			connection.close();
+		}
+		catch (SQLException e)
+		{
+			Logger.warn("Error returning a connection of [%s] to its pool: %s", dataSource.key, e.getMessage());
+		}
+	}
+
+	/**
+	 * Returns the parked connections to their pools: those that outlived their time-to-live, and
+	 * all those of a pool with threads waiting.  Forgets the slots of threads that have died.
+	 */
+	public static void check()
+	{
+		long now = System.nanoTime();
+		long ttl = ttlMillis * 1000000L;
+		for (Slot each : slots)
+		{
+			boolean dead = (each.thread.get() == null);
+			if (!each.state.compareAndSet(PARKED, TAKEN))
+			{
+				if (dead && each.state.get() == EMPTY)
+				{
+					slots.remove(each);
+				}
+				continue;
+			}
+			boolean stale = (dead || now - each.parkedAt >= ttl);
+			boolean pressed = false;
+			if (!stale)
+			{
+				try
+				{
+					pressed = each.pool.getNumThreadsAwaitingCheckoutDefaultUser() > 0;
+				}
+				catch (SQLException e)
+				{
+					pressed = true;
+				}
+			}
+			if (stale || pressed)
+			{
+				ConnectionAffinity owner = each.owner;
+				each.empty();
+				(stale ? owner.expired : owner.reclaimed).incrementAndGet();
+			}
+			else
+			{
+				each.state.set(PARKED);
+			}
+		}
+	}
+
+	/**
+	 * Returns the parked connections of a database to its pool, e.g. before its pool is replaced.
+	 * @param only The database's affinity, or null for all databases.
+	 */
+	static void reclaim(ConnectionAffinity only)
+	{
+		for (Slot each : slots)
+		{
+			if (each.state.compareAndSet(PARKED, TAKEN))
+			{
+				if (only != null && each.owner != only)
+				{
+					each.state.set(PARKED);
+					continue;
+				}
+				ConnectionAffinity owner = each.owner;
+				each.empty();
+				owner.reclaimed.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * @return The number of connections parked for the database.
+	 */
+	public int getParked()
+	{
+		return parked.get();
+	}
+
+	/**
+	 * @return The number of checkouts that took a parked connection back.
+	 */
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	public long getParks()
+	{
+		return parks.get();
+	}
+
+	/**
+	 * @return The number of parked connections returned to their pool once too old.
+	 */
+	public long getExpired()
+	{
+		return expired.get();
+	}
+
+	/**
+	 * @return The number of parked connections returned to their pool because another thread needed one.
+	 */
+	public long getReclaimed()
+	{
+		return reclaimed.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "parked " + getParked() + ", hits " + getHits() + " of " + getParks() + " parked, expired "
+				+ getExpired() + ", reclaimed " + getReclaimed();
+	}
+
+	/**
+	 * The connection parked by a thread.  Its fields are written while the slot is EMPTY, and read
+	 * after winning the compare-and-set from PARKED to TAKEN.
+	 */
+	private static final class Slot
+	{
+		final WeakReference<Thread> thread = new WeakReference<Thread>(Thread.currentThread());
+		final AtomicInteger state = new AtomicInteger(EMPTY);
+		ConnectionAffinity owner;
+		Connection connection;
+		ComboPooledDataSource pool;
+		long parkedAt;
+
+		/**
+		 * Empties a TAKEN slot.
+		 */
+		void clear()
+		{
+			owner = null;
+			connection = null;
+			pool = null;
+			state.set(EMPTY);
+		}
+
+		/**
+		 * Returns the connection of a TAKEN slot to its pool, and empties the slot.
+		 */
+		void empty()
+		{
+			ConnectionAffinity previous = owner;
+			Connection old = connection;
+			clear();
+			previous.parked.decrementAndGet();
+			previous.close(old);
+		}
+	}
+}
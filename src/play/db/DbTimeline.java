@@ -0,0 +1,342 @@
+package play.db;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import play.Logger;
+import play.mvc.Http.Response;
+
+/**
+ * The timeline of the database work done by one invocation: key extraction, entity manager
+ * creation, connection checkouts, statements, flush and commit or rollback.  Timelines are
+ * sampled, and each thread reuses a single timeline with preallocated arrays, so that recording
+ * a phase does not allocate.
+ *
+ * @author dcardon
+ */
+public class DbTimeline
+{
+	public static final String TRACE_CONF_PREFIX = MDBPlugin.MDB_CONF_PREFIX + "trace.";
+
+	/**
+	 * The phases of the database work of an invocation.
+	 */
+	public enum Phase
+	{
+		KEY("key"), ENTITY_MANAGER("em"), CHECKOUT("checkout"), STATEMENT("stmt"),
+		FLUSH("flush"), COMMIT("commit"), ROLLBACK("rollback"), WAKE("wake"), CATALOG("catalog");
+
+		public final String label;
+
+		private Phase(String label)
+		{
+			this.label = label;
+		}
+	}
+
+	/**
+	 * The fraction of invocations that are traced, between 0 (none) and 1 (all).
+	 */
+	public static volatile double sampleRate = 0;
+
+	/**
+	 * The response header receiving the timeline of traced requests, or null for none.
+	 */
+	public static volatile String header = null;
+
+	/**
+	 * The sinks receiving the timeline of each traced invocation.
+	 */
+	public static volatile List<DbTimelineSink> sinks = new ArrayList<DbTimelineSink>();
+
+	/**
+	 * The maximum number of phases recorded per invocation; later phases are only counted.
+	 */
+	private static final int CAPACITY = 256;
+
+	private static final ThreadLocal<DbTimeline> local = new ThreadLocal<DbTimeline>()
+	{
+		@Override
+		protected DbTimeline initialValue()
+		{
+			return new DbTimeline();
+		}
+	};
+
+	private final Phase[] phases = new Phase[CAPACITY];
+	private final long[] starts = new long[CAPACITY];
+	private final long[] durations = new long[CAPACITY];
+	private int size;
+	private int dropped;
+	private boolean active;
+	private long startNanos;
+	private long endNanos;
+	private String tenant;
+	private String action;
+	private long seed = System.nanoTime() | 1;
+
+	/**
+	 * Reads the mdb.trace.* settings.
+	 * @param configuration
+	 */
+	public static void configure(Properties configuration)
+	{
+		sampleRate = Double.parseDouble(configuration.getProperty(TRACE_CONF_PREFIX + "sampleRate", "0"));
+		String name = configuration.getProperty(TRACE_CONF_PREFIX + "header", "").trim();
+		header = (name.length() == 0 ? null : name);
+	}
+
+	/**
+	 * Starts the timeline of the current thread's invocation, if it is sampled.
+	 * @param action The action being invoked, or null for jobs.
+	 */
+	public static void begin(String action)
+	{
+		DbTimeline timeline = local.get();
+		timeline.size = 0;
+		timeline.dropped = 0;
+		timeline.tenant = null;
+		timeline.action = action;
+		timeline.active = timeline.sample();
+		timeline.startNanos = System.nanoTime();
+		timeline.endNanos = 0;
+	}
+
+	/**
+	 * @return True if the current thread's invocation is being traced.
+	 */
+	public static boolean isActive()
+	{
+		return sampleRate > 0 && local.get().active;
+	}
+
+	/**
+	 * Sets the database key of the current thread's invocation.
+	 * @param dbKey
+	 */
+	public static void tenant(String dbKey)
+	{
+		if (sampleRate > 0)
+		{
+			DbTimeline timeline = local.get();
+			if (timeline.active)
+			{
+				timeline.tenant = dbKey;
+			}
+		}
+	}
+
+	/**
+	 * Records a phase of the current thread's invocation, which started at the given time and
+	 * ends now.
+	 * @param phase
+	 * @param startNanos The System.nanoTime() at which the phase started.
+	 */
+	public static void record(Phase phase, long startNanos)
+	{
+		if (sampleRate <= 0)
+		{
+			return;
+		}
+		DbTimeline timeline = local.get();
+		if (!timeline.active)
+		{
+			return;
+		}
+		if (timeline.size == CAPACITY)
+		{
+			timeline.dropped++;
+			return;
+		}
+		int i = timeline.size++;
+		timeline.phases[i] = phase;
+		timeline.starts[i] = startNanos - timeline.startNanos;
+		timeline.durations[i] = System.nanoTime() - startNanos;
+	}
+
+	/**
+	 * Writes the timeline of the current request to the configured response header.  This must
+	 * be called before the response is sent.
+	 */
+	public static void writeHeader()
+	{
+		if (header == null || !isActive())
+		{
+			return;
+		}
+		Response response = Response.current();
+		if (response != null)
+		{
+			response.setHeader(header, local.get().summary());
+		}
+	}
+
+	/**
+	 * Ends the timeline of the current thread's invocation and hands it to the sinks.
+	 */
+	public static void end()
+	{
+		if (sampleRate <= 0)
+		{
+			return;
+		}
+		DbTimeline timeline = local.get();
+		if (!timeline.active)
+		{
+			return;
+		}
+		timeline.active = false;
+		timeline.endNanos = System.nanoTime();
+		for (DbTimelineSink sink : sinks)
+		{
+			try
+			{
+				sink.record(timeline);
+			}
+			catch (Exception e)
+			{
+				Logger.error(e, "Error in database timeline sink %s", sink.getClass().getName());
+			}
+		}
+	}
+
+	/**
+	 * Decides whether to trace an invocation, using a per-thread xorshift generator.
+	 */
+	private boolean sample()
+	{
+		double rate = sampleRate;
+		if (rate <= 0)
+		{
+			return false;
+		}
+		if (rate >= 1)
+		{
+			return true;
+		}
+		seed ^= (seed << 13);
+		seed ^= (seed >>> 7);
+		seed ^= (seed << 17);
+		return ((seed >>> 11) * 0x1.0p-53) < rate;
+	}
+
+	/**
+	 * @return The database key of the invocation, or null if none was used.
+	 */
+	public String getTenant()
+	{
+		return tenant;
+	}
+
+	/**
+	 * @return The action of the invocation, or null for jobs.
+	 */
+	public String getAction()
+	{
+		return action;
+	}
+
+	/**
+	 * @return The number of phases recorded.
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * @return The number of phases that did not fit in the timeline.
+	 */
+	public int getDropped()
+	{
+		return dropped;
+	}
+
+	public Phase getPhase(int i)
+	{
+		return phases[i];
+	}
+
+	/**
+	 * @return The start of a phase, in nanoseconds from the start of the invocation.
+	 */
+	public long getStartNanos(int i)
+	{
+		return starts[i];
+	}
+
+	public long getDurationNanos(int i)
+	{
+		return durations[i];
+	}
+
+	/**
+	 * @return The duration of the invocation, in nanoseconds.
+	 */
+	public long getTotalNanos()
+	{
+		return (endNanos == 0 ? System.nanoTime() : endNanos) - startNanos;
+	}
+
+	/**
+	 * @return The total time spent in a phase, in nanoseconds.
+	 */
+	public long getTotalNanos(Phase phase)
+	{
+		long total = 0;
+		for (int i = 0; i < size; i++)
+		{
+			if (phases[i] == phase)
+			{
+				total += durations[i];
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Summarizes the timeline as 'key=0.1;em=0.3;checkout=2.0;stmt*12=35.2;commit=1.1;total=48.0'
+	 * (milliseconds per phase, with the number of occurrences of repeated phases).
+	 * @return
+	 */
+	public String summary()
+	{
+		StringBuilder out = new StringBuilder(128);
+		if (tenant != null)
+		{
+			out.append("db=").append(tenant).append(';');
+		}
+		for (Phase phase : Phase.values())
+		{
+			int count = 0;
+			long total = 0;
+			for (int i = 0; i < size; i++)
+			{
+				if (phases[i] == phase)
+				{
+					count++;
+					total += durations[i];
+				}
+			}
+			if (count == 0)
+			{
+				continue;
+			}
+			out.append(phase.label);
+			if (count > 1)
+			{
+				out.append('*').append(count);
+			}
+			out.append('=').append(String.format("%.1f", total / 1000000.0)).append(';');
+		}
+		out.append("total=").append(String.format("%.1f", getTotalNanos() / 1000000.0));
+		return out.toString();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "DbTimeline [" + action + "] " + summary();
+	}
+}
@@ -0,0 +1,16 @@
+package play.db;
+
+/**
+ *	Receives the database timeline of each traced invocation.  Application classes implementing
+ *	this interface are instantiated when the application starts.  The timeline object is reused by
+ *	its thread once the sink returns, so sinks must copy what they keep.
+ * @author dcardon
+ */
+public interface DbTimelineSink
+{
+	/**
+	 * Records the timeline of a traced invocation.
+	 * @param timeline
+	 */
+	public void record(DbTimeline timeline);
+}
@@ -0,0 +1,238 @@
+package play.db;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.Map.Entry;
+import java.util.zip.CRC32;
+
+import org.apache.commons.lang.StringUtils;
+
+import play.Play;
+
+/**
+ * A tenant catalog kept in a local text file, one line per tenant:
+ * <pre>
+ * # key|url|user|pass|driver|pool.maxSize|pool.minSize|pool.timeout
+ * acme|jdbc:mysql://db3/acme|acme|secret
+ * globex|jdbc:mysql://db1/globex||||10
+ * </pre>
+ * Trailing fields may be left out, and empty fields are taken from the mdb.*.all entries.  Only
+ * the position and checksum of each line is kept in memory; lines are read when their tenant is
+ * looked up.  The file is indexed again when its modification time or size changes.
+ *
+ * @author dcardon
+ */
+public class FileTenantCatalog implements TenantCatalog
+{
+	private static final String[] FIELDS = { "url", "user", "pass", "driver", "pool.maxSize", "pool.minSize",
+			"pool.timeout" };
+
+	private File file;
+
+	/**
+	 * The offset and checksum of each tenant's line, by key.  It is replaced, never modified.
+	 */
+	private volatile Map<String, long[]> index = new HashMap<String, long[]>();
+
+	/**
+	 * The index as of the previous poll.
+	 */
+	private Map<String, long[]> polled;
+	private long modified;
+	private long length;
+
+	@Override
+	public void open(Properties configuration) throws IOException
+	{
+		String path = configuration.getProperty(TenantResolver.CATALOG_CONF_PREFIX + "file", "conf/tenants.txt");
+		file = new File(path);
+		if (!file.isAbsolute())
+		{
+			file = Play.getFile(path);
+		}
+		if (!file.exists())
+		{
+			throw new IOException("Tenant catalog file not found: " + file);
+		}
+		polled = reindex();
+	}
+
+	@Override
+	public Map<String, String> find(String key) throws IOException
+	{
+		String line = read(key);
+		if (line == null && isModified())
+		{
+			//
+			//	The file was rewritten since it was indexed.
+			//
+			reindex();
+			line = read(key);
+		}
+		return (line == null ? null : parse(line));
+	}
+
+	@Override
+	public synchronized Collection<String> poll() throws IOException
+	{
+		Set<String> keys = new HashSet<String>();
+		Map<String, long[]> before = polled;
+		Map<String, long[]> after = (isModified() ? reindex() : index);
+		if (after == before)
+		{
+			return keys;
+		}
+		polled = after;
+		for (Entry<String, long[]> entry : after.entrySet())
+		{
+			long[] old = before.get(entry.getKey());
+			if (old == null || old[1] != entry.getValue()[1])
+			{
+				keys.add(entry.getKey());
+			}
+		}
+		for (String key : before.keySet())
+		{
+			if (!after.containsKey(key))
+			{
+				keys.add(key);
+			}
+		}
+		return keys;
+	}
+
+	@Override
+	public void close()
+	{
+		index = new HashMap<String, long[]>();
+	}
+
+	private boolean isModified()
+	{
+		return file.lastModified() != modified || file.length() != length;
+	}
+
+	/**
+	 * Records the offset and checksum of each line of the file.
+	 */
+	private synchronized Map<String, long[]> reindex() throws IOException
+	{
+		long fileModified = file.lastModified();
+		long fileLength = file.length();
+		Map<String, long[]> lines = new HashMap<String, long[]>();
+		InputStream in = new BufferedInputStream(new FileInputStream(file), 65536);
+		try
+		{
+			ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+			long offset = 0;
+			long start = 0;
+			int b;
+			while ((b = in.read()) != -1)
+			{
+				offset++;
+				if (b == '\n')
+				{
+					addLine(lines, line, start);
+					line.reset();
+					start = offset;
+				}
+				else
+				{
+					line.write(b);
+				}
+			}
+			addLine(lines, line, start);
+		}
+		finally
+		{
+			in.close();
+		}
+		index = lines;
+		modified = fileModified;
+		length = fileLength;
+		return lines;
+	}
+
+	private static void addLine(Map<String, long[]> lines, ByteArrayOutputStream bytes, long offset)
+			throws IOException
+	{
+		String line = bytes.toString("UTF-8").trim();
+		if (line.length() == 0 || line.startsWith("#"))
+		{
+			return;
+		}
+		CRC32 crc = new CRC32();
+		crc.update(bytes.toByteArray());
+		lines.put(StringUtils.substringBefore(line, "|").trim(), new long[] { offset, crc.getValue() });
+	}
+
+	/**
+	 * Reads the line of a tenant at its indexed offset.
+	 * @return The line, or null if the tenant is not indexed or its line has moved.
+	 */
+	private String read(String key) throws IOException
+	{
+		long[] entry = index.get(key);
+		if (entry == null)
+		{
+			return null;
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try
+		{
+			raf.seek(entry[0]);
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+			byte[] buffer = new byte[256];
+			int n;
+			read: while ((n = raf.read(buffer)) > 0)
+			{
+				for (int i = 0; i < n; i++)
+				{
+					if (buffer[i] == '\n')
+					{
+						bytes.write(buffer, 0, i);
+						break read;
+					}
+				}
+				bytes.write(buffer, 0, n);
+			}
+			String line = bytes.toString("UTF-8").trim();
+			return (StringUtils.substringBefore(line, "|").trim().equals(key) ? line : null);
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	private static Map<String, String> parse(String line)
+	{
+		String[] values = StringUtils.splitPreserveAllTokens(line, '|');
+		Map<String, String> parms = new HashMap<String, String>();
+		for (int i = 1; i < values.length && i <= FIELDS.length; i++)
+		{
+			if (values[i].trim().length() > 0)
+			{
+				parms.put(FIELDS[i - 1], values[i].trim());
+			}
+		}
+		return parms;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "file " + file + " (" + index.size() + " tenants)";
+	}
+}
@@ -0,0 +1,198 @@
+package play.db;
+
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import play.Play;
+
+import com.mchange.v2.c3p0.ComboPooledDataSource;
+
+/**
+ * A tenant catalog kept in a database table, one row per tenant:
+ * <pre>
+ * create table mdb_tenants (
+ *     tenant_key    varchar(100) primary key,
+ *     url           varchar(500),
+ *     driver        varchar(200),
+ *     db_user       varchar(100),
+ *     db_pass       varchar(100),
+ *     pool_timeout  integer,
+ *     pool_max_size integer,
+ *     pool_min_size integer,
+ *     updated       timestamp not null
+ * )
+ * </pre>
+ * Changes are found through the updated column, which must be set whenever a row is written.
+ * Deleted rows are not seen by polls.
+ *
+ * @author dcardon
+ */
+public class JdbcTenantCatalog implements TenantCatalog
+{
+	private static final String[][] COLUMNS = { { "url", "url" }, { "driver", "driver" }, { "db_user", "user" },
+			{ "db_pass", "pass" }, { "pool_timeout", "pool.timeout" }, { "pool_max_size", "pool.maxSize" },
+			{ "pool_min_size", "pool.minSize" } };
+
+	private ComboPooledDataSource pool;
+	private String table;
+
+	/**
+	 * The latest update time seen, read from the catalog's own clock.
+	 */
+	private Timestamp watermark;
+
+	@Override
+	public void open(Properties configuration) throws Exception
+	{
+		String prefix = TenantResolver.CATALOG_CONF_PREFIX;
+		String driver = configuration.getProperty(prefix + "driver");
+		String url = configuration.getProperty(prefix + "url");
+		if (driver == null || url == null)
+		{
+			throw new IllegalArgumentException("The tenant catalog needs " + prefix + "driver and " + prefix + "url");
+		}
+		table = configuration.getProperty(prefix + "table", "mdb_tenants");
+		DriverManager.registerDriver(new DBPlugin.ProxyDriver((Driver) Class.forName(driver, true,
+				Play.classloader).newInstance()));
+		pool = new ComboPooledDataSource();
+		pool.setDriverClass(driver);
+		pool.setJdbcUrl(url);
+		pool.setUser(configuration.getProperty(prefix + "user"));
+		pool.setPassword(configuration.getProperty(prefix + "pass"));
+		pool.setMinPoolSize(1);
+		pool.setMaxPoolSize(Integer.parseInt(configuration.getProperty(prefix + "poolMaxSize", "5")));
+		pool.setCheckoutTimeout(5000);
+		pool.setTestConnectionOnCheckout(true);
+		watermark = latestUpdate();
+	}
+
+	@Override
+	public Map<String, String> find(String key) throws SQLException
+	{
+		StringBuilder sql = new StringBuilder("select ");
+		for (int i = 0; i < COLUMNS.length; i++)
+		{
+			sql.append(i == 0 ? "" : ", ").append(COLUMNS[i][0]);
+		}
+		sql.append(" from ").append(table).append(" where tenant_key = ?");
+		Connection connection = pool.getConnection();
+		try
+		{
+			PreparedStatement statement = connection.prepareStatement(sql.toString());
+			try
+			{
+				statement.setString(1, key);
+				ResultSet rs = statement.executeQuery();
+				if (!rs.next())
+				{
+					return null;
+				}
+				Map<String, String> parms = new HashMap<String, String>();
+				for (int i = 0; i < COLUMNS.length; i++)
+				{
+					String value = rs.getString(i + 1);
+					if (value != null)
+					{
+						parms.put(COLUMNS[i][1], value);
+					}
+				}
+				return parms;
+			}
+			finally
+			{
+				statement.close();
+			}
+		}
+		finally
+		{
+			connection.close();
+		}
+	}
+
+	@Override
+	public synchronized Collection<String> poll() throws SQLException
+	{
+		List<String> keys = new ArrayList<String>();
+		Connection connection = pool.getConnection();
+		try
+		{
+			PreparedStatement statement = connection.prepareStatement("select tenant_key, updated from " + table
+					+ (watermark == null ? "" : " where updated > ?"));
+			try
+			{
+				if (watermark != null)
+				{
+					statement.setTimestamp(1, watermark);
+				}
+				ResultSet rs = statement.executeQuery();
+				while (rs.next())
+				{
+					keys.add(rs.getString(1));
+					Timestamp updated = rs.getTimestamp(2);
+					if (updated != null && (watermark == null || updated.after(watermark)))
+					{
+						watermark = updated;
+					}
+				}
+			}
+			finally
+			{
+				statement.close();
+			}
+		}
+		finally
+		{
+			connection.close();
+		}
+		return keys;
+	}
+
+	private Timestamp latestUpdate() throws SQLException
+	{
+		Connection connection = pool.getConnection();
+		try
+		{
+			Statement statement = connection.createStatement();
+			try
+			{
+				ResultSet rs = statement.executeQuery("select max(updated) from " + table);
+				return (rs.next() ? rs.getTimestamp(1) : null);
+			}
+			finally
+			{
+				statement.close();
+			}
+		}
+		finally
+		{
+			connection.close();
+		}
+	}
+
+	@Override
+	public void close()
+	{
+		if (pool != null)
+		{
+			pool.close();
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return "table " + table + " at " + (pool == null ? "?" : pool.getJdbcUrl());
+	}
+}
@@ -0,0 +1,285 @@
+package play.db;
+
+import java.util.Properties;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import play.Logger;
+
+/**
+ * Tracks the connections and statements handed out by the {@link MDBDataSource}s, and flags the
+ * ones held longer than a threshold.  The stack of the checkout site is captured for a sample of
+ * checkouts, and flagged resources can optionally be reclaimed (closed behind their holder).
+ *
+ * @author dcardon
+ */
+public class LeakDetector
+{
+	public static final String LEAK_CONF_PREFIX = MDBPlugin.MDB_CONF_PREFIX + "leak.";
+
+	/**
+	 * The kinds of tracked resources.
+	 */
+	public enum Kind
+	{
+		CONNECTION, STATEMENT
+	}
+
+	/**
+	 * A resource that the detector can close behind its holder.
+	 */
+	interface Reclaimable
+	{
+		void reclaim();
+	}
+
+	/**
+	 * Resources held longer than this are flagged.  Zero or less disables tracking.
+	 */
+	public static volatile long thresholdMillis = 60000;
+
+	/**
+	 * The fraction of checkouts whose stack is captured.
+	 */
+	public static volatile double stackSampleRate = 0.05;
+
+	/**
+	 * Whether flagged resources are closed by the detector.
+	 */
+	public static volatile boolean reclaim = false;
+
+	/**
+	 * Whether statements are tracked as well as connections.
+	 */
+	public static volatile boolean trackStatements = true;
+
+	private static final ConcurrentMap<Reclaimable, Checkout> open = new ConcurrentHashMap<Reclaimable, Checkout>();
+
+	private static final ConcurrentMap<String, Totals> totals = new ConcurrentHashMap<String, Totals>();
+
+	private static final AtomicLong sampleCounter = new AtomicLong();
+
+	private static ScheduledFuture<?> task;
+
+	/**
+	 * Reads the mdb.leak.* settings and schedules the periodic check.
+	 * @param configuration
+	 */
+	public static synchronized void configure(Properties configuration)
+	{
+		thresholdMillis = Long.parseLong(configuration.getProperty(LEAK_CONF_PREFIX + "threshold", "60000"));
+		stackSampleRate = Double.parseDouble(configuration.getProperty(LEAK_CONF_PREFIX + "stackSampleRate", "0.05"));
+		reclaim = Boolean.parseBoolean(configuration.getProperty(LEAK_CONF_PREFIX + "reclaim", "false"));
+		trackStatements = Boolean.parseBoolean(configuration.getProperty(LEAK_CONF_PREFIX + "trackStatements", "true"));
+		if (task != null)
+		{
+			task.cancel(false);
+			task = null;
+		}
+		if (thresholdMillis > 0)
+		{
+			long interval = Long.parseLong(configuration.getProperty(LEAK_CONF_PREFIX + "interval",
+					String.valueOf(Math.max(1000, thresholdMillis / 4))));
+			task = MDBTasks.schedule("leak detection", new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					check();
+				}
+			}, interval);
+		}
+	}
+
+	/**
+	 * Starts tracking a resource.
+	 * @param tenant
+	 * @param kind
+	 * @param resource
+	 */
+	static void track(String tenant, Kind kind, Reclaimable resource)
+	{
+		if (thresholdMillis <= 0 || (kind == Kind.STATEMENT && !trackStatements))
+		{
+			return;
+		}
+		Throwable site = null;
+		if (stackSampleRate >= 1 || (stackSampleRate > 0
+				&& sampleCounter.incrementAndGet() % Math.round(1 / stackSampleRate) == 0))
+		{
+			site = new Throwable("Checkout site of a " + kind.name().toLowerCase() + " on [" + tenant + "]");
+		}
+		open.put(resource, new Checkout(tenant, kind, site));
+		Totals tenantTotals = totals(tenant);
+		if (kind == Kind.CONNECTION)
+		{
+			tenantTotals.connections.incrementAndGet();
+		}
+		else
+		{
+			tenantTotals.statements.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Stops tracking a resource, once it is closed.
+	 * @param resource
+	 */
+	static void release(Reclaimable resource)
+	{
+		if (!open.isEmpty())
+		{
+			open.remove(resource);
+		}
+	}
+
+	/**
+	 * Flags the resources held longer than the threshold, reclaiming them if configured.
+	 */
+	public static void check()
+	{
+		long now = System.currentTimeMillis();
+		long threshold = thresholdMillis;
+		if (threshold <= 0)
+		{
+			return;
+		}
+		for (Entry<Reclaimable, Checkout> entry : open.entrySet())
+		{
+			Checkout checkout = entry.getValue();
+			long held = now - checkout.since;
+			if (held < threshold)
+			{
+				continue;
+			}
+			Totals tenantTotals = totals(checkout.tenant);
+			if (!checkout.flagged)
+			{
+				checkout.flagged = true;
+				tenantTotals.flagged.incrementAndGet();
+				String message = String.format("Possible %s leak on [%s]: held for %s ms by thread %s",
+						checkout.kind.name().toLowerCase(), checkout.tenant, held, checkout.thread);
+				if (checkout.site == null)
+				{
+					Logger.warn("%s (checkout site not sampled)", message);
+				}
+				else
+				{
+					Logger.warn(checkout.site, "%s", message);
+				}
+			}
+			if (reclaim && open.remove(entry.getKey()) != null)
+			{
+				tenantTotals.reclaimed.incrementAndGet();
+				try
+				{
+					entry.getKey().reclaim();
+				}
+				catch (Exception e)
+				{
+					Logger.warn("Error reclaiming a %s on [%s]: %s", checkout.kind.name().toLowerCase(),
+							checkout.tenant, e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Finds the leak totals of a tenant.
+	 * @param tenant
+	 * @return
+	 */
+	public static Totals getTotals(String tenant)
+	{
+		Totals tenantTotals = totals(tenant);
+		long openConnections = 0;
+		long openStatements = 0;
+		for (Checkout checkout : open.values())
+		{
+			if (checkout.tenant.equals(tenant))
+			{
+				if (checkout.kind == Kind.CONNECTION)
+				{
+					openConnections++;
+				}
+				else
+				{
+					openStatements++;
+				}
+			}
+		}
+		tenantTotals.openConnections = openConnections;
+		tenantTotals.openStatements = openStatements;
+		return tenantTotals;
+	}
+
+	private static Totals totals(String tenant)
+	{
+		Totals tenantTotals = totals.get(tenant);
+		if (tenantTotals == null)
+		{
+			tenantTotals = new Totals();
+			Totals existing = totals.putIfAbsent(tenant, tenantTotals);
+			if (existing != null)
+			{
+				tenantTotals = existing;
+			}
+		}
+		return tenantTotals;
+	}
+
+	/**
+	 * A tracked checkout.
+	 */
+	private static class Checkout
+	{
+		final String tenant;
+		final Kind kind;
+		final Throwable site;
+		final long since = System.currentTimeMillis();
+		final String thread = Thread.currentThread().getName();
+		volatile boolean flagged;
+
+		Checkout(String tenant, Kind kind, Throwable site)
+		{
+			this.tenant = tenant;
+			this.kind = kind;
+			this.site = site;
+		}
+	}
+
+	/**
+	 * The leak totals of a tenant.
+	 */
+	public static class Totals
+	{
+		/**
+		 * The number of connections and statements tracked since start-up.
+		 */
+		public final AtomicLong connections = new AtomicLong();
+		public final AtomicLong statements = new AtomicLong();
+
+		/**
+		 * The number of resources flagged and reclaimed since start-up.
+		 */
+		public final AtomicLong flagged = new AtomicLong();
+		public final AtomicLong reclaimed = new AtomicLong();
+
+		/**
+		 * The number of resources currently open, as of the last call to getTotals().
+		 */
+		public volatile long openConnections;
+		public volatile long openStatements;
+
+		@Override
+		public String toString()
+		{
+			return "open connections: " + openConnections + ", open statements: " + openStatements
+					+ ", flagged: " + flagged + ", reclaimed: " + reclaimed
+					+ " (" + connections + " connections, " + statements + " statements checked out)";
+		}
+	}
+}
@@ -3,12 +3,20 @@ package play.db;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.sql.DataSource;
+
+import play.Logger;
 import play.db.jpa.JPA;
 import play.exceptions.DatabaseException;
 
+import com.mchange.v2.c3p0.ComboPooledDataSource;
+
 /**
  * Multiple database connection utilities.
  */
@@ -20,18 +28,68 @@ public class MDB
 	 */
 	public static Map<String, DataSource> datasources = null;
 
+	/**
+	 * The instrumented datasources, by database key.  Each one wraps the pool found in datasources.
+	 */
+	static Map<String, MDBDataSource> wrappers = new ConcurrentHashMap<String, MDBDataSource>();
+
+	/**
+	 * Finds the instrumented datasource for a database key.
+	 * @param dbKey
+	 * @return The datasource, or null if no database is registered under the key.
+	 */
+	public static MDBDataSource getDataSource(String dbKey)
+	{
+		return (dbKey == null ? null : wrappers.get(dbKey));
+	}
+
+	/**
+	 * Registers the pool of a database key.  If the key is already registered, its instrumented
+	 * datasource is kept and switched over to the new pool.
+	 * @param dbKey
+	 * @param pool
+	 * @return The instrumented datasource of the key.
+	 */
+	static MDBDataSource register(String dbKey, ComboPooledDataSource pool)
+	{
+		synchronized (datasources)
+		{
+			datasources.put(dbKey, pool);
+			MDBDataSource wrapper = wrappers.get(dbKey);
+			if (wrapper == null)
+			{
+				wrapper = new MDBDataSource(dbKey, pool);
+				wrappers.put(dbKey, wrapper);
+			}
+			else
+			{
+				wrapper.setDelegate(pool);
+			}
+			return wrapper;
+		}
+	}
+
 	/**
 	 * Close the connection opened for the current thread.
 	 */
 	public static void close()
 	{
+		closeStatements();
 		if (localConnection.get() != null)
 		{
 			try
 			{
 				Connection connection = localConnection.get();
 				localConnection.set(null);
-				connection.close();
+				try
+				{
+					connection.close();
+				}
+				finally
+				{
+					TenantBulkhead.exit(localKey.get());
+					localKey.remove();
+				}
 			}
 			catch (Exception e)
 			{
@@ -46,6 +104,41 @@ public class MDB
 	 */
 	static ThreadLocal<Connection> localConnection = new ThreadLocal<Connection>();
 
+	/**
+	 * The database key of the connection for the current thread.
+	 */
+	static ThreadLocal<String> localKey = new ThreadLocal<String>();
+
+	/**
+	 * The statements behind the result sets returned by executeQuery on the current thread.  They
+	 * stay open until the thread's connection is closed.
+	 */
+	static ThreadLocal<List<Statement>> localStatements = new ThreadLocal<List<Statement>>();
+
+	/**
+	 * Closes the statements opened by executeQuery on the current thread.
+	 */
+	private static void closeStatements()
+	{
+		List<Statement> statements = localStatements.get();
+		if (statements == null)
+		{
+			return;
+		}
+		localStatements.remove();
+		for (Statement statement : statements)
+		{
+			try
+			{
+				statement.close();
+			}
+			catch (SQLException e)
+			{
+				Logger.warn("Error closing statement: %s", e.getMessage());
+			}
+		}
+	}
+
 	/**
 	 * Open a connection for the current thread.
 	 * 
@@ -64,8 +157,27 @@ public class MDB
 			{
 				return localConnection.get();
 			}
-			Connection connection = datasources.get(dbKey).getConnection();
+			TenantResolver.resolve(dbKey);
+			MDBDataSource ds = getDataSource(dbKey);
+			if (ds == null)
+			{
+				throw new DatabaseException("No database found under key '" + dbKey
+						+ "'. Check the configuration of your application.");
+			}
+			TenantHibernation.wake(dbKey);
+			TenantBulkhead.enter(dbKey);
+			Connection connection;
+			try
+			{
+				connection = ds.getConnection();
+			}
+			catch (SQLException ex)
+			{
+				TenantBulkhead.exit(dbKey);
+				throw ex;
+			}
 			localConnection.set(connection);
+			localKey.set(dbKey);
 			return connection;
 		}
 		catch (SQLException ex)
@@ -75,7 +187,7 @@ public class MDB
 		}
 		catch (NullPointerException e)
 		{
-			if (datasources.get(dbKey) == null)
+			if (getDataSource(dbKey) == null)
 			{
 				throw new DatabaseException(
 						"No database found under key '" + dbKey + "'. Check the configuration of your application.",
@@ -93,14 +205,30 @@ public class MDB
 	 */
 	public static boolean execute(String SQL)
 	{
+		Statement statement = null;
 		try
 		{
-			return getConnection(null).createStatement().execute(SQL);
+			statement = getConnection(null).createStatement();
+			return statement.execute(SQL);
 		}
 		catch (SQLException ex)
 		{
 			throw new DatabaseException(ex.getMessage(), ex);
 		}
+		finally
+		{
+			if (statement != null)
+			{
+				try
+				{
+					statement.close();
+				}
+				catch (SQLException ex)
+				{
+					Logger.warn("Error closing statement: %s", ex.getMessage());
+				}
+			}
+		}
 	}
 
 	/**
@@ -113,7 +241,15 @@ public class MDB
 	{
 		try
 		{
-			return getConnection(null).createStatement().executeQuery(SQL);
+			Statement statement = getConnection(null).createStatement();
+			List<Statement> statements = localStatements.get();
+			if (statements == null)
+			{
+				statements = new ArrayList<Statement>();
+				localStatements.set(statements);
+			}
+			statements.add(statement);
+			return statement.executeQuery(SQL);
 		}
 		catch (SQLException ex)
 		{
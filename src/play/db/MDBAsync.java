@@ -0,0 +1,528 @@
+package play.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import play.exceptions.DatabaseException;
+
+/**
+ * Runs database work in the background, so that a request can run several independent queries at
+ * once, e.g. the widgets of a dashboard, instead of one after the other.  Each piece of work runs
+ * on a bounded executor of its database, with its own connection, which is returned to the pool
+ * when the work is done.
+ * <p>
+ * The work runs in the bulkhead lane of the thread that submitted it, and within the deadline of
+ * its invocation.  Cancelling its future cancels the statement it is executing.
+ *
+ * @author dcardon
+ */
+public class MDBAsync
+{
+	public static final String ASYNC_CONF_PREFIX = MDBPlugin.MDB_CONF_PREFIX + "async.";
+
+	/**
+	 * The number of threads of each database's executor.
+	 */
+	public static volatile int threads = 4;
+
+	/**
+	 * The number of pieces of work waiting for each database's executor.
+	 */
+	public static volatile int maxQueue = 100;
+
+	/**
+	 * How long an idle executor thread is kept, in milliseconds.
+	 */
+	public static volatile long keepAliveMillis = 60000;
+
+	private static final ConcurrentMap<String, MDBAsync> executors = new ConcurrentHashMap<String, MDBAsync>();
+
+	/**
+	 * Work done with a connection.
+	 */
+	public interface Work<T>
+	{
+		T run(Connection connection) throws SQLException;
+	}
+
+	/**
+	 * Reads the rows of a query.  The result set is closed once they are read.
+	 */
+	public interface Rows<T>
+	{
+		T read(ResultSet rows) throws SQLException;
+	}
+
+	public final String key;
+	private final ThreadPoolExecutor executor;
+	private final AtomicLong submitted = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+
+	MDBAsync(String key)
+	{
+		this.key = key;
+		this.executor = new ThreadPoolExecutor(threads, threads, keepAliveMillis, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(Math.max(1, maxQueue)), MDBTasks.daemonThreads("mdb-async-" + key));
+		this.executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Reads the mdb.async.* settings.  Executors already created keep their size.
+	 * @param configuration
+	 */
+	public static void configure(Properties configuration)
+	{
+		threads = Integer.parseInt(configuration.getProperty(ASYNC_CONF_PREFIX + "threads", "4"));
+		maxQueue = Integer.parseInt(configuration.getProperty(ASYNC_CONF_PREFIX + "maxQueue", "100"));
+		keepAliveMillis = Long.parseLong(configuration.getProperty(ASYNC_CONF_PREFIX + "keepAlive", "60000"));
+	}
+
+	/**
+	 * Runs work on a database in the background.
+	 * @param dbKey
+	 * @param work
+	 * @return The future of the work's result.
+	 * @throws DatabaseException if there is no such database.
+	 * @throws TenantUnavailableException if the database's executor is full.
+	 */
+	public static <T> Future<T> submit(final String dbKey, final Work<T> work)
+	{
+		TenantResolver.resolve(dbKey);
+		if (MDB.getDataSource(dbKey) == null)
+		{
+			throw new DatabaseException("No database found under key '" + dbKey
+					+ "'. Check the configuration of your application.");
+		}
+		MDBAsync async = get(dbKey);
+		Task<T> task = new Task<T>(dbKey, work, TenantBulkhead.currentLane(), StatementTimeout.getRemainingMillis());
+		async.submitted.incrementAndGet();
+		try
+		{
+			async.executor.execute(task);
+		}
+		catch (RejectedExecutionException e)
+		{
+			async.rejected.incrementAndGet();
+			throw new TenantUnavailableException("Database [" + dbKey + "] has too much background work queued ("
+					+ async.executor.getQueue().size() + ")");
+		}
+		return task;
+	}
+
+	/**
+	 * Runs a query on a database in the background.
+	 * @param dbKey
+	 * @param sql
+	 * @param rows Reads the rows of the query.
+	 * @param params The query's parameters.
+	 * @return The future of what was read from the rows.
+	 */
+	public static <T> Future<T> executeQuery(String dbKey, final String sql, final Rows<T> rows, final Object... params)
+	{
+		return submit(dbKey, new Work<T>()
+		{
+			@Override
+			public T run(Connection connection) throws SQLException
+			{
+				PreparedStatement statement = prepare(connection, sql, params);
+				try
+				{
+					ResultSet resultSet = statement.executeQuery();
+					try
+					{
+						return rows.read(resultSet);
+					}
+					finally
+					{
+						resultSet.close();
+					}
+				}
+				finally
+				{
+					statement.close();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Runs an update on a database in the background.
+	 * @param dbKey
+	 * @param sql
+	 * @param params The update's parameters.
+	 * @return The future of the number of rows updated.
+	 */
+	public static Future<Integer> executeUpdate(String dbKey, final String sql, final Object... params)
+	{
+		return submit(dbKey, new Work<Integer>()
+		{
+			@Override
+			public Integer run(Connection connection) throws SQLException
+			{
+				PreparedStatement statement = prepare(connection, sql, params);
+				try
+				{
+					return statement.executeUpdate();
+				}
+				finally
+				{
+					statement.close();
+				}
+			}
+		});
+	}
+
+	private static PreparedStatement prepare(Connection connection, String sql, Object[] params) throws SQLException
+	{
+		PreparedStatement statement = connection.prepareStatement(sql);
+		for (int i = 0; i < params.length; i++)
+		{
+			statement.setObject(i + 1, params[i]);
+		}
+		return statement;
+	}
+
+	/**
+	 * Waits for the results of several futures, within a single timeout for them all.  If one
+	 * fails or the timeout passes, the others are cancelled.
+	 * @param futures
+	 * @param timeoutMillis The time to wait for them all, or zero or less to wait until the deadline
+	 * of the current invocation, if it has one.
+	 * @return The results, in the order of the futures.
+	 * @throws DatabaseException if a future failed or the timeout passed.
+	 */
+	public static <T> List<T> getAll(List<? extends Future<? extends T>> futures, long timeoutMillis)
+	{
+		List<T> results = new ArrayList<T>(futures.size());
+		long deadline = deadline(timeoutMillis);
+		try
+		{
+			for (Future<? extends T> future : futures)
+			{
+				results.add(get(future, deadline));
+			}
+			return results;
+		}
+		finally
+		{
+			if (results.size() < futures.size())
+			{
+				cancel(futures);
+			}
+		}
+	}
+
+	/**
+	 * Waits for the results of several named futures, within a single timeout for them all.  If
+	 * one fails or the timeout passes, the others are cancelled.
+	 * @param futures The futures, e.g. by widget name.
+	 * @param timeoutMillis The time to wait for them all, or zero or less to wait until the deadline
+	 * of the current invocation, if it has one.
+	 * @return The results, by name.
+	 * @throws DatabaseException if a future failed or the timeout passed.
+	 */
+	public static <K, T> Map<K, T> getAll(Map<K, ? extends Future<? extends T>> futures, long timeoutMillis)
+	{
+		Map<K, T> results = new LinkedHashMap<K, T>();
+		long deadline = deadline(timeoutMillis);
+		try
+		{
+			for (Entry<K, ? extends Future<? extends T>> entry : futures.entrySet())
+			{
+				results.put(entry.getKey(), get(entry.getValue(), deadline));
+			}
+			return results;
+		}
+		finally
+		{
+			if (results.size() < futures.size())
+			{
+				cancel(futures.values());
+			}
+		}
+	}
+
+	/**
+	 * Waits for several futures, within a single timeout for them all, without failing: the
+	 * futures not done in time are cancelled.
+	 * @param futures
+	 * @param timeoutMillis
+	 * @return The futures that completed, successfully or not, in time.
+	 */
+	public static <F extends Future<?>> List<F> awaitAll(List<F> futures, long timeoutMillis)
+	{
+		long deadline = deadline(timeoutMillis);
+		List<F> done = new ArrayList<F>(futures.size());
+		for (F future : futures)
+		{
+			Future<?> waited = future;
+			try
+			{
+				get(waited, deadline);
+			}
+			catch (DatabaseException e)
+			{
+				//
+				//	Failed or late; the caller checks the futures.
+				//
+			}
+			if (future.isDone() && !future.isCancelled())
+			{
+				done.add(future);
+			}
+			else
+			{
+				future.cancel(true);
+			}
+		}
+		return done;
+	}
+
+	/**
+	 * The deadline, in System.nanoTime() terms, of a wait with a timeout; 0 for no deadline.
+	 */
+	private static long deadline(long timeoutMillis)
+	{
+		if (timeoutMillis <= 0)
+		{
+			timeoutMillis = StatementTimeout.getRemainingMillis();
+		}
+		return (timeoutMillis < 0 ? 0 : System.nanoTime() + timeoutMillis * 1000000L);
+	}
+
+	private static <T> T get(Future<T> future, long deadline)
+	{
+		try
+		{
+			if (deadline == 0)
+			{
+				return future.get();
+			}
+			return future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+		}
+		catch (TimeoutException e)
+		{
+			throw new DatabaseException("Timed out waiting for background database work", e);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new DatabaseException("Interrupted while waiting for background database work", e);
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+			{
+				throw (RuntimeException) cause;
+			}
+			throw new DatabaseException(cause.getMessage(), cause);
+		}
+	}
+
+	private static void cancel(Iterable<? extends Future<?>> futures)
+	{
+		for (Future<?> future : futures)
+		{
+			future.cancel(true);
+		}
+	}
+
+	/**
+	 * Finds the executor of a database, creating it on first use.
+	 * @param key
+	 * @return
+	 */
+	static MDBAsync get(String key)
+	{
+		MDBAsync async = executors.get(key);
+		if (async == null)
+		{
+			async = new MDBAsync(key);
+			MDBAsync existing = executors.putIfAbsent(key, async);
+			if (existing != null)
+			{
+				async.executor.shutdown();
+				async = existing;
+			}
+		}
+		return async;
+	}
+
+	/**
+	 * @return The executors created so far, by database key.
+	 */
+	static Map<String, MDBAsync> getAll()
+	{
+		return executors;
+	}
+
+	/**
+	 * Stops the executor of a removed database, letting the work already submitted finish.
+	 * @param key
+	 */
+	static void forget(String key)
+	{
+		MDBAsync async = executors.remove(key);
+		if (async != null)
+		{
+			async.executor.shutdown();
+		}
+	}
+
+	/**
+	 * Stops every executor, cancelling the work in progress.
+	 */
+	static void shutdown()
+	{
+		for (MDBAsync async : executors.values())
+		{
+			async.executor.shutdownNow();
+		}
+		executors.clear();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "active " + executor.getActiveCount() + "/" + executor.getMaximumPoolSize() + ", queued "
+				+ executor.getQueue().size() + ", submitted " + submitted.get() + ", failed " + failed.get()
+				+ ", rejected " + rejected.get();
+	}
+
+	/**
+	 * Background work and its future.  It holds its own connection while it runs.
+	 */
+	static class Task<T> extends FutureTask<T>
+	{
+		/**
+		 * The deadline of the invocation that submitted the work, in System.nanoTime() terms, or 0.
+		 */
+		private final long deadline;
+
+		private volatile Thread runner;
+
+		Task(final String dbKey, final Work<T> work, final TenantBulkhead.Lane lane, long remainingMillis)
+		{
+			super(new Callable<T>()
+			{
+				@Override
+				public T call() throws Exception
+				{
+					return run(dbKey, work, lane);
+				}
+			});
+			this.deadline = (remainingMillis < 0 ? 0 : System.nanoTime() + remainingMillis * 1000000L);
+		}
+
+		@Override
+		public void run()
+		{
+			runner = Thread.currentThread();
+			StatementTimeout.begin();
+			if (deadline != 0)
+			{
+				StatementTimeout.setDeadline((deadline - System.nanoTime()) / 1000000L);
+			}
+			try
+			{
+				super.run();
+			}
+			finally
+			{
+				runner = null;
+				StatementTimeout.end();
+			}
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning)
+		{
+			Thread thread = runner;
+			boolean cancelled = super.cancel(mayInterruptIfRunning);
+			if (cancelled && mayInterruptIfRunning && thread != null)
+			{
+				//
+				//	A thread blocked in the driver ignores interrupts.
+				//
+				StatementTimeout.abort(thread);
+			}
+			return cancelled;
+		}
+
+		private static void failed(String dbKey)
+		{
+			MDBAsync async = executors.get(dbKey);
+			if (async != null)
+			{
+				async.failed.incrementAndGet();
+			}
+		}
+
+		private static <T> T run(String dbKey, Work<T> work, TenantBulkhead.Lane lane) throws SQLException
+		{
+			MDBDataSource ds = MDB.getDataSource(dbKey);
+			if (ds == null)
+			{
+				throw new DatabaseException("No database found under key '" + dbKey + "'");
+			}
+			TenantHibernation.wake(dbKey);
+			TenantBulkhead.setLane(lane);
+			try
+			{
+				TenantBulkhead.enter(dbKey);
+				try
+				{
+					Connection connection = ds.getConnection();
+					try
+					{
+						return work.run(connection);
+					}
+					finally
+					{
+						connection.close();
+					}
+				}
+				finally
+				{
+					TenantBulkhead.exit(dbKey);
+				}
+			}
+			catch (SQLException e)
+			{
+				failed(dbKey);
+				throw e;
+			}
+			catch (RuntimeException e)
+			{
+				failed(dbKey);
+				throw e;
+			}
+			finally
+			{
+				TenantBulkhead.setLane(null);
+			}
+		}
+	}
+}
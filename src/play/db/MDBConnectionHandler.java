@@ -0,0 +1,222 @@
+package play.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Intercepts the calls made on a connection handed out by an {@link MDBDataSource}, so that the
+ * statements it creates are instrumented.
+ *
+ * @author dcardon
+ */
+class MDBConnectionHandler implements InvocationHandler, LeakDetector.Reclaimable
+{
+	final MDBDataSource dataSource;
+	final Connection target;
+	Connection proxy;
+
+	/**
+	 * Whether the connection may be parked on its thread when closed, rather than returned to its
+	 * pool.
+	 */
+	private final boolean parkable;
+
+	/**
+	 * The number of statements created by the connection and not closed yet.
+	 */
+	private int openStatements;
+
+	/**
+	 * Set when the holder changed the session state the pool resets on check-in: the transaction
+	 * isolation, catalog, schema, holdability or type map.  The connection then goes back to its
+	 * pool rather than being parked.
+	 */
+	private boolean altered;
+
+	/**
+	 * The open statements created by the connection, which are closed along with it.
+	 */
+	private final List<MDBStatementHandler> statements = new ArrayList<MDBStatementHandler>();
+
+	/**
+	 * The migration counting the connection until it is closed, if any.
+	 */
+	private TenantMigration migration;
+
+	/**
+	 * Set when the leak detector has closed the connection behind its holder.
+	 */
+	private volatile boolean reclaimed;
+
+	/**
+	 * Set when the holder has closed the connection and it was released to its pool or thread.
+	 */
+	private boolean released;
+
+	MDBConnectionHandler(MDBDataSource dataSource, Connection target, boolean parkable, TenantMigration migration)
+	{
+		this.dataSource = dataSource;
+		this.target = target;
+		this.parkable = parkable;
+		this.migration = migration;
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+	{
+		String name = method.getName();
+		if ("equals".equals(name))
+		{
+			return proxy == args[0];
+		}
+		else if ("hashCode".equals(name))
+		{
+			return System.identityHashCode(proxy);
+		}
+		else if (reclaimed || released)
+		{
+			if ("close".equals(name))
+			{
+				return null;
+			}
+			if ("isClosed".equals(name))
+			{
+				return Boolean.TRUE;
+			}
+			if (released)
+			{
+				throw new SQLException("The connection on [" + dataSource.key + "] is closed");
+			}
+			throw new SQLException("The connection on [" + dataSource.key
+					+ "] was held too long and has been reclaimed by the leak detector");
+		}
+		else if ("close".equals(name))
+		{
+			closed();
+			if (parkable)
+			{
+				//
+				//	The pooled connection may be parked and handed out again, so this proxy must
+				//	not reach it any more.
+				//
+				released = true;
+				dataSource.affinity.release(target, openStatements <= 0 && !altered);
+				return null;
+			}
+			return call(method, args);
+		}
+		else if (name.startsWith("set") && ("setTransactionIsolation".equals(name) || "setCatalog".equals(name)
+				|| "setSchema".equals(name) || "setHoldability".equals(name) || "setTypeMap".equals(name)))
+		{
+			altered = true;
+		}
+
+		Object result = call(method, args);
+		if ("createStatement".equals(name))
+		{
+			return wrap(Statement.class, (Statement) result, null);
+		}
+		else if ("prepareStatement".equals(name))
+		{
+			return wrap(PreparedStatement.class, (Statement) result, (String) args[0]);
+		}
+		else if ("prepareCall".equals(name))
+		{
+			return wrap(CallableStatement.class, (Statement) result, (String) args[0]);
+		}
+		return result;
+	}
+
+	/**
+	 * Calls the method on the pooled connection, unwrapping reflection exceptions.
+	 */
+	Object call(Method method, Object[] args) throws Throwable
+	{
+		try
+		{
+			return method.invoke(target, args);
+		}
+		catch (InvocationTargetException e)
+		{
+			throw e.getTargetException();
+		}
+	}
+
+	@Override
+	public void reclaim()
+	{
+		reclaimed = true;
+		closed();
+		if (parkable)
+		{
+			dataSource.affinity.close(target);
+			return;
+		}
+		try
+		{
+			target.close();
+		}
+		catch (SQLException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Stops tracking the connection and the statements it created.
+	 */
+	private synchronized void closed()
+	{
+		TenantMigration counted = migration;
+		migration = null;
+		TenantMigration.checkin(counted);
+		LeakDetector.release(this);
+		synchronized (statements)
+		{
+			for (MDBStatementHandler statement : statements)
+			{
+				LeakDetector.release(statement);
+			}
+			statements.clear();
+		}
+	}
+
+	/**
+	 * Called when one of the connection's statements is closed.
+	 * @param statement
+	 */
+	void closed(MDBStatementHandler statement)
+	{
+		openStatements--;
+		LeakDetector.release(statement);
+		synchronized (statements)
+		{
+			statements.remove(statement);
+		}
+	}
+
+	private Statement wrap(Class<? extends Statement> type, Statement statement, String sql)
+	{
+		MDBStatementHandler handler = new MDBStatementHandler(this, statement, sql);
+		openStatements++;
+		if (LeakDetector.thresholdMillis > 0 && LeakDetector.trackStatements)
+		{
+			synchronized (statements)
+			{
+				statements.add(handler);
+			}
+			LeakDetector.track(dataSource.key, LeakDetector.Kind.STATEMENT, handler);
+		}
+		return (Statement) Proxy.newProxyInstance(MDBConnectionHandler.class.getClassLoader(),
+				new Class[] { type }, handler);
+	}
+}
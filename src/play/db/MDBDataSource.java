@@ -0,0 +1,252 @@
+package play.db;
+
+import java.io.PrintWriter;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+
+import javax.sql.DataSource;
+
+import com.mchange.v2.c3p0.ComboPooledDataSource;
+
+/**
+ * The datasource handed to Hibernate and to MDB for a single database key.  It wraps the pooled
+ * datasource of the key, so that the connections and statements it hands out can be instrumented
+ * per tenant, and so that the underlying pool can be replaced without rebuilding the entity
+ * manager factory.
+ *
+ * @author dcardon
+ */
+public class MDBDataSource implements DataSource
+{
+	/**
+	 * The constructor of the connection proxy class, looked up once rather than on every checkout.
+	 */
+	private static final Constructor<?> CONNECTION_PROXY;
+
+	static
+	{
+		try
+		{
+			CONNECTION_PROXY = Proxy.getProxyClass(MDBDataSource.class.getClassLoader(), Connection.class)
+					.getConstructor(InvocationHandler.class);
+		}
+		catch (NoSuchMethodException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * The database key served by this datasource.
+	 */
+	public final String key;
+
+	/**
+	 * The pool currently serving the key.
+	 */
+	private volatile ComboPooledDataSource delegate;
+
+	/**
+	 * The circuit breaker of the key.
+	 */
+	final TenantHealth health;
+
+	/**
+	 * The connections of the key parked on their threads.
+	 */
+	final ConnectionAffinity affinity;
+
+	MDBDataSource(String key, ComboPooledDataSource delegate)
+	{
+		this.key = key;
+		this.delegate = delegate;
+		this.health = TenantHealth.get(key);
+		this.affinity = new ConnectionAffinity(this);
+	}
+
+	/**
+	 * @return The pool currently serving the key.
+	 */
+	public ComboPooledDataSource getDelegate()
+	{
+		return delegate;
+	}
+
+	/**
+	 * Replaces the pool serving the key.  Connections already handed out keep their original pool.
+	 * @param delegate
+	 */
+	void setDelegate(ComboPooledDataSource delegate)
+	{
+		this.delegate = delegate;
+		ConnectionAffinity.reclaim(affinity);
+	}
+
+	/**
+	 * @return The connections of the key parked on their threads.
+	 */
+	public ConnectionAffinity getAffinity()
+	{
+		return affinity;
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException
+	{
+		//
+		//	Connections are held while a tenant is switched over from this database.
+		//
+		TenantMigration migration = TenantMigration.checkout(key);
+		boolean done = false;
+		try
+		{
+			Connection connection = checkout(migration);
+			done = true;
+			return connection;
+		}
+		finally
+		{
+			if (!done)
+			{
+				TenantMigration.checkin(migration);
+			}
+		}
+	}
+
+	private Connection checkout(TenantMigration migration) throws SQLException
+	{
+		health.check();
+		long start = System.nanoTime();
+		ComboPooledDataSource pool = delegate;
+		Connection connection = null;
+		if (ConnectionAffinity.enabled)
+		{
+			connection = affinity.take(pool);
+			if (connection != null)
+			{
+				DbTimeline.record(DbTimeline.Phase.CHECKOUT, start);
+				return wrap(connection, true, migration);
+			}
+			affinity.beforeCheckout(pool);
+		}
+		try
+		{
+			connection = pool.getConnection();
+			affinity.outstanding.incrementAndGet();
+		}
+		catch (SQLException e)
+		{
+			health.failure(e);
+			throw e;
+		}
+		health.success();
+		DbTimeline.record(DbTimeline.Phase.CHECKOUT, start);
+		return wrap(connection, true, migration);
+	}
+
+	@Override
+	public Connection getConnection(String username, String password) throws SQLException
+	{
+		TenantMigration migration = TenantMigration.checkout(key);
+		boolean done = false;
+		try
+		{
+			Connection connection = wrap(delegate.getConnection(username, password), false, migration);
+			done = true;
+			return connection;
+		}
+		finally
+		{
+			if (!done)
+			{
+				TenantMigration.checkin(migration);
+			}
+		}
+	}
+
+	/**
+	 * Wraps a pooled connection so that its statements are instrumented.
+	 * @param connection
+	 * @param parkable Whether the connection may be parked on its thread once closed.
+	 * @param migration The migration counting the connection, if any.
+	 * @return
+	 */
+	Connection wrap(Connection connection, boolean parkable, TenantMigration migration)
+	{
+		MDBConnectionHandler handler = new MDBConnectionHandler(this, connection, parkable, migration);
+		try
+		{
+			handler.proxy = (Connection) CONNECTION_PROXY.newInstance(handler);
+		}
+		catch (Exception e)
+		{
+			throw new IllegalStateException("Unable to instrument a connection", e);
+		}
+		LeakDetector.track(key, LeakDetector.Kind.CONNECTION, handler);
+		return handler.proxy;
+	}
+
+	@Override
+	public PrintWriter getLogWriter() throws SQLException
+	{
+		return delegate.getLogWriter();
+	}
+
+	@Override
+	public void setLogWriter(PrintWriter out) throws SQLException
+	{
+		delegate.setLogWriter(out);
+	}
+
+	@Override
+	public void setLoginTimeout(int seconds) throws SQLException
+	{
+		delegate.setLoginTimeout(seconds);
+	}
+
+	@Override
+	public int getLoginTimeout() throws SQLException
+	{
+		return delegate.getLoginTimeout();
+	}
+
+	@Override
+	public boolean isWrapperFor(Class<?> iface) throws SQLException
+	{
+		return iface.isInstance(this) || iface.isInstance(delegate);
+	}
+
+	@Override
+	public <T> T unwrap(Class<T> iface) throws SQLException
+	{
+		if (iface.isInstance(this))
+		{
+			return iface.cast(this);
+		}
+		if (iface.isInstance(delegate))
+		{
+			return iface.cast(delegate);
+		}
+		throw new SQLException("Not a wrapper for " + iface.getName());
+	}
+
+	/**
+	 * Required by newer JDBC versions; the pool does not use java.util.logging.
+	 * @return
+	 * @throws SQLFeatureNotSupportedException
+	 */
+	public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException
+	{
+		throw new SQLFeatureNotSupportedException();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "MDBDataSource [" + key + "]: " + delegate.getJdbcUrl();
+	}
+}
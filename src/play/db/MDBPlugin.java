@@ -7,11 +7,14 @@ import java.sql.Connection;
 import java.sql.Driver;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import javax.persistence.Entity;
 import javax.persistence.EntityManagerFactory;
@@ -25,7 +28,10 @@ import play.Logger;
 import play.Play;
 import play.PlayPlugin;
 import play.db.jpa.JPA;
+import play.db.jpa.MJPABulk;
 import play.db.jpa.MJPAPlugin;
+import play.db.jpa.TenantIndex;
+import play.db.jpa.WriteBehindQueue;
 import play.exceptions.JPAException;
 
 import com.mchange.v2.c3p0.ComboPooledDataSource;
@@ -37,7 +43,7 @@ public class MDBPlugin extends PlayPlugin
 {
 
 	private static final String MDB_ALL_KEY = "all";
-	private static final String MDB_CONF_PREFIX = "mdb.";
+	public static final String MDB_CONF_PREFIX = "mdb.";
 	public static final String MDB_DRIVER_PREFIX = MDB_CONF_PREFIX + "driver.";
 	public static final String MDB_URL_PREFIX = MDB_CONF_PREFIX + "url.";
 	public static final String MDB_USER_PREFIX = MDB_CONF_PREFIX + "user.";
@@ -45,29 +51,86 @@ public class MDBPlugin extends PlayPlugin
 	public static final String MDB_POOL_TIMEOUT_PREFIX = MDB_CONF_PREFIX + "pool.timeout.";
 	public static final String MDB_POOL_MAX_PREFIX = MDB_CONF_PREFIX + "pool.maxSize.";
 	public static final String MDB_POOL_MIN_PREFIX = MDB_CONF_PREFIX + "pool.minSize.";
+	public static final String MDB_STATEMENT_TIMEOUT_PREFIX = MDB_CONF_PREFIX + "statement.timeout.";
+	public static final String MDB_ARCHIVE_PREFIX = MDB_CONF_PREFIX + "archive.";
 	public static final String MDB_KEY_PREFIX = MDB_CONF_PREFIX + "key.";
 
+	/**
+	 * Prefixes of module settings, which are not database parameters.
+	 */
+	private static final String[] MDB_SETTINGS_PREFIXES = { SqlStats.SQL_CONF_PREFIX, DbTimeline.TRACE_CONF_PREFIX,
+			LeakDetector.LEAK_CONF_PREFIX, NPlusOneDetector.NPLUSONE_CONF_PREFIX, TenantBulkhead.BULKHEAD_CONF_PREFIX,
+			TenantHealth.CIRCUIT_CONF_PREFIX, TenantWarmup.WARMUP_CONF_PREFIX,
+			TenantHibernation.HIBERNATE_CONF_PREFIX, MJPABulk.BULK_CONF_PREFIX,
+			WriteBehindQueue.WRITEBEHIND_CONF_PREFIX, ShardRing.SHARD_CONF_PREFIX, TenantMigration.MIGRATION_CONF_PREFIX,
+			TenantResolver.CATALOG_CONF_PREFIX, TenantIndex.INDEX_CONF_PREFIX, StatementTimeout.TIMEOUT_CONF_PREFIX,
+			ConnectionAffinity.AFFINITY_CONF_PREFIX, MDBAsync.ASYNC_CONF_PREFIX, TenantExport.EXPORT_CONF_PREFIX,
+			TenantTiering.TIERING_CONF_PREFIX };
+
+	/**
+	 * The name of the tenant catalog setting, mdb.catalog, which is not a database parameter either.
+	 */
+	private static final String MDB_CATALOG_KEY = MDB_CONF_PREFIX + "catalog";
+
+	/**
+	 * The parameters of each connected database, by key, kept to rebuild its pool.
+	 */
+	private static Map<String, DbParameters> parameters = new ConcurrentHashMap<String, DbParameters>();
+
+	/**
+	 * The 'all' entry of the configuration, inherited by the databases added while running.
+	 */
+	private static volatile DbParameters defaults = new DbParameters();
+
 	@Override
 	public void onApplicationStart()
 	{
-		if (changed())
+		SqlStats.configure(Play.configuration);
+		DbTimeline.configure(Play.configuration);
+		DbTimeline.sinks = findTimelineSinks();
+		LeakDetector.configure(Play.configuration);
+		NPlusOneDetector.configure(Play.configuration);
+		TenantBulkhead.configure(Play.configuration);
+		TenantHealth.configure(Play.configuration);
+		TenantWarmup.configure(Play.configuration);
+		TenantHibernation.configure(Play.configuration);
+		MJPABulk.configure(Play.configuration);
+		WriteBehindQueue.configure(Play.configuration);
+		ShardRing.configure(Play.configuration);
+		TenantMigration.configure(Play.configuration);
+		TenantResolver.configure(Play.configuration);
+		TenantIndex.configure(Play.configuration);
+		StatementTimeout.configure(Play.configuration);
+		ConnectionAffinity.configure(Play.configuration);
+		MDBAsync.configure(Play.configuration);
+		TenantExport.configure(Play.configuration);
+		TenantTiering.configure(Play.configuration);
+
+		//
+		//	Parse the configuration once, both to detect changes and to connect.
+		//
+		Map<String, DbParameters> dbMap = new HashMap<String, DbParameters>();
+		try
+		{
+			dbMap = extractDbParameters();
+		}
+		catch (Exception e)
+		{
+			Logger.error(e, "Error collecting data for multiple database plugin");
+		}
+
+		DbParameters allEntry = dbMap.get(MDB_ALL_KEY);
+		if (allEntry == null)
+		{
+			allEntry = new DbParameters();
+		}
+		defaults = allEntry;
+
+		if (changed(dbMap))
 		{
 			MDB.datasources = new HashMap<String, DataSource>();
-			Map<String, DbParameters> dbMap = new HashMap<String, DbParameters>();
-			try
-			{
-				dbMap = extractDbParameters();
-			}
-			catch (Exception e)
-			{
-				Logger.error(e, "Error collecting data for multiple database plugin");
-			}
-			
-			DbParameters allEntry = dbMap.get(MDB_ALL_KEY);
-			if (allEntry == null)
-			{
-				allEntry = new DbParameters();
-			}
+			MDB.wrappers.clear();
+			TenantResolver.clear();
 			
 			for (Entry<String, DbParameters> parm : dbMap.entrySet())
 			{
@@ -98,9 +161,50 @@ public class MDBPlugin extends PlayPlugin
 					Logger.error(e, "Cannot connect to the database [" + parm.getKey() + "]: %s", e.getMessage());
 				}
 			}
+
+			//
+			//	Grow the pools of the busiest databases before the first request.
+			//
+			TenantWarmup.warmPools();
+		}
+
+		//
+		//	Statement timeouts and archives apply without reconnecting.
+		//
+		for (Entry<String, DbParameters> parm : dbMap.entrySet())
+		{
+			if (!MDB_ALL_KEY.equals(parm.getKey()))
+			{
+				StatementTimeout.setDefault(parm.getValue().key, StringUtils.defaultIfEmpty(
+						parm.getValue().statementTimeout, allEntry.statementTimeout));
+				TenantTiering.setArchive(parm.getValue().key, parm.getValue().archive);
+			}
 		}
 	}
 
+	/**
+	 * Instantiates the application classes implementing DbTimelineSink.
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	private static List<DbTimelineSink> findTimelineSinks()
+	{
+		List<DbTimelineSink> sinks = new ArrayList<DbTimelineSink>();
+		for (Class clazz : Play.classloader.getAssignableClasses(DbTimelineSink.class))
+		{
+			try
+			{
+				sinks.add((DbTimelineSink) clazz.newInstance());
+				Logger.debug("Using database timeline sink: %s", clazz.getName());
+			}
+			catch (Exception e)
+			{
+				Logger.error(e, "Unable to instantiate database timeline sink %s", clazz.getName());
+			}
+		}
+		return sinks;
+	}
+
 	/**
 	 * Extracts the database parameters from the configuration file.
 	 * @param dbMap
@@ -115,7 +219,8 @@ public class MDBPlugin extends PlayPlugin
 			if (entry.getKey() instanceof String)
 			{
 				String propKey = (String) entry.getKey();
-				if (propKey == null || !propKey.startsWith(MDB_CONF_PREFIX))
+				if (propKey == null || !propKey.startsWith(MDB_CONF_PREFIX) || MDB_CATALOG_KEY.equals(propKey)
+						|| isSetting(propKey))
 				{
 					continue;
 				}
@@ -139,6 +244,23 @@ public class MDBPlugin extends PlayPlugin
 		return dbMap;
 	}
 
+	/**
+	 * Determines if a configuration key is a module setting rather than a database parameter.
+	 * @param propKey
+	 * @return
+	 */
+	private static boolean isSetting(String propKey)
+	{
+		for (String prefix : MDB_SETTINGS_PREFIXES)
+		{
+			if (propKey.startsWith(prefix))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
 	/**
 	 * @param entry
 	 * @param propKey
@@ -179,6 +301,14 @@ public class MDBPlugin extends PlayPlugin
 		{
 			mapEntry.poolMinSize = propValue;
 		}
+		else if (propKey.startsWith(MDB_STATEMENT_TIMEOUT_PREFIX))
+		{
+			mapEntry.statementTimeout = propValue;
+		}
+		else if (propKey.startsWith(MDB_ARCHIVE_PREFIX))
+		{
+			mapEntry.archive = propValue;
+		}
 		else
 		{
 			Logger.warn("Unrecognized MDB key: " + propKey);
@@ -221,16 +351,136 @@ public class MDBPlugin extends PlayPlugin
 			out.println("Max pool size: " + datasource.getMaxPoolSize());
 			out.println("Initial pool size: " + datasource.getInitialPoolSize());
 			out.println("Checkout timeout: " + datasource.getCheckoutTimeout());
+			out.println("Health: " + TenantHealth.get(entry.getKey()));
+			out.println("Bulkhead: " + TenantBulkhead.get(entry.getKey()));
+			out.println("Leaks: " + LeakDetector.getTotals(entry.getKey()));
+			out.println("Hibernation: " + TenantHibernation.get(entry.getKey()));
+			out.println("Statement timeouts: " + StatementTimeout.get(entry.getKey()));
+			MDBDataSource wrapper = MDB.getDataSource(entry.getKey());
+			if (ConnectionAffinity.enabled && wrapper != null)
+			{
+				out.println("Affinity: " + wrapper.getAffinity());
+			}
+			MDBAsync async = MDBAsync.getAll().get(entry.getKey());
+			if (async != null)
+			{
+				out.println("Async: " + async);
+			}
+			if (TenantTiering.getArchive(entry.getKey()) != null)
+			{
+				out.println("Tiering: " + TenantTiering.get(entry.getKey()));
+			}
+			WriteBehindQueue queue = WriteBehindQueue.getAll().get(entry.getKey());
+			if (queue != null)
+			{
+				out.println("Write-behind: " + queue);
+			}
+			out.println("");
+		}
+
+		if (ShardRing.isEnabled())
+		{
+			out.println("Shards: " + ShardRing.getShards() + " (" + ShardRing.getOverrides().size()
+					+ " tenants pinned)");
+			out.println("");
+		}
+
+		if (!TenantIndex.getAll().isEmpty())
+		{
+			out.println("Tenant indexes:");
+			out.println("~~~~~~~~~~~");
+			for (TenantIndex index : TenantIndex.getAll().values())
+			{
+				out.println(index);
+			}
+			out.println("");
+		}
+
+		if (TenantResolver.isEnabled())
+		{
+			out.println("Tenant catalog: " + TenantResolver.getSummary());
+			out.println("");
+		}
+
+		List<TenantMigration> migrations = TenantMigration.getAll();
+		if (!migrations.isEmpty())
+		{
+			out.println("Tenant migrations:");
+			out.println("~~~~~~~~~~~");
+			for (TenantMigration migration : migrations)
+			{
+				out.println(migration);
+			}
+			out.println("");
+		}
+
+		List<TenantExport> exports = TenantExport.getAll();
+		if (!exports.isEmpty())
+		{
+			out.println("Tenant exports:");
+			out.println("~~~~~~~~~~~");
+			for (TenantExport export : exports)
+			{
+				out.println(export);
+			}
+			out.println("");
+		}
+
+		List<SqlStats.Aggregate> top = getTopQueries(10);
+		if (!top.isEmpty())
+		{
+			out.println("Top statements (by total time):");
+			out.println("~~~~~~~~~~~");
+			for (SqlStats.Aggregate aggregate : top)
+			{
+				out.println(aggregate);
+			}
+			out.println("");
+		}
+
+		List<NPlusOneDetector.Finding> findings = NPlusOneDetector.getFindings();
+		if (!findings.isEmpty())
+		{
+			out.println("Repeated selects (possible N+1 queries):");
+			out.println("~~~~~~~~~~~");
+			for (NPlusOneDetector.Finding finding : findings.subList(0, Math.min(10, findings.size())))
+			{
+				out.println(finding);
+			}
 			out.println("");
 		}
 		out.println("=================================================");
 		return sw.toString();
 	}
 
+	/**
+	 * Finds the statement shapes with the most total execution time across all databases.
+	 * @param n The number of statement shapes to return.
+	 * @return
+	 */
+	public static List<SqlStats.Aggregate> getTopQueries(int n)
+	{
+		return SqlStats.top(n);
+	}
+
 	@Override
 	public void invocationFinally()
 	{
 		MDB.close();
+		TenantBulkhead.setLane(null);
+	}
+
+	@Override
+	public void onApplicationStop()
+	{
+		TenantWarmup.save(MJPAPlugin.factoryMap);
+		TenantResolver.close();
+		MDBAsync.shutdown();
+		TenantExport.shutdown();
+		TenantTiering.shutdown();
+		TenantIndex.shutdown();
+		ConnectionAffinity.reclaim(null);
+		MDBTasks.shutdown();
 	}
 
 	/**
@@ -248,6 +498,12 @@ public class MDBPlugin extends PlayPlugin
 		public String poolTimeout;
 		public String poolMaxSize;
 		public String poolMinSize;
+		public String statementTimeout;
+
+		/**
+		 * The key of the database's archive, which is not inherited: each database has its own.
+		 */
+		public String archive;
 		public void inherit(DbParameters allEntry)
 		{
 			this.driver = StringUtils.defaultIfEmpty(this.driver, allEntry.driver);
@@ -257,6 +513,23 @@ public class MDBPlugin extends PlayPlugin
 			this.poolMinSize = StringUtils.defaultIfEmpty(this.poolMinSize, allEntry.poolMinSize);
 			this.poolTimeout = StringUtils.defaultIfEmpty(this.poolTimeout, allEntry.poolTimeout);
 			this.url = StringUtils.defaultIfEmpty(this.url, allEntry.url);
+			this.statementTimeout = StringUtils.defaultIfEmpty(this.statementTimeout, allEntry.statementTimeout);
+		}
+		public boolean sameAs(DbParameters other)
+		{
+			return samePool(other) && StringUtils.equals(statementTimeout, other.statementTimeout)
+					&& StringUtils.equals(archive, other.archive);
+		}
+		/**
+		 * @return Whether the other parameters would build the same pool.
+		 */
+		public boolean samePool(DbParameters other)
+		{
+			return StringUtils.equals(url, other.url) && StringUtils.equals(driver, other.driver)
+					&& StringUtils.equals(user, other.user) && StringUtils.equals(pass, other.pass)
+					&& StringUtils.equals(poolTimeout, other.poolTimeout)
+					&& StringUtils.equals(poolMaxSize, other.poolMaxSize)
+					&& StringUtils.equals(poolMinSize, other.poolMinSize);
 		}
 	}
 
@@ -268,7 +541,8 @@ public class MDBPlugin extends PlayPlugin
 	private static void makeConnection(DbParameters parms) throws Exception
 	{
 		ComboPooledDataSource ds = makeDatasource(parms);
-		MDB.datasources.put(parms.key, ds);
+		MDB.register(parms.key, ds);
+		parameters.put(parms.key, parms);
 		Connection c = null;
 		try
 		{
@@ -284,6 +558,108 @@ public class MDBPlugin extends PlayPlugin
 		Logger.info("Connected to %s", ds.getJdbcUrl());
 	}
 
+	/**
+	 * Replaces the pool of a database with a new one built from the same parameters.  The old pool
+	 * is closed after a delay, so that connections still checked out from it can be returned.
+	 * @param key
+	 * @return False if the database's parameters are unknown.
+	 * @throws Exception if the database cannot be reached.
+	 */
+	static boolean rebuildPool(String key) throws Exception
+	{
+		DbParameters parms = parameters.get(key);
+		if (parms == null)
+		{
+			return false;
+		}
+		ComboPooledDataSource ds = makeDatasource(parms);
+		DataSource old = MDB.datasources.get(key);
+		MDB.register(key, ds);
+		if (old instanceof ComboPooledDataSource)
+		{
+			closeLater((ComboPooledDataSource) old);
+		}
+		Logger.info("Rebuilt the pool of database [%s]", key);
+		return true;
+	}
+
+	/**
+	 * Opens a new pool for a database whose pool was closed by hibernation.
+	 * @param key
+	 * @return The instrumented datasource of the database, or null if its parameters are unknown.
+	 * @throws Exception
+	 */
+	static MDBDataSource reopenPool(String key) throws Exception
+	{
+		DbParameters parms = parameters.get(key);
+		if (parms == null)
+		{
+			return null;
+		}
+		return MDB.register(key, makeDatasource(parms));
+	}
+
+	/**
+	 * Switches a database key over to the server of another database: the key gets a new pool
+	 * built from the other database's parameters, and its old pool is closed after a delay.  Its
+	 * entity manager factory is kept, as it uses the key's instrumented datasource.
+	 * @param key
+	 * @param targetKey
+	 * @throws Exception
+	 */
+	static void movePool(String key, String targetKey) throws Exception
+	{
+		DbParameters target = parameters.get(targetKey);
+		if (target == null)
+		{
+			throw new IllegalStateException("Unknown database [" + targetKey + "]");
+		}
+		DbParameters parms = new DbParameters();
+		parms.key = key;
+		DbParameters current = parameters.get(key);
+		if (current != null)
+		{
+			//
+			//	The key keeps its own statement timeout and archive on the new server.
+			//
+			parms.statementTimeout = current.statementTimeout;
+			parms.archive = current.archive;
+		}
+		parms.inherit(target);
+		ComboPooledDataSource ds = makeDatasource(parms);
+		DataSource old = MDB.datasources.get(key);
+		MDB.register(key, ds);
+		parameters.put(key, parms);
+		if (old instanceof ComboPooledDataSource)
+		{
+			closeLater((ComboPooledDataSource) old);
+		}
+		Logger.info("Database [%s] now uses the server of [%s]: %s", key, targetKey, ds.getJdbcUrl());
+	}
+
+	/**
+	 * Closes a pool after a delay, leaving time for its checked-out connections to be returned.
+	 * @param pool
+	 */
+	static void closeLater(final ComboPooledDataSource pool)
+	{
+		MDBTasks.get().schedule(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					pool.close();
+				}
+				catch (Exception e)
+				{
+					Logger.warn("Error closing replaced pool %s: %s", pool.getJdbcUrl(), e.getMessage());
+				}
+			}
+		}, 60, TimeUnit.SECONDS);
+	}
+
 	/**
 	 * @param parms
 	 * @return
@@ -346,20 +722,11 @@ public class MDBPlugin extends PlayPlugin
 
 	/**
 	 * Determine if the datasource(s) have changed.
+	 * @param dbMap The database parameters extracted from the configuration.
 	 * @return
 	 */
-	private static boolean changed()
+	private static boolean changed(Map<String, DbParameters> dbMap)
 	{
-		Map<String, DbParameters> dbMap = extractDbParameters();
-		//
-		//	Get the 'all' entry
-		//
-		DbParameters allEntry = dbMap.get(MDB_ALL_KEY);
-		if (allEntry == null)
-		{
-			allEntry = new DbParameters();
-		}
-		
 		boolean hasChanged = false;
 		
 		//
@@ -423,80 +790,189 @@ public class MDBPlugin extends PlayPlugin
 	 * Adds a database to the application server while it's running.
 	 * @param dbParms
 	 */
-	@SuppressWarnings("unchecked")
 	public static void addDatabase(Map<String, String> dbParms)
 	{
-		Map<String, DbParameters> dbMap = extractDbParameters();
-		DbParameters allEntry = dbMap.get(MDB_ALL_KEY);
-		if (allEntry == null)
-		{
-			allEntry = new DbParameters();
-		}
-		
 		DbParameters dbParm = new DbParameters();
 		for (Entry<String, String> entry : dbParms.entrySet())
 		{
 			applyParameter(entry.getValue(), entry.getKey(), dbParm);
 		}
-		
+		try
+		{
+			addDatabase(dbParm);
+		}
+		catch (Exception e)
+		{
+			Logger.error(e, "Error adding database: " + dbParms);
+		}
+	}
+
+	/**
+	 * Adds a database found in the tenant catalog.
+	 * @param key
+	 * @param catalogParms The parameters named without the mdb. prefix and the key, e.g. url.
+	 * @throws Exception if the database cannot be connected to.
+	 */
+	static void addDatabase(String key, Map<String, String> catalogParms) throws Exception
+	{
+		addDatabase(fromCatalog(key, catalogParms));
+	}
+
+	private static DbParameters fromCatalog(String key, Map<String, String> catalogParms)
+	{
+		DbParameters dbParm = new DbParameters();
+		dbParm.key = key;
+		for (Entry<String, String> entry : catalogParms.entrySet())
+		{
+			applyParameter(entry.getValue(), MDB_CONF_PREFIX + entry.getKey() + "." + key, dbParm);
+		}
+		return dbParm;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void addDatabase(DbParameters dbParm) throws Exception
+	{
 		//
 		//	Inherit from the 'all' entry.
 		//
-		dbParm.inherit(allEntry);
+		dbParm.inherit(defaults);
 		
+		ComboPooledDataSource ds = makeDatasource(dbParm);
+		MDBDataSource wrapper = MDB.register(dbParm.key, ds);
+		parameters.put(dbParm.key, dbParm);
+		StatementTimeout.setDefault(dbParm.key, dbParm.statementTimeout);
+		TenantTiering.setArchive(dbParm.key, dbParm.archive);
+		Connection c = null;
 		try
 		{
-			ComboPooledDataSource ds = makeDatasource(dbParm);
-			synchronized (MDB.datasources)
+			c = ds.getConnection();
+			
+			List<Class> classes = Play.classloader.getAnnotatedClasses(Entity.class);
+			if (classes.isEmpty()
+					&& Play.configuration.getProperty("jpa.entities", "").equals(""))
 			{
-				MDB.datasources.put(dbParm.key, ds);
+				return;
 			}
-			Connection c = null;
+			//
+			//	Now, add the datasource into the MJPAPlugin
+			//
+			Ejb3Configuration cfg = MJPAPlugin.buildEjbConfiguration(classes, wrapper);
+			
+			Logger.trace("Initializing JPA ...");
 			try
 			{
-				c = ds.getConnection();
+				EntityManagerFactory factory = cfg.buildEntityManagerFactory(); 
+				JPA.entityManagerFactory = factory;
 				
-				List<Class> classes = Play.classloader.getAnnotatedClasses(Entity.class);
-				if (classes.isEmpty()
-						&& Play.configuration.getProperty("jpa.entities", "").equals(""))
+				synchronized (MJPAPlugin.factoryMap)
 				{
-					return;
+					MJPAPlugin.factoryMap.put(dbParm.key, factory);
 				}
-				//
-				//	Now, add the datasource into the MJPAPlugin
-				//
-				Ejb3Configuration cfg = MJPAPlugin.buildEjbConfiguration(classes, ds);
-				
-				Logger.trace("Initializing JPA ...");
-				try
+				if (!TenantIndex.getAll().isEmpty())
 				{
-					EntityManagerFactory factory = cfg.buildEntityManagerFactory(); 
-					JPA.entityManagerFactory = factory;
-					
-					synchronized (MJPAPlugin.factoryMap)
+					//
+					//	Index the database in the background, rather than in the request connecting it.
+					//
+					final String key = dbParm.key;
+					final EntityManagerFactory indexed = factory;
+					MDBTasks.get().execute(new Runnable()
 					{
-						MJPAPlugin.factoryMap.put(dbParm.key, factory);
-					}
-				}
-				catch (PersistenceException e)
-				{
-					throw new JPAException(e.getMessage(), e.getCause() != null
-							? e.getCause() : e);
+						@Override
+						public void run()
+						{
+							if (indexed.isOpen())
+							{
+								TenantIndex.build(key, indexed);
+							}
+						}
+					});
 				}
-				
 			}
-			finally
+			catch (PersistenceException e)
 			{
-				if (c != null)
-				{
-					c.close();
-				}
+				throw new JPAException(e.getMessage(), e.getCause() != null
+						? e.getCause() : e);
 			}
-			Logger.info("Connected to %s", ds.getJdbcUrl());
+			
 		}
-		catch (Exception e)
+		finally
 		{
-			Logger.error(e, "Error adding database: " + dbParms);
+			if (c != null)
+			{
+				c.close();
+			}
+		}
+		Logger.info("Connected to %s", ds.getJdbcUrl());
+	}
+
+	/**
+	 * Updates the parameters of a database found in the tenant catalog, rebuilding its pool if
+	 * they changed.
+	 * @param key
+	 * @param catalogParms
+	 * @return Whether the parameters changed.
+	 * @throws Exception if the database cannot be connected to with its new parameters.
+	 */
+	static boolean updateDatabase(String key, Map<String, String> catalogParms) throws Exception
+	{
+		DbParameters dbParm = fromCatalog(key, catalogParms);
+		dbParm.inherit(defaults);
+		StatementTimeout.setDefault(key, dbParm.statementTimeout);
+		TenantTiering.setArchive(key, dbParm.archive);
+		DbParameters current = parameters.get(key);
+		if (current != null && current.sameAs(dbParm))
+		{
+			return false;
+		}
+		parameters.put(key, dbParm);
+
+		//
+		//	A new statement timeout or archive needs no new pool, and a hibernated database gets
+		//	its new pool when it wakes up.
+		//
+		if ((current == null || !current.samePool(dbParm)) && !TenantHibernation.get(key).isHibernated())
+		{
+			rebuildPool(key);
+		}
+		return true;
+	}
+
+	/**
+	 * Removes a database from the application server while it's running.  Its entity manager
+	 * factory is closed at once, and its pool after a delay.  Its values stay in the tenant indexes,
+	 * as the database may only be disconnected.
+	 * @param key
+	 */
+	static void removeDatabase(String key)
+	{
+		EntityManagerFactory factory;
+		synchronized (MJPAPlugin.factoryMap)
+		{
+			factory = MJPAPlugin.factoryMap.remove(key);
+		}
+		DataSource old;
+		synchronized (MDB.datasources)
+		{
+			old = MDB.datasources.remove(key);
+			MDBDataSource wrapper = MDB.wrappers.remove(key);
+			if (wrapper != null)
+			{
+				ConnectionAffinity.reclaim(wrapper.affinity);
+			}
+		}
+		parameters.remove(key);
+		TenantHibernation.forget(key);
+		StatementTimeout.forget(key);
+		MDBAsync.forget(key);
+		TenantTiering.forget(key);
+		if (factory != null && factory.isOpen())
+		{
+			factory.close();
+		}
+		if (old instanceof ComboPooledDataSource)
+		{
+			closeLater((ComboPooledDataSource) old);
 		}
+		Logger.info("Removed database [%s]", key);
 	}
 }
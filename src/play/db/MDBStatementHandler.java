@@ -0,0 +1,204 @@
+package play.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Intercepts the calls made on an instrumented statement, timing its executions and counting the
+ * rows they return or update.
+ *
+ * @author dcardon
+ */
+class MDBStatementHandler implements InvocationHandler, LeakDetector.Reclaimable
+{
+	final MDBConnectionHandler connection;
+	final Statement target;
+
+	/**
+	 * The SQL of a prepared statement, or the last SQL added to a batch.
+	 */
+	String sql;
+
+	/**
+	 * The timeout set by the application or by Hibernate, in seconds, and the one last handed to
+	 * the driver.
+	 */
+	int queryTimeout;
+	int appliedTimeout;
+
+	/**
+	 * The aggregate of the last execution, which receives the rows of its result set.
+	 */
+	private SqlStats.Aggregate aggregate;
+
+	/**
+	 * Set on the first close, so that closing the statement again is not counted again.
+	 */
+	private boolean closed;
+
+	MDBStatementHandler(MDBConnectionHandler connection, Statement target, String sql)
+	{
+		this.connection = connection;
+		this.target = target;
+		this.sql = sql;
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+	{
+		String name = method.getName();
+		if (name.startsWith("execute"))
+		{
+			return execute(proxy, method, args);
+		}
+		if ("addBatch".equals(name) && args != null && args.length == 1)
+		{
+			sql = (String) args[0];
+		}
+		else if ("setQueryTimeout".equals(name))
+		{
+			queryTimeout = ((Integer) args[0]).intValue();
+			appliedTimeout = queryTimeout;
+		}
+		else if ("getConnection".equals(name))
+		{
+			return connection.proxy;
+		}
+		else if ("close".equals(name))
+		{
+			if (!closed)
+			{
+				closed = true;
+				connection.closed(this);
+			}
+		}
+		else if ("equals".equals(name))
+		{
+			return proxy == args[0];
+		}
+		else if ("hashCode".equals(name))
+		{
+			return System.identityHashCode(proxy);
+		}
+		Object result = call(method, args);
+		if ("getResultSet".equals(name) && result != null)
+		{
+			return wrap(proxy, (ResultSet) result, aggregate);
+		}
+		return result;
+	}
+
+	private Object execute(Object proxy, Method method, Object[] args) throws Throwable
+	{
+		String statementSql = (args != null && args.length > 0 && args[0] instanceof String) ? (String) args[0] : sql;
+		StatementTimeout.Running timeout = StatementTimeout.start(this);
+		long start = System.nanoTime();
+		Object result;
+		try
+		{
+			result = call(method, args);
+		}
+		catch (Throwable e)
+		{
+			StatementTimeout.finish(timeout, e);
+			SqlStats.record(connection.dataSource.key, statementSql, System.nanoTime() - start, 0);
+			DbTimeline.record(DbTimeline.Phase.STATEMENT, start);
+			throw e;
+		}
+		StatementTimeout.finish(timeout, null);
+		long elapsed = System.nanoTime() - start;
+		DbTimeline.record(DbTimeline.Phase.STATEMENT, start);
+		NPlusOneDetector.record(connection.dataSource.key, statementSql);
+
+		long rows = 0;
+		if (result instanceof Integer)
+		{
+			rows = ((Integer) result).intValue();
+		}
+		else if (result instanceof int[])
+		{
+			for (int count : (int[]) result)
+			{
+				rows += Math.max(count, 0);
+			}
+		}
+		aggregate = SqlStats.record(connection.dataSource.key, statementSql, elapsed, rows);
+		if (result instanceof ResultSet)
+		{
+			return wrap(proxy, (ResultSet) result, aggregate);
+		}
+		return result;
+	}
+
+	/**
+	 * Wraps a result set, so that the rows read from it are added to the statement's aggregate.
+	 */
+	private Object wrap(final Object statement, final ResultSet resultSet, final SqlStats.Aggregate aggregate)
+	{
+		if (aggregate == null)
+		{
+			return resultSet;
+		}
+		return Proxy.newProxyInstance(MDBStatementHandler.class.getClassLoader(),
+				new Class[] { ResultSet.class }, new InvocationHandler()
+				{
+					private long rows;
+
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+					{
+						String name = method.getName();
+						if ("getStatement".equals(name))
+						{
+							return statement;
+						}
+						Object result = call(resultSet, method, args);
+						if ("next".equals(name) && Boolean.TRUE.equals(result))
+						{
+							rows++;
+						}
+						else if ("close".equals(name) && rows > 0)
+						{
+							aggregate.addRows(rows);
+							rows = 0;
+						}
+						return result;
+					}
+				});
+	}
+
+	@Override
+	public void reclaim()
+	{
+		try
+		{
+			target.close();
+		}
+		catch (SQLException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
+	private Object call(Method method, Object[] args) throws Throwable
+	{
+		return call(target, method, args);
+	}
+
+	static Object call(Object target, Method method, Object[] args) throws Throwable
+	{
+		try
+		{
+			return method.invoke(target, args);
+		}
+		catch (InvocationTargetException e)
+		{
+			throw e.getTargetException();
+		}
+	}
+}
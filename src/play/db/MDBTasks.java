@@ -0,0 +1,93 @@
+package play.db;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import play.Logger;
+
+/**
+ * The scheduler running the module's background tasks (leak checks, health probes and so on).
+ * Its threads are daemons, so they never keep the server alive.
+ *
+ * @author dcardon
+ */
+public class MDBTasks
+{
+	private static ScheduledExecutorService scheduler;
+
+	/**
+	 * @return The scheduler, created on first use.
+	 */
+	public static synchronized ScheduledExecutorService get()
+	{
+		if (scheduler == null)
+		{
+			scheduler = Executors.newScheduledThreadPool(2, daemonThreads("mdb-tasks"));
+		}
+		return scheduler;
+	}
+
+	/**
+	 * Runs a task periodically, logging (rather than propagating) its failures so that a failed run
+	 * does not cancel the following ones.
+	 * @param name
+	 * @param task
+	 * @param periodMillis
+	 * @return The future of the task, which may be used to cancel it.
+	 */
+	public static ScheduledFuture<?> schedule(final String name, final Runnable task, long periodMillis)
+	{
+		return get().scheduleWithFixedDelay(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					task.run();
+				}
+				catch (Throwable e)
+				{
+					Logger.error(e, "Error in background task %s", name);
+				}
+			}
+		}, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops the scheduler and its tasks.
+	 */
+	public static synchronized void shutdown()
+	{
+		if (scheduler != null)
+		{
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+
+	/**
+	 * Creates a factory of named daemon threads.
+	 * @param prefix
+	 * @return
+	 */
+	public static ThreadFactory daemonThreads(final String prefix)
+	{
+		return new ThreadFactory()
+		{
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, prefix + "-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+}
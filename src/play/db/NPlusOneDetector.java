@@ -0,0 +1,266 @@
+package play.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import play.Logger;
+import play.Play;
+
+/**
+ * Detects N+1 query patterns: invocations that run the same select (by statement shape) many
+ * times, typically by lazily loading the associations of a list of entities one by one.  The
+ * statements of each watched invocation are counted per shape, and the shapes that reach the
+ * threshold are logged and kept as findings with their action and tenant.
+ *
+ * @author dcardon
+ */
+public class NPlusOneDetector
+{
+	public static final String NPLUSONE_CONF_PREFIX = MDBPlugin.MDB_CONF_PREFIX + "nplusone.";
+
+	/**
+	 * The detection modes: off, every invocation (dev) or a sample of invocations.
+	 */
+	public enum Mode
+	{
+		OFF, DEV, SAMPLE
+	}
+
+	public static volatile Mode mode = Mode.OFF;
+
+	/**
+	 * The fraction of invocations watched in SAMPLE mode.
+	 */
+	public static volatile double sampleRate = 0.01;
+
+	/**
+	 * The number of executions of one select shape in one invocation that is reported.
+	 */
+	public static volatile int threshold = 10;
+
+	/**
+	 * The maximum number of findings kept.
+	 */
+	private static final int MAX_FINDINGS = 500;
+
+	private static final ConcurrentMap<String, Finding> findings = new ConcurrentHashMap<String, Finding>();
+
+	private static final AtomicLong invocations = new AtomicLong();
+
+	private static final ThreadLocal<Watch> local = new ThreadLocal<Watch>()
+	{
+		@Override
+		protected Watch initialValue()
+		{
+			return new Watch();
+		}
+	};
+
+	/**
+	 * Reads the mdb.nplusone.* settings.  Detection is on for every invocation in dev mode and off
+	 * in prod mode unless configured.
+	 * @param configuration
+	 */
+	public static void configure(Properties configuration)
+	{
+		String defaultMode = (Play.mode == Play.Mode.DEV ? "dev" : "off");
+		mode = Mode.valueOf(configuration.getProperty(NPLUSONE_CONF_PREFIX + "mode", defaultMode).toUpperCase());
+		sampleRate = Double.parseDouble(configuration.getProperty(NPLUSONE_CONF_PREFIX + "sampleRate", "0.01"));
+		threshold = Integer.parseInt(configuration.getProperty(NPLUSONE_CONF_PREFIX + "threshold", "10"));
+	}
+
+	/**
+	 * Starts watching the current thread's invocation, if it is selected by the mode.
+	 * @param action The action being invoked, or null for jobs.
+	 */
+	public static void begin(String action)
+	{
+		if (mode == Mode.OFF)
+		{
+			return;
+		}
+		Watch watch = local.get();
+		watch.counts.clear();
+		watch.action = action;
+		watch.active = (mode == Mode.DEV || (invocations.incrementAndGet() % Math.max(1, Math.round(1 / sampleRate)) == 0));
+	}
+
+	/**
+	 * Counts a statement executed by the current thread.
+	 * @param tenant
+	 * @param sql
+	 */
+	static void record(String tenant, String sql)
+	{
+		if (mode == Mode.OFF || sql == null)
+		{
+			return;
+		}
+		Watch watch = local.get();
+		if (!watch.active)
+		{
+			return;
+		}
+		String shape = SqlStats.shapeOf(sql);
+		if (!shape.regionMatches(true, 0, "select", 0, 6))
+		{
+			return;
+		}
+		String key = tenant + '\n' + shape;
+		int[] count = watch.counts.get(key);
+		if (count == null)
+		{
+			count = new int[1];
+			watch.counts.put(key, count);
+		}
+		count[0]++;
+	}
+
+	/**
+	 * Ends the watch of the current thread's invocation, reporting the repeated selects.
+	 */
+	public static void end()
+	{
+		if (mode == Mode.OFF)
+		{
+			return;
+		}
+		Watch watch = local.get();
+		if (!watch.active)
+		{
+			return;
+		}
+		watch.active = false;
+		for (Entry<String, int[]> entry : watch.counts.entrySet())
+		{
+			int count = entry.getValue()[0];
+			if (count < threshold)
+			{
+				continue;
+			}
+			String key = entry.getKey();
+			int split = key.indexOf('\n');
+			report(watch.action, key.substring(0, split), key.substring(split + 1), count);
+		}
+		watch.counts.clear();
+	}
+
+	private static void report(String action, String tenant, String shape, int count)
+	{
+		String name = (action == null ? "(job)" : action);
+		Logger.warn("Possible N+1 queries on [%s] in %s: %s executions of: %s", tenant, name, count, shape);
+
+		String key = name + '\n' + tenant + '\n' + shape;
+		Finding finding = findings.get(key);
+		if (finding == null)
+		{
+			if (findings.size() >= MAX_FINDINGS)
+			{
+				return;
+			}
+			finding = new Finding(name, tenant, shape);
+			Finding existing = findings.putIfAbsent(key, finding);
+			if (existing != null)
+			{
+				finding = existing;
+			}
+		}
+		finding.occurrences.incrementAndGet();
+		long max = finding.maxCount.get();
+		while (count > max && !finding.maxCount.compareAndSet(max, count))
+		{
+			max = finding.maxCount.get();
+		}
+	}
+
+	/**
+	 * @return The findings, the most frequent first.
+	 */
+	public static List<Finding> getFindings()
+	{
+		//
+		//	The counts keep growing while they are sorted: sort a snapshot of them, so that the
+		//	order stays consistent.
+		//
+		List<Object[]> counts = new ArrayList<Object[]>();
+		for (Finding finding : findings.values())
+		{
+			counts.add(new Object[] { finding, Long.valueOf(finding.occurrences.get()) });
+		}
+		Collections.sort(counts, new Comparator<Object[]>()
+		{
+			@Override
+			public int compare(Object[] a, Object[] b)
+			{
+				return ((Long) b[1]).compareTo((Long) a[1]);
+			}
+		});
+		List<Finding> all = new ArrayList<Finding>(counts.size());
+		for (Object[] count : counts)
+		{
+			all.add((Finding) count[0]);
+		}
+		return all;
+	}
+
+	/**
+	 * Forgets all findings.
+	 */
+	public static void reset()
+	{
+		findings.clear();
+	}
+
+	/**
+	 * The statement counts of a watched invocation.
+	 */
+	private static class Watch
+	{
+		final Map<String, int[]> counts = new HashMap<String, int[]>();
+		String action;
+		boolean active;
+	}
+
+	/**
+	 * A select repeated within the invocations of one action on one tenant.
+	 */
+	public static class Finding
+	{
+		public final String action;
+		public final String tenant;
+		public final String shape;
+
+		/**
+		 * The number of invocations in which the select reached the threshold.
+		 */
+		public final AtomicLong occurrences = new AtomicLong();
+
+		/**
+		 * The largest number of executions seen in a single invocation.
+		 */
+		public final AtomicLong maxCount = new AtomicLong();
+
+		Finding(String action, String tenant, String shape)
+		{
+			this.action = action;
+			this.tenant = tenant;
+			this.shape = shape;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "[" + tenant + "] " + action + ": " + occurrences + " invocations, up to " + maxCount
+					+ " executions of: " + shape;
+		}
+	}
+}
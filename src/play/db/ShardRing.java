@@ -0,0 +1,289 @@
+package play.db;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.lang.StringUtils;
+
+import play.Logger;
+
+/**
+ * Maps logical tenants onto a few physical databases (shards).  Each tenant is placed on the ring
+ * of shards by the MD5 hash of its id, each shard being placed on the ring many times (virtual
+ * nodes), so that tenants spread evenly and adding a shard only moves the tenants it takes over.
+ * An override table pins tenants to a given database, e.g. after they were moved.
+ * <p>
+ * Tenants sharing a database are told apart by a discriminator column.  If the entity manager
+ * factory defines a Hibernate filter named "tenant" with a "tenant" parameter, it is enabled for
+ * every transaction with the current tenant's id.
+ *
+ * @author dcardon
+ */
+public class ShardRing
+{
+	public static final String SHARD_CONF_PREFIX = MDBPlugin.MDB_CONF_PREFIX + "shard.";
+
+	public static final String OVERRIDE_PREFIX = SHARD_CONF_PREFIX + "override.";
+
+	/**
+	 * The name of the Hibernate filter, and of its parameter, enabled with the tenant's id.
+	 */
+	public static final String TENANT_FILTER = "tenant";
+
+	/**
+	 * The number of points of each shard on the ring.
+	 */
+	public static volatile int virtualNodes = 160;
+
+	/**
+	 * The maximum number of tenant routes cached.
+	 */
+	private static final int MAX_CACHED = 10000;
+
+	/**
+	 * The ring, from hash to shard key, with the routes it gave.  It is replaced, never modified,
+	 * when shards change, so that a route cached while the shards change is cached in the old ring.
+	 */
+	private static volatile Ring ring = new Ring(new TreeMap<Long, String>());
+
+	private static volatile List<String> shards = Collections.emptyList();
+
+	private static final Map<String, String> overrides = new ConcurrentHashMap<String, String>();
+
+	private static final ThreadLocal<String> tenant = new ThreadLocal<String>();
+
+	/**
+	 * Reads the mdb.shard.* settings: the shard keys, the virtual nodes and the overrides.
+	 * @param configuration
+	 */
+	public static synchronized void configure(Properties configuration)
+	{
+		virtualNodes = Integer.parseInt(configuration.getProperty(SHARD_CONF_PREFIX + "virtualNodes", "160"));
+		overrides.clear();
+		for (String name : configuration.stringPropertyNames())
+		{
+			if (name.startsWith(OVERRIDE_PREFIX))
+			{
+				overrides.put(name.substring(OVERRIDE_PREFIX.length()), configuration.getProperty(name).trim());
+			}
+		}
+		List<String> keys = new ArrayList<String>();
+		for (String key : StringUtils.split(configuration.getProperty(SHARD_CONF_PREFIX + "shards", ""), ", "))
+		{
+			keys.add(key);
+		}
+		build(keys);
+	}
+
+	/**
+	 * @return Whether tenants are sharded.
+	 */
+	public static boolean isEnabled()
+	{
+		return !shards.isEmpty();
+	}
+
+	/**
+	 * Finds the database of a tenant: its override if it has one, the database whose key is the
+	 * tenant's id if there is one, connected or in the tenant catalog, or else its shard on the ring.
+	 * @param tenantId
+	 * @return The database key, or the tenant id itself if tenants are not sharded.
+	 */
+	public static String route(String tenantId)
+	{
+		if (tenantId == null || shards.isEmpty())
+		{
+			return tenantId;
+		}
+		String key = overrides.get(tenantId);
+		if (key != null)
+		{
+			return key;
+		}
+		if (TenantResolver.resolve(tenantId))
+		{
+			return tenantId;
+		}
+		Ring current = ring;
+		key = current.routes.get(tenantId);
+		if (key == null)
+		{
+			key = locate(current.points, tenantId);
+			if (current.routes.size() >= MAX_CACHED)
+			{
+				current.routes.clear();
+			}
+			current.routes.put(tenantId, key);
+		}
+		return key;
+	}
+
+	/**
+	 * Makes a tenant the current thread's tenant.
+	 * @param tenantId
+	 * @return The database key of the tenant.
+	 */
+	public static String select(String tenantId)
+	{
+		if (shards.isEmpty())
+		{
+			return tenantId;
+		}
+		tenant.set(tenantId);
+		return route(tenantId);
+	}
+
+	/**
+	 * @return The current thread's tenant, or null if tenants are not sharded.
+	 */
+	public static String getTenant()
+	{
+		return tenant.get();
+	}
+
+	/**
+	 * Forgets the current thread's tenant.
+	 */
+	public static void clear()
+	{
+		//
+		//	Clear rather than remove the value, so that the next request reuses its entry.
+		//
+		if (tenant.get() != null)
+		{
+			tenant.set(null);
+		}
+	}
+
+	/**
+	 * Adds a shard to the ring.  Only the tenants falling on the new shard's points move.
+	 * @param key
+	 */
+	public static synchronized void addShard(String key)
+	{
+		if (!shards.contains(key))
+		{
+			List<String> keys = new ArrayList<String>(shards);
+			keys.add(key);
+			build(keys);
+		}
+	}
+
+	/**
+	 * Removes a shard from the ring.  Its tenants move to the following shards.
+	 * @param key
+	 */
+	public static synchronized void removeShard(String key)
+	{
+		if (shards.contains(key))
+		{
+			List<String> keys = new ArrayList<String>(shards);
+			keys.remove(key);
+			build(keys);
+		}
+	}
+
+	/**
+	 * Pins a tenant to a database, or unpins it if the key is null.
+	 * @param tenantId
+	 * @param key
+	 */
+	public static void override(String tenantId, String key)
+	{
+		if (key == null)
+		{
+			overrides.remove(tenantId);
+		}
+		else
+		{
+			overrides.put(tenantId, key);
+		}
+	}
+
+	/**
+	 * @return The shard keys.
+	 */
+	public static List<String> getShards()
+	{
+		return shards;
+	}
+
+	/**
+	 * @return The tenants pinned to a database, by tenant id.
+	 */
+	public static Map<String, String> getOverrides()
+	{
+		return Collections.unmodifiableMap(overrides);
+	}
+
+	private static void build(List<String> keys)
+	{
+		TreeMap<Long, String> points = new TreeMap<Long, String>();
+		for (String key : keys)
+		{
+			for (int i = 0; i < virtualNodes; i++)
+			{
+				points.put(hash(key + "#" + i), key);
+			}
+		}
+		ring = new Ring(points);
+		shards = Collections.unmodifiableList(keys);
+		if (!keys.isEmpty())
+		{
+			Logger.info("Sharding tenants onto %s databases: %s", keys.size(), keys);
+		}
+	}
+
+	private static String locate(TreeMap<Long, String> points, String tenantId)
+	{
+		Entry<Long, String> entry = points.ceilingEntry(hash(tenantId));
+		return (entry == null ? points.firstEntry() : entry).getValue();
+	}
+
+	/**
+	 * A ring and the routes it gave.
+	 */
+	private static class Ring
+	{
+		final TreeMap<Long, String> points;
+		final Map<String, String> routes = new ConcurrentHashMap<String, String>();
+
+		Ring(TreeMap<Long, String> points)
+		{
+			this.points = points;
+		}
+	}
+
+	/**
+	 * @return The first eight bytes of the MD5 digest of the value.
+	 */
+	private static long hash(String value)
+	{
+		try
+		{
+			byte[] digest = MessageDigest.getInstance("MD5").digest(value.getBytes("UTF-8"));
+			long hash = 0;
+			for (int i = 0; i < 8; i++)
+			{
+				hash = (hash << 8) | (digest[i] & 0xff);
+			}
+			return hash;
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException(e);
+		}
+		catch (java.io.UnsupportedEncodingException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,450 @@
+package play.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import play.Logger;
+import play.mvc.Http.Request;
+
+/**
+ * Per-tenant SQL timings.  Each statement executed through an {@link MDBDataSource} is recorded
+ * under its tenant and its shape (the SQL with literals replaced by '?').  The number of shapes
+ * kept for each tenant is bounded; statements beyond the bound are recorded together.
+ *
+ * @author dcardon
+ */
+public class SqlStats
+{
+	public static final String SQL_CONF_PREFIX = MDBPlugin.MDB_CONF_PREFIX + "sql.";
+
+	/**
+	 * The shape under which statements are recorded once a tenant reaches the shape limit.
+	 */
+	public static final String OTHER_SHAPE = "(other statements)";
+
+	/**
+	 * Whether statements are recorded.
+	 */
+	public static volatile boolean enabled = true;
+
+	/**
+	 * Statements slower than this are logged.  Zero or less disables the slow-query log.
+	 */
+	public static volatile long slowQueryMillis = 1000;
+
+	/**
+	 * The maximum number of shapes recorded for each tenant.
+	 */
+	public static volatile int maxShapes = 200;
+
+	/**
+	 * The maximum number of raw statements whose shape is cached.
+	 */
+	private static final int MAX_CACHED_SHAPES = 2000;
+
+	private static final ConcurrentMap<String, ConcurrentMap<String, Aggregate>> tenants = new ConcurrentHashMap<String, ConcurrentMap<String, Aggregate>>();
+
+	private static final ConcurrentMap<String, String> shapes = new ConcurrentHashMap<String, String>();
+
+	/**
+	 * Reads the mdb.sql.* settings.
+	 * @param configuration
+	 */
+	public static void configure(Properties configuration)
+	{
+		enabled = Boolean.parseBoolean(configuration.getProperty(SQL_CONF_PREFIX + "stats", "true"));
+		slowQueryMillis = Long.parseLong(configuration.getProperty(SQL_CONF_PREFIX + "slowQuery", "1000"));
+		maxShapes = Integer.parseInt(configuration.getProperty(SQL_CONF_PREFIX + "maxShapes", "200"));
+	}
+
+	/**
+	 * Records the execution of a statement.
+	 * @param tenant
+	 * @param sql
+	 * @param nanos
+	 * @param rows
+	 * @return The aggregate the statement was recorded in, or null if recording is disabled.
+	 */
+	public static Aggregate record(String tenant, String sql, long nanos, long rows)
+	{
+		if (!enabled || sql == null)
+		{
+			return null;
+		}
+		String shape = shapeOf(sql);
+		Aggregate aggregate = aggregate(tenant, shape);
+		aggregate.record(nanos, rows);
+
+		if (slowQueryMillis > 0 && nanos >= slowQueryMillis * 1000000L)
+		{
+			Request request = Request.current();
+			Logger.warn("Slow query on [%s] (%s ms) during %s: %s", tenant, nanos / 1000000L,
+					(request == null || request.action == null) ? "(no action)" : request.action, sql);
+		}
+		return aggregate;
+	}
+
+	/**
+	 * @param tenant
+	 * @return The aggregates recorded for the tenant.
+	 */
+	public static List<Aggregate> getAggregates(String tenant)
+	{
+		ConcurrentMap<String, Aggregate> aggregates = tenants.get(tenant);
+		if (aggregates == null)
+		{
+			return Collections.emptyList();
+		}
+		return new ArrayList<Aggregate>(aggregates.values());
+	}
+
+	/**
+	 * Finds the statement shapes with the most total execution time across all tenants.
+	 * @param n
+	 * @return
+	 */
+	public static List<Aggregate> top(int n)
+	{
+		List<Aggregate> all = new ArrayList<Aggregate>();
+		for (ConcurrentMap<String, Aggregate> aggregates : tenants.values())
+		{
+			all.addAll(aggregates.values());
+		}
+		return top(all, n);
+	}
+
+	/**
+	 * Finds the statement shapes with the most total execution time for one tenant.
+	 * @param tenant
+	 * @param n
+	 * @return
+	 */
+	public static List<Aggregate> top(String tenant, int n)
+	{
+		return top(getAggregates(tenant), n);
+	}
+
+	private static List<Aggregate> top(List<Aggregate> aggregates, int n)
+	{
+		//
+		//	The totals keep growing while they are sorted: sort a snapshot of them, so that the
+		//	order stays consistent.
+		//
+		List<Object[]> totals = new ArrayList<Object[]>(aggregates.size());
+		for (Aggregate aggregate : aggregates)
+		{
+			totals.add(new Object[] { aggregate, Long.valueOf(aggregate.totalNanos.get()) });
+		}
+		Collections.sort(totals, new Comparator<Object[]>()
+		{
+			@Override
+			public int compare(Object[] a, Object[] b)
+			{
+				return ((Long) b[1]).compareTo((Long) a[1]);
+			}
+		});
+		List<Aggregate> top = new ArrayList<Aggregate>(Math.min(n, totals.size()));
+		for (int i = 0; i < totals.size() && i < n; i++)
+		{
+			top.add((Aggregate) totals.get(i)[0]);
+		}
+		return top;
+	}
+
+	/**
+	 * Forgets all recorded statements.
+	 */
+	public static void reset()
+	{
+		tenants.clear();
+	}
+
+	/**
+	 * Forgets the statements recorded for one tenant.
+	 * @param tenant
+	 */
+	public static void reset(String tenant)
+	{
+		tenants.remove(tenant);
+	}
+
+	private static Aggregate aggregate(String tenant, String shape)
+	{
+		ConcurrentMap<String, Aggregate> aggregates = tenants.get(tenant);
+		if (aggregates == null)
+		{
+			aggregates = new ConcurrentHashMap<String, Aggregate>();
+			ConcurrentMap<String, Aggregate> existing = tenants.putIfAbsent(tenant, aggregates);
+			if (existing != null)
+			{
+				aggregates = existing;
+			}
+		}
+		Aggregate aggregate = aggregates.get(shape);
+		if (aggregate == null)
+		{
+			if (aggregates.size() >= maxShapes)
+			{
+				shape = OTHER_SHAPE;
+			}
+			aggregate = new Aggregate(tenant, shape);
+			Aggregate existing = aggregates.putIfAbsent(shape, aggregate);
+			if (existing != null)
+			{
+				aggregate = existing;
+			}
+		}
+		return aggregate;
+	}
+
+	/**
+	 * Finds the shape of a statement, caching it while the cache is not full.
+	 * @param sql
+	 * @return
+	 */
+	static String shapeOf(String sql)
+	{
+		String shape = shapes.get(sql);
+		if (shape == null)
+		{
+			shape = normalize(sql);
+			if (shapes.size() < MAX_CACHED_SHAPES)
+			{
+				shapes.put(sql, shape);
+			}
+		}
+		return shape;
+	}
+
+	/**
+	 * Normalizes a statement: string and numeric literals become '?', runs of whitespace become a
+	 * single space and lists of parameters such as 'in (?, ?, ?)' become 'in (?)'.
+	 * @param sql
+	 * @return
+	 */
+	public static String normalize(String sql)
+	{
+		StringBuilder out = new StringBuilder(sql.length());
+		int length = sql.length();
+		boolean space = false;
+		for (int i = 0; i < length; i++)
+		{
+			char c = sql.charAt(i);
+			if (Character.isWhitespace(c))
+			{
+				space = true;
+				continue;
+			}
+			if (space && out.length() > 0)
+			{
+				out.append(' ');
+			}
+			space = false;
+
+			if (c == '\'')
+			{
+				//
+				//	Skip the string literal, including doubled quotes.
+				//
+				i++;
+				while (i < length)
+				{
+					if (sql.charAt(i) == '\'')
+					{
+						if (i + 1 < length && sql.charAt(i + 1) == '\'')
+						{
+							i++;
+						}
+						else
+						{
+							break;
+						}
+					}
+					i++;
+				}
+				appendParameter(out);
+			}
+			else if (Character.isDigit(c) && !isIdentifierEnd(out))
+			{
+				while (i + 1 < length && (Character.isLetterOrDigit(sql.charAt(i + 1)) || sql.charAt(i + 1) == '.'))
+				{
+					i++;
+				}
+				appendParameter(out);
+			}
+			else if (c == '?')
+			{
+				appendParameter(out);
+			}
+			else
+			{
+				out.append(c);
+			}
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Appends a parameter marker, collapsing parameter lists into a single marker.
+	 */
+	private static void appendParameter(StringBuilder out)
+	{
+		int length = out.length();
+		if (length >= 3 && out.charAt(length - 1) == ' ' && out.charAt(length - 2) == ',' && out.charAt(length - 3) == '?')
+		{
+			out.setLength(length - 2);
+			return;
+		}
+		if (length >= 2 && out.charAt(length - 1) == ',' && out.charAt(length - 2) == '?')
+		{
+			out.setLength(length - 1);
+			return;
+		}
+		out.append('?');
+	}
+
+	private static boolean isIdentifierEnd(StringBuilder out)
+	{
+		if (out.length() == 0)
+		{
+			return false;
+		}
+		char c = out.charAt(out.length() - 1);
+		return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+	}
+
+	/**
+	 * The timings of one statement shape on one tenant.  Latencies are kept in a fixed set of
+	 * logarithmic buckets (four per power of two microseconds) for percentile estimates.
+	 */
+	public static class Aggregate
+	{
+		private static final int BUCKETS = 4 * 48;
+
+		public final String tenant;
+		public final String shape;
+
+		final AtomicLong count = new AtomicLong();
+		final AtomicLong totalNanos = new AtomicLong();
+		final AtomicLong maxNanos = new AtomicLong();
+		final AtomicLong rows = new AtomicLong();
+		final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+		Aggregate(String tenant, String shape)
+		{
+			this.tenant = tenant;
+			this.shape = shape;
+		}
+
+		void record(long nanos, long rowCount)
+		{
+			count.incrementAndGet();
+			totalNanos.addAndGet(nanos);
+			rows.addAndGet(rowCount);
+			buckets.incrementAndGet(bucket(nanos / 1000L));
+			long max = maxNanos.get();
+			while (nanos > max && !maxNanos.compareAndSet(max, nanos))
+			{
+				max = maxNanos.get();
+			}
+		}
+
+		void addRows(long rowCount)
+		{
+			rows.addAndGet(rowCount);
+		}
+
+		public long getCount()
+		{
+			return count.get();
+		}
+
+		public double getTotalMillis()
+		{
+			return totalNanos.get() / 1000000.0;
+		}
+
+		public double getMeanMillis()
+		{
+			long n = count.get();
+			return n == 0 ? 0 : totalNanos.get() / 1000000.0 / n;
+		}
+
+		public double getMaxMillis()
+		{
+			return maxNanos.get() / 1000000.0;
+		}
+
+		public long getRows()
+		{
+			return rows.get();
+		}
+
+		/**
+		 * @return The upper bound of the bucket holding the 99th percentile latency.
+		 */
+		public double getP99Millis()
+		{
+			return getPercentileMillis(0.99);
+		}
+
+		public double getPercentileMillis(double percentile)
+		{
+			long total = 0;
+			long[] counts = new long[BUCKETS];
+			for (int i = 0; i < BUCKETS; i++)
+			{
+				counts[i] = buckets.get(i);
+				total += counts[i];
+			}
+			long rank = (long) Math.ceil(total * percentile);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++)
+			{
+				seen += counts[i];
+				if (seen >= rank && counts[i] > 0)
+				{
+					return Math.min(upperBound(i) / 1000.0, getMaxMillis());
+				}
+			}
+			return getMaxMillis();
+		}
+
+		static int bucket(long micros)
+		{
+			if (micros < 4)
+			{
+				return (int) Math.max(micros, 0);
+			}
+			int log = 63 - Long.numberOfLeadingZeros(micros);
+			int sub = (int) ((micros >> (log - 2)) & 3);
+			return Math.min(log * 4 + sub, BUCKETS - 1);
+		}
+
+		static long upperBound(int bucket)
+		{
+			if (bucket < 8)
+			{
+				return bucket + 1;
+			}
+			int log = bucket / 4;
+			int sub = bucket % 4;
+			return (long) (4 + sub + 1) << (log - 2);
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format("[%s] count=%d total=%.1fms mean=%.2fms p99=%.2fms max=%.2fms rows=%d : %s",
+					tenant, getCount(), getTotalMillis(), getMeanMillis(), getP99Millis(),
+					getMaxMillis(), getRows(), shape);
+		}
+	}
+}
@@ -0,0 +1,461 @@
+package play.db;
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.StringUtils;
+
+import play.Logger;
+
+/**
+ * Bounds the time statements may run on each database, so that a runaway query cannot hold a
+ * pooled connection and a worker thread indefinitely.  A statement's timeout is the smallest of
+ * its database's default (mdb.statement.timeout.&lt;db&gt;), the timeout set by the application
+ * and the time left before the deadline of the current invocation.
+ * <p>
+ * The timeout is handed to the driver, and a watchdog cancels the statements still running once
+ * it has passed by a grace period, for drivers that do not enforce it.  The statements that time
+ * out are counted per database.
+ *
+ * @author dcardon
+ */
+public class StatementTimeout
+{
+	public static final String TIMEOUT_CONF_PREFIX = MDBPlugin.MDB_CONF_PREFIX + "timeout.";
+
+	/**
+	 * Whether statement timeouts are applied.
+	 */
+	public static volatile boolean enabled = true;
+
+	/**
+	 * The deadline of an invocation, in milliseconds after its start.  Zero or less sets no
+	 * deadline.
+	 */
+	public static volatile long requestMillis = 0;
+
+	/**
+	 * How long after its timeout a statement still running is cancelled by the watchdog, in
+	 * milliseconds.
+	 */
+	public static volatile long graceMillis = 1000;
+
+	private static final ConcurrentMap<String, StatementTimeout> tenants = new ConcurrentHashMap<String, StatementTimeout>();
+
+	/**
+	 * The statements executing with a timeout, watched by the watchdog.
+	 */
+	private static final Set<Running> running = Collections.newSetFromMap(new ConcurrentHashMap<Running, Boolean>());
+
+	/**
+	 * The deadline of the current thread's invocation, in System.nanoTime() terms, or 0; then 1
+	 * while the thread runs an invocation.
+	 */
+	private static final ThreadLocal<long[]> deadline = new ThreadLocal<long[]>()
+	{
+		@Override
+		protected long[] initialValue()
+		{
+			return new long[2];
+		}
+	};
+
+	private static ScheduledFuture<?> task;
+
+	public final String key;
+
+	/**
+	 * The default timeout of the database's statements, in milliseconds; zero or less for none.
+	 */
+	volatile long defaultMillis;
+
+	private final AtomicLong limited = new AtomicLong();
+	private final AtomicLong capped = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+	private final AtomicLong cancelled = new AtomicLong();
+	private final AtomicLong expired = new AtomicLong();
+
+	StatementTimeout(String key)
+	{
+		this.key = key;
+	}
+
+	/**
+	 * Reads the mdb.timeout.* settings and schedules the watchdog.
+	 * @param configuration
+	 */
+	public static synchronized void configure(Properties configuration)
+	{
+		enabled = Boolean.parseBoolean(configuration.getProperty(TIMEOUT_CONF_PREFIX + "enabled", "true"));
+		requestMillis = Long.parseLong(configuration.getProperty(TIMEOUT_CONF_PREFIX + "request", "0"));
+		graceMillis = Long.parseLong(configuration.getProperty(TIMEOUT_CONF_PREFIX + "grace", "1000"));
+		if (task != null)
+		{
+			task.cancel(false);
+			task = null;
+		}
+		if (enabled)
+		{
+			long interval = Long.parseLong(configuration.getProperty(TIMEOUT_CONF_PREFIX + "interval", "1000"));
+			task = MDBTasks.schedule("statement watchdog", new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					check();
+				}
+			}, interval);
+		}
+	}
+
+	/**
+	 * Finds the timeouts of a database, creating them on first use.
+	 * @param key
+	 * @return
+	 */
+	public static StatementTimeout get(String key)
+	{
+		StatementTimeout timeout = tenants.get(key);
+		if (timeout == null)
+		{
+			timeout = new StatementTimeout(key);
+			StatementTimeout existing = tenants.putIfAbsent(key, timeout);
+			if (existing != null)
+			{
+				timeout = existing;
+			}
+		}
+		return timeout;
+	}
+
+	/**
+	 * Sets the default timeout of a database's statements.
+	 * @param key
+	 * @param millis The timeout in milliseconds, empty or zero for none.
+	 */
+	static void setDefault(String key, String millis)
+	{
+		if (key != null)
+		{
+			get(key).defaultMillis = Long.parseLong(StringUtils.defaultIfEmpty(millis, "0"));
+		}
+	}
+
+	/**
+	 * Forgets the timeouts of a removed database.
+	 * @param key
+	 */
+	static void forget(String key)
+	{
+		tenants.remove(key);
+	}
+
+	/**
+	 * Starts the deadline of the current thread's invocation, if invocations have one.
+	 */
+	public static void begin()
+	{
+		long millis = requestMillis;
+		long[] current = deadline.get();
+		current[0] = (enabled && millis > 0 ? System.nanoTime() + millis * 1000000L : 0);
+		current[1] = 1;
+	}
+
+	/**
+	 * Brings the deadline of the current thread's invocation forward, e.g. for an action that must
+	 * answer sooner than others.  A later deadline than the current one is ignored.
+	 * @param millis The time left, in milliseconds.
+	 */
+	public static void setDeadline(long millis)
+	{
+		long[] current = deadline.get();
+		long end = System.nanoTime() + millis * 1000000L;
+		if (current[0] == 0 || end - current[0] < 0)
+		{
+			current[0] = end;
+		}
+	}
+
+	/**
+	 * @return The time left before the deadline of the current thread's invocation, in
+	 * milliseconds, or -1 if it has no deadline.
+	 */
+	public static long getRemainingMillis()
+	{
+		long end = deadline.get()[0];
+		return (end == 0 ? -1 : Math.max(0, (end - System.nanoTime()) / 1000000L));
+	}
+
+	/**
+	 * Clears the deadline of the current thread's invocation.
+	 */
+	public static void end()
+	{
+		long[] current = deadline.get();
+		current[0] = 0;
+		current[1] = 0;
+	}
+
+	/**
+	 * Applies the timeout of a statement about to be executed.
+	 * @param statement
+	 * @return The execution to pass to finish(), or null if the statement has no timeout.
+	 * @throws SQLTimeoutException if the invocation's deadline has already passed.
+	 */
+	static Running start(MDBStatementHandler statement) throws SQLException
+	{
+		if (!enabled)
+		{
+			return null;
+		}
+		StatementTimeout tenant = get(statement.connection.dataSource.key);
+		long timeout = tenant.defaultMillis;
+		long explicit = statement.queryTimeout * 1000L;
+		if (explicit > 0 && (timeout <= 0 || explicit < timeout))
+		{
+			timeout = explicit;
+		}
+		long[] invocation = deadline.get();
+		long end = invocation[0];
+		if (end != 0)
+		{
+			long remaining = (end - System.nanoTime()) / 1000000L;
+			if (remaining <= 0)
+			{
+				tenant.expired.incrementAndGet();
+				throw new SQLTimeoutException("The deadline of the request passed before a statement on ["
+						+ tenant.key + "] could start");
+			}
+			if (timeout <= 0 || remaining < timeout)
+			{
+				timeout = remaining;
+				tenant.capped.incrementAndGet();
+			}
+		}
+
+		//
+		//	The driver counts in seconds; round up so that a short timeout is not lost.
+		//
+		int seconds = (timeout <= 0 ? statement.queryTimeout : (int) ((timeout + 999) / 1000));
+		if (seconds != statement.appliedTimeout)
+		{
+			statement.target.setQueryTimeout(seconds);
+			statement.appliedTimeout = seconds;
+		}
+		if (timeout <= 0)
+		{
+			//
+			//	A statement without a timeout is still watched within an invocation, so that it
+			//	can be cancelled if the invocation is aborted.
+			//
+			if (invocation[1] == 0)
+			{
+				return null;
+			}
+			timeout = 0;
+		}
+		else
+		{
+			tenant.limited.incrementAndGet();
+		}
+		Running execution = new Running(tenant, statement, timeout);
+		running.add(execution);
+		return execution;
+	}
+
+	/**
+	 * Ends the execution of a statement started with start().
+	 * @param execution
+	 * @param failure The exception the statement failed with, or null.
+	 */
+	static void finish(Running execution, Throwable failure)
+	{
+		if (execution == null)
+		{
+			return;
+		}
+		running.remove(execution);
+		if (failure == null)
+		{
+			return;
+		}
+		long elapsed = (System.nanoTime() - execution.start) / 1000000L;
+		if (execution.timeoutMillis <= 0)
+		{
+			if (execution.cancelled)
+			{
+				Logger.warn("Statement on [%s] cancelled after %s ms: %s", execution.tenant.key, elapsed,
+						execution.statement.sql);
+			}
+		}
+		else if (execution.cancelled || failure instanceof SQLTimeoutException || elapsed >= execution.timeoutMillis)
+		{
+			execution.tenant.timeouts.incrementAndGet();
+			Logger.warn("Statement on [%s] timed out after %s ms (timeout %s ms): %s", execution.tenant.key,
+					elapsed, execution.timeoutMillis, execution.statement.sql);
+		}
+	}
+
+	/**
+	 * Cancels the statements still running past their timeout and grace period, and those of
+	 * invocations aborted by interrupting their thread, e.g. a job cancelled after its timeout.
+	 */
+	public static void check()
+	{
+		long now = System.nanoTime();
+		long grace = graceMillis * 1000000L;
+		for (Running execution : running)
+		{
+			if (execution.cancelled)
+			{
+				continue;
+			}
+			if (execution.thread.isInterrupted())
+			{
+				Logger.warn("Cancelling a statement on [%s] whose invocation was interrupted: %s",
+						execution.tenant.key, execution.statement.sql);
+				execution.cancel();
+			}
+			else if (execution.timeoutMillis > 0 && now - execution.start - execution.timeoutMillis * 1000000L - grace >= 0)
+			{
+				Logger.warn("Cancelling a statement on [%s] still running %s ms after its timeout: %s",
+						execution.tenant.key, (now - execution.start) / 1000000L - execution.timeoutMillis,
+						execution.statement.sql);
+				execution.cancel();
+			}
+		}
+	}
+
+	/**
+	 * Cancels the statements a thread is executing, e.g. when its invocation is aborted.
+	 * @param thread
+	 * @return The number of statements cancelled.
+	 */
+	public static int abort(Thread thread)
+	{
+		int count = 0;
+		for (Running execution : running)
+		{
+			if (execution.thread == thread && execution.cancel())
+			{
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return The timeouts of the databases used so far, by database key.
+	 */
+	static Map<String, StatementTimeout> getAll()
+	{
+		return tenants;
+	}
+
+	/**
+	 * @return The default timeout of the database's statements, in milliseconds.
+	 */
+	public long getDefaultMillis()
+	{
+		return defaultMillis;
+	}
+
+	/**
+	 * @return The number of statements executed with a timeout.
+	 */
+	public long getLimited()
+	{
+		return limited.get();
+	}
+
+	/**
+	 * @return The number of statements whose timeout was shortened by their invocation's deadline.
+	 */
+	public long getCapped()
+	{
+		return capped.get();
+	}
+
+	/**
+	 * @return The number of statements that timed out.
+	 */
+	public long getTimeouts()
+	{
+		return timeouts.get();
+	}
+
+	/**
+	 * @return The number of statements cancelled by the watchdog or an aborted invocation.
+	 */
+	public long getCancelled()
+	{
+		return cancelled.get();
+	}
+
+	/**
+	 * @return The number of statements refused because their invocation's deadline had passed.
+	 */
+	public long getExpired()
+	{
+		return expired.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "default " + (defaultMillis > 0 ? defaultMillis + " ms" : "none") + ", timed out " + getTimeouts()
+				+ ", cancelled " + getCancelled() + ", past deadline " + getExpired() + ", capped by deadline "
+				+ getCapped() + " of " + getLimited();
+	}
+
+	/**
+	 * A statement executing with a timeout.
+	 */
+	static final class Running
+	{
+		final StatementTimeout tenant;
+		final MDBStatementHandler statement;
+		final Thread thread = Thread.currentThread();
+		final long start = System.nanoTime();
+		final long timeoutMillis;
+		volatile boolean cancelled;
+
+		Running(StatementTimeout tenant, MDBStatementHandler statement, long timeoutMillis)
+		{
+			this.tenant = tenant;
+			this.statement = statement;
+			this.timeoutMillis = timeoutMillis;
+		}
+
+		/**
+		 * Cancels the statement, unless it already was.
+		 * @return Whether the statement was cancelled by this call.
+		 */
+		synchronized boolean cancel()
+		{
+			if (cancelled)
+			{
+				return false;
+			}
+			cancelled = true;
+			tenant.cancelled.incrementAndGet();
+			try
+			{
+				statement.target.cancel();
+			}
+			catch (SQLException e)
+			{
+				Logger.warn("Unable to cancel a statement on [%s]: %s", tenant.key, e.getMessage());
+			}
+			return true;
+		}
+	}
+}
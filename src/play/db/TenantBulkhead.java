@@ -0,0 +1,522 @@
+package play.db;
+
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import play.mvc.Http.Request;
+
+/**
+ * Limits the number of threads working on each database at once.  A thread over the limit waits
+ * briefly in a bounded queue; when the queue is full or the wait times out, it is rejected with a
+ * {@link TenantUnavailableException} instead of blocking in the connection pool, so that one slow
+ * database cannot hold every worker thread.
+ * <p>
+ * The capacity of each database is split into two lanes, one for the threads serving requests and
+ * one for background jobs.  Each lane has a reserved share that the other lane cannot take, and
+ * borrows from the rest of the capacity; jobs do not borrow while requests are waiting, so that a
+ * heavy batch job cannot push requests into the queue.
+ *
+ * @author dcardon
+ */
+public class TenantBulkhead
+{
+	public static final String BULKHEAD_CONF_PREFIX = MDBPlugin.MDB_CONF_PREFIX + "bulkhead.";
+
+	/**
+	 * The priority classes of the threads working on a database.
+	 */
+	public enum Lane
+	{
+		/**
+		 * Threads serving a request.
+		 */
+		INTERACTIVE,
+
+		/**
+		 * Threads without a request: jobs, write-behind flushes and other background work.
+		 */
+		JOB
+	}
+
+	/**
+	 * Whether the bulkheads are enforced.
+	 */
+	public static volatile boolean enabled = true;
+
+	/**
+	 * The maximum number of threads working on one database.  Zero or less uses the maximum size
+	 * of the database's pool.
+	 */
+	public static volatile int maxConcurrent = 0;
+
+	/**
+	 * The maximum number of request threads waiting for one database.
+	 */
+	public static volatile int maxQueue = 10;
+
+	/**
+	 * How long a request thread waits for one database before it is rejected, in milliseconds.
+	 */
+	public static volatile long maxWaitMillis = 100;
+
+	/**
+	 * The maximum number of job threads waiting for one database.
+	 */
+	public static volatile int jobMaxQueue = 100;
+
+	/**
+	 * How long a job thread waits for one database before it is rejected, in milliseconds.
+	 */
+	public static volatile long jobMaxWaitMillis = 5000;
+
+	/**
+	 * The shares of each database's capacity reserved for requests and for jobs.
+	 */
+	public static volatile double interactiveReserved = 0.5;
+	public static volatile double jobReserved = 0.1;
+
+	private static final ConcurrentMap<String, TenantBulkhead> bulkheads = new ConcurrentHashMap<String, TenantBulkhead>();
+
+	/**
+	 * The lane set by the application for the current thread, if any.
+	 */
+	private static final ThreadLocal<Lane> laneOverride = new ThreadLocal<Lane>();
+
+	/**
+	 * The number of bulkheads the current thread has entered in each lane, so that it leaves them
+	 * in the lane it entered even if its lane has changed since.
+	 */
+	private static final ThreadLocal<int[]> held = new ThreadLocal<int[]>()
+	{
+		@Override
+		protected int[] initialValue()
+		{
+			return new int[Lane.values().length];
+		}
+	};
+
+	public final String key;
+	public final int limit;
+
+	/**
+	 * The capacity reserved for each lane, and the capacity either lane may borrow.
+	 */
+	private final int[] reserved = new int[Lane.values().length];
+	private final int shared;
+
+	/**
+	 * The threads working and waiting in each lane, guarded by the bulkhead.
+	 */
+	private final int[] inUse = new int[Lane.values().length];
+	private final int[] queued = new int[Lane.values().length];
+
+	private final LaneStats[] lanes = { new LaneStats(), new LaneStats() };
+	private final AtomicInteger waiting = new AtomicInteger();
+	private final AtomicInteger active = new AtomicInteger();
+	private final AtomicInteger peak = new AtomicInteger();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong entries = new AtomicLong();
+
+	TenantBulkhead(String key, int limit)
+	{
+		this.key = key;
+		this.limit = limit;
+		reserved[Lane.INTERACTIVE.ordinal()] = share(limit, interactiveReserved);
+		reserved[Lane.JOB.ordinal()] = Math.min(share(limit, jobReserved), limit - reserved[Lane.INTERACTIVE.ordinal()]);
+		this.shared = limit - reserved[Lane.INTERACTIVE.ordinal()] - reserved[Lane.JOB.ordinal()];
+	}
+
+	/**
+	 * The part of a capacity given by a share, at least one if the share is not zero.
+	 */
+	private static int share(int limit, double share)
+	{
+		int count = (int) Math.floor(limit * Math.max(0, Math.min(1, share)));
+		return (share > 0 && count == 0 && limit > 1 ? 1 : count);
+	}
+
+	/**
+	 * Reads the mdb.bulkhead.* settings.  Bulkheads already created keep their limit and reserves.
+	 * @param configuration
+	 */
+	public static void configure(Properties configuration)
+	{
+		enabled = Boolean.parseBoolean(configuration.getProperty(BULKHEAD_CONF_PREFIX + "enabled", "true"));
+		maxConcurrent = Integer.parseInt(configuration.getProperty(BULKHEAD_CONF_PREFIX + "maxConcurrent", "0"));
+		maxQueue = Integer.parseInt(configuration.getProperty(BULKHEAD_CONF_PREFIX + "maxQueue", "10"));
+		maxWaitMillis = Long.parseLong(configuration.getProperty(BULKHEAD_CONF_PREFIX + "maxWait", "100"));
+		jobMaxQueue = Integer.parseInt(configuration.getProperty(BULKHEAD_CONF_PREFIX + "job.maxQueue", "100"));
+		jobMaxWaitMillis = Long.parseLong(configuration.getProperty(BULKHEAD_CONF_PREFIX + "job.maxWait", "5000"));
+		interactiveReserved = Double.parseDouble(configuration.getProperty(BULKHEAD_CONF_PREFIX
+				+ "interactive.reserved", "0.5"));
+		jobReserved = Double.parseDouble(configuration.getProperty(BULKHEAD_CONF_PREFIX + "job.reserved", "0.1"));
+	}
+
+	/**
+	 * Finds the bulkhead of a database, creating it on first use.
+	 * @param key
+	 * @return
+	 */
+	public static TenantBulkhead get(String key)
+	{
+		TenantBulkhead bulkhead = bulkheads.get(key);
+		if (bulkhead == null)
+		{
+			int limit = maxConcurrent;
+			if (limit <= 0)
+			{
+				MDBDataSource ds = MDB.getDataSource(key);
+				limit = (ds == null ? 30 : ds.getDelegate().getMaxPoolSize());
+			}
+			bulkhead = new TenantBulkhead(key, limit);
+			TenantBulkhead existing = bulkheads.putIfAbsent(key, bulkhead);
+			if (existing != null)
+			{
+				bulkhead = existing;
+			}
+		}
+		return bulkhead;
+	}
+
+	/**
+	 * Sets the lane of the current thread, e.g. for a job answering a user, or a request doing
+	 * background work.
+	 * @param lane The lane, or null to go back to the lane found from the thread.
+	 */
+	public static void setLane(Lane lane)
+	{
+		if (lane == null)
+		{
+			laneOverride.remove();
+		}
+		else
+		{
+			laneOverride.set(lane);
+		}
+	}
+
+	/**
+	 * @return The lane of the current thread: the one set with setLane(), or else the interactive
+	 * lane if the thread serves a request and the job lane if it does not.
+	 */
+	public static Lane currentLane()
+	{
+		Lane lane = laneOverride.get();
+		if (lane != null)
+		{
+			return lane;
+		}
+		return (Request.current() == null ? Lane.JOB : Lane.INTERACTIVE);
+	}
+
+	/**
+	 * Enters the bulkhead of a database in the current thread's lane, waiting briefly if it is full.
+	 * @param key
+	 * @throws TenantUnavailableException if the database is over its limit.
+	 */
+	public static void enter(String key)
+	{
+		Lane lane = currentLane();
+		get(key).acquire(lane, enabled);
+		held.get()[lane.ordinal()]++;
+	}
+
+	/**
+	 * Leaves the bulkhead of a database entered with enter().
+	 * @param key
+	 */
+	public static void exit(String key)
+	{
+		if (key != null)
+		{
+			int[] counts = held.get();
+			Lane lane = currentLane();
+			if (counts[lane.ordinal()] == 0)
+			{
+				lane = (lane == Lane.JOB ? Lane.INTERACTIVE : Lane.JOB);
+				if (counts[lane.ordinal()] == 0)
+				{
+					return;
+				}
+			}
+			counts[lane.ordinal()]--;
+			TenantBulkhead bulkhead = bulkheads.get(key);
+			if (bulkhead != null)
+			{
+				bulkhead.release(lane);
+			}
+		}
+	}
+
+	/**
+	 * Counts a thread entering the bulkhead, limiting the number of threads if enforced.
+	 * @param lane
+	 * @param enforce
+	 */
+	void acquire(Lane lane, boolean enforce)
+	{
+		int l = lane.ordinal();
+		LaneStats stats = lanes[l];
+		entries.incrementAndGet();
+		stats.entries.incrementAndGet();
+		synchronized (this)
+		{
+			if (enforce && !admits(lane))
+			{
+				await(lane, stats);
+			}
+			inUse[l]++;
+		}
+		int now = active.incrementAndGet();
+		int max = peak.get();
+		while (now > max && !peak.compareAndSet(max, now))
+		{
+			max = peak.get();
+		}
+	}
+
+	/**
+	 * Waits in the queue of a lane until the bulkhead admits the thread, or rejects it.  Called with
+	 * the bulkhead locked.
+	 */
+	private void await(Lane lane, LaneStats stats)
+	{
+		int l = lane.ordinal();
+		boolean job = (lane == Lane.JOB);
+		long maxWait = (job ? jobMaxWaitMillis : maxWaitMillis);
+		if (queued[l] >= (job ? jobMaxQueue : maxQueue))
+		{
+			reject(stats, lane, "too many requests waiting");
+		}
+		queued[l]++;
+		waiting.incrementAndGet();
+		long start = System.nanoTime();
+		long deadline = start + maxWait * 1000000L;
+		try
+		{
+			while (!admits(lane))
+			{
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0)
+				{
+					reject(stats, lane, "timed out after " + maxWait + " ms");
+				}
+				TimeUnit.NANOSECONDS.timedWait(this, remaining);
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			reject(stats, lane, "interrupted");
+		}
+		finally
+		{
+			queued[l]--;
+			waiting.decrementAndGet();
+			stats.waited(System.nanoTime() - start);
+			if (!job && queued[l] == 0 && queued[Lane.JOB.ordinal()] > 0)
+			{
+				//
+				//	The jobs held back by this lane may borrow again.
+				//
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Whether a thread of a lane may work on the database now: within its lane's reserve, or
+	 * borrowing the shared capacity.  Jobs do not borrow while request threads are waiting.  Called
+	 * with the bulkhead locked.
+	 */
+	private boolean admits(Lane lane)
+	{
+		int l = lane.ordinal();
+		if (inUse[l] < reserved[l])
+		{
+			return true;
+		}
+		if (lane == Lane.JOB && queued[Lane.INTERACTIVE.ordinal()] > 0)
+		{
+			return false;
+		}
+		int borrowed = 0;
+		for (int i = 0; i < inUse.length; i++)
+		{
+			borrowed += Math.max(0, inUse[i] - reserved[i]);
+		}
+		return borrowed < shared;
+	}
+
+	void release(Lane lane)
+	{
+		active.decrementAndGet();
+		synchronized (this)
+		{
+			inUse[lane.ordinal()]--;
+			if (waiting.get() > 0)
+			{
+				notifyAll();
+			}
+		}
+	}
+
+	private void reject(LaneStats stats, Lane lane, String reason)
+	{
+		rejected.incrementAndGet();
+		stats.rejected.incrementAndGet();
+		throw new TenantUnavailableException("Database [" + key + "] is over its limit of " + limit
+				+ " concurrent " + (lane == Lane.JOB ? "jobs" : "requests") + " (" + reason + ")");
+	}
+
+	/**
+	 * @return The number of threads currently working on the database.
+	 */
+	public int getActive()
+	{
+		return active.get();
+	}
+
+	/**
+	 * @return The largest number of threads that worked on the database at once.
+	 */
+	public int getPeak()
+	{
+		return peak.get();
+	}
+
+	public int getWaiting()
+	{
+		return waiting.get();
+	}
+
+	public long getRejected()
+	{
+		return rejected.get();
+	}
+
+	/**
+	 * @return The number of threads that entered the bulkhead since start-up.
+	 */
+	public long getEntries()
+	{
+		return entries.get();
+	}
+
+	/**
+	 * @param lane
+	 * @return The capacity reserved for the lane.
+	 */
+	public int getReserved(Lane lane)
+	{
+		return reserved[lane.ordinal()];
+	}
+
+	/**
+	 * @param lane
+	 * @return The number of threads of the lane currently working on the database.
+	 */
+	public synchronized int getActive(Lane lane)
+	{
+		return inUse[lane.ordinal()];
+	}
+
+	/**
+	 * @param lane
+	 * @return The entries, waits and rejections of the lane.
+	 */
+	public LaneStats getStats(Lane lane)
+	{
+		return lanes[lane.ordinal()];
+	}
+
+	/**
+	 * @return The bulkheads created so far, by database key.
+	 */
+	static Map<String, TenantBulkhead> getAll()
+	{
+		return bulkheads;
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder out = new StringBuilder();
+		out.append("active ").append(getActive()).append('/').append(limit).append(", waiting ")
+				.append(getWaiting()).append(", peak ").append(getPeak()).append(", rejected ")
+				.append(getRejected());
+		for (Lane lane : Lane.values())
+		{
+			out.append("; ").append(lane.name().toLowerCase()).append(": active ").append(getActive(lane))
+					.append(" (reserved ").append(getReserved(lane)).append("), ").append(getStats(lane));
+		}
+		return out.toString();
+	}
+
+	/**
+	 * The entries, waits and rejections of one lane of a bulkhead.
+	 */
+	public static class LaneStats
+	{
+		final AtomicLong entries = new AtomicLong();
+		final AtomicLong waits = new AtomicLong();
+		final AtomicLong waitNanos = new AtomicLong();
+		final AtomicLong maxWaitNanos = new AtomicLong();
+		final AtomicLong rejected = new AtomicLong();
+
+		void waited(long nanos)
+		{
+			waits.incrementAndGet();
+			waitNanos.addAndGet(nanos);
+			long max = maxWaitNanos.get();
+			while (nanos > max && !maxWaitNanos.compareAndSet(max, nanos))
+			{
+				max = maxWaitNanos.get();
+			}
+		}
+
+		/**
+		 * @return The number of threads that entered the lane.
+		 */
+		public long getEntries()
+		{
+			return entries.get();
+		}
+
+		/**
+		 * @return The number of threads that had to wait, whether they were admitted or rejected.
+		 */
+		public long getWaits()
+		{
+			return waits.get();
+		}
+
+		public double getMeanWaitMillis()
+		{
+			long n = waits.get();
+			return n == 0 ? 0 : waitNanos.get() / 1000000.0 / n;
+		}
+
+		public double getMaxWaitMillis()
+		{
+			return maxWaitNanos.get() / 1000000.0;
+		}
+
+		public long getRejected()
+		{
+			return rejected.get();
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format("entries %d, waited %d (mean %.1f ms, max %.1f ms), rejected %d", getEntries(),
+					getWaits(), getMeanWaitMillis(), getMaxWaitMillis(), getRejected());
+		}
+	}
+}
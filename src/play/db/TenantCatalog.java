@@ -0,0 +1,47 @@
+package play.db;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * A source of tenant database definitions kept outside of application.conf, for applications with
+ * too many tenants to list there.  Tenants are looked up one at a time, on their first request.
+ * <p>
+ * An application class implementing this interface, with a public no-argument constructor, is used
+ * in place of the catalogs provided by the module.
+ *
+ * @author dcardon
+ */
+public interface TenantCatalog
+{
+	/**
+	 * Opens the catalog.
+	 * @param configuration The application's configuration, with the mdb.catalog.* settings.
+	 * @throws Exception
+	 */
+	void open(Properties configuration) throws Exception;
+
+	/**
+	 * Finds the database of a tenant.
+	 * @param key The database key of the tenant.
+	 * @return The database parameters, named as in application.conf without the mdb. prefix and the
+	 * key (url, driver, user, pass, pool.timeout, pool.maxSize, pool.minSize), or null if the
+	 * catalog has no such tenant.  Missing parameters are taken from the mdb.*.all entries.
+	 * @throws Exception if the catalog cannot be read.
+	 */
+	Map<String, String> find(String key) throws Exception;
+
+	/**
+	 * Lists the tenants added, changed or removed since the previous poll.  The first poll lists
+	 * the changes since the catalog was opened.
+	 * @return The keys of the tenants.
+	 * @throws Exception if the catalog cannot be read.
+	 */
+	Collection<String> poll() throws Exception;
+
+	/**
+	 * Releases the resources of the catalog.
+	 */
+	void close();
+}
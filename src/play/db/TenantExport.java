@@ -0,0 +1,1081 @@
+package play.db;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import javax.persistence.EntityManagerFactory;
+import javax.sql.DataSource;
+
+import org.apache.commons.lang.StringUtils;
+import org.hibernate.SessionFactory;
+import org.hibernate.ejb.HibernateEntityManagerFactory;
+import org.hibernate.persister.collection.AbstractCollectionPersister;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+
+import play.Logger;
+import play.Play;
+import play.db.jpa.MJPAPlugin;
+
+/**
+ * Exports the mapped tables of databases to files, in the background: a logical backup, or a feed
+ * for a warehouse.  Each table is streamed with a forward-only cursor to a gzipped CSV file written
+ * through a file channel, next to its SHA-256 checksum, so that the memory used does not depend on
+ * the size of the tables.  Several tables are exported at once, with at most a few per database
+ * server.
+ * <p>
+ * A run writes to its own directory and records each exported table in its manifest, so that an
+ * interrupted run can be resumed without exporting those tables again.  An incremental run only
+ * exports the rows whose watermark column went past the highest value exported by the previous
+ * complete runs.
+ *
+ * @author dcardon
+ */
+public class TenantExport implements Runnable
+{
+	public static final String EXPORT_CONF_PREFIX = MDBPlugin.MDB_CONF_PREFIX + "export.";
+
+	public enum State
+	{
+		RUNNING, DONE, STOPPED, FAILED
+	}
+
+	/**
+	 * The number of tables exported at once.
+	 */
+	public static volatile int threads = 4;
+
+	/**
+	 * The number of tables exported at once from the same database server.
+	 */
+	public static volatile int perHost = 2;
+
+	/**
+	 * The number of rows fetched at once.
+	 */
+	public static volatile int fetchSize = 1000;
+
+	/**
+	 * How far back before the previous watermark an incremental export selects rows again, in
+	 * milliseconds, for a timestamp watermark: the rows of transactions that committed late with an
+	 * older watermark are exported by the next run, along with rows already exported.
+	 */
+	public static volatile long overlapMillis = 0;
+
+	/**
+	 * The column whose value grows with each change of a row, e.g. a last modification time, by
+	 * which incremental exports select rows.
+	 */
+	public static volatile String watermarkColumn;
+
+	private static volatile File directory;
+
+	private static final String MANIFEST = "manifest.properties";
+	private static final String WATERMARKS = "watermarks.properties";
+	private static final int BUFFER = 64 * 1024;
+
+	/**
+	 * The number of finished exports kept for the status.
+	 */
+	private static final int HISTORY = 20;
+
+	private static final ConcurrentMap<String, TenantExport> active = new ConcurrentHashMap<String, TenantExport>();
+
+	private static final List<TenantExport> history = new CopyOnWriteArrayList<TenantExport>();
+
+	/**
+	 * The tables being exported from each database server, by host.
+	 */
+	private static final ConcurrentMap<String, Semaphore> hosts = new ConcurrentHashMap<String, Semaphore>();
+
+	public final String name;
+	public final boolean incremental;
+	private final File runDirectory;
+	private final List<String> keys;
+
+	/**
+	 * The run's settings, the watermarks it starts from and the tables it exported.
+	 */
+	private final Properties manifest;
+
+	private final LinkedList<Table> pending = new LinkedList<Table>();
+	private volatile State state = State.RUNNING;
+	private volatile boolean stopped;
+	private volatile Throwable error;
+	private final long started = System.currentTimeMillis();
+	private volatile long finished;
+	private volatile int tableCount;
+	private final AtomicInteger tablesExported = new AtomicInteger();
+	private final AtomicInteger tablesSkipped = new AtomicInteger();
+	private final AtomicInteger tablesFailed = new AtomicInteger();
+	private final AtomicLong rowsExported = new AtomicLong();
+	private final AtomicLong bytesWritten = new AtomicLong();
+
+	TenantExport(String name, File runDirectory, List<String> keys, boolean incremental, Properties manifest)
+	{
+		this.name = name;
+		this.runDirectory = runDirectory;
+		this.keys = keys;
+		this.incremental = incremental;
+		this.manifest = manifest;
+	}
+
+	/**
+	 * Reads the mdb.export.* settings.
+	 * @param configuration
+	 */
+	public static void configure(Properties configuration)
+	{
+		threads = Integer.parseInt(configuration.getProperty(EXPORT_CONF_PREFIX + "threads", "4"));
+		perHost = Integer.parseInt(configuration.getProperty(EXPORT_CONF_PREFIX + "perHost", "2"));
+		fetchSize = Integer.parseInt(configuration.getProperty(EXPORT_CONF_PREFIX + "fetchSize", "1000"));
+		watermarkColumn = configuration.getProperty(EXPORT_CONF_PREFIX + "watermark");
+		overlapMillis = Long.parseLong(configuration.getProperty(EXPORT_CONF_PREFIX + "overlap", "0"));
+		String path = configuration.getProperty(EXPORT_CONF_PREFIX + "dir", "exports");
+		directory = (new File(path).isAbsolute() ? new File(path) : Play.getFile(path));
+		hosts.clear();
+	}
+
+	/**
+	 * Starts exporting all databases, in the background.
+	 * @param incremental Whether only the rows changed since the previous complete run are exported.
+	 * @return The export, which reports its progress.
+	 */
+	public static TenantExport start(boolean incremental)
+	{
+		String name = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + (incremental ? "-incremental" : "");
+		return start(name, MDB.wrappers.keySet(), incremental);
+	}
+
+	/**
+	 * Starts exporting databases, in the background.
+	 * @param name The name of the run, which is the name of its directory.
+	 * @param dbKeys The keys of the databases to export.
+	 * @param incremental Whether only the rows changed since the previous complete run are exported.
+	 * @return The export, which reports its progress.
+	 * @throws IllegalStateException if the run already exists or a database is unknown.
+	 */
+	public static TenantExport start(String name, Collection<String> dbKeys, boolean incremental)
+	{
+		File runDirectory = new File(directory, name);
+		if (new File(runDirectory, MANIFEST).exists())
+		{
+			throw new IllegalStateException("Export [" + name + "] already exists; resume it instead");
+		}
+		List<String> keys = new ArrayList<String>(new LinkedHashSet<String>(dbKeys));
+		for (String key : keys)
+		{
+			if (MDB.getDataSource(key) == null)
+			{
+				throw new IllegalStateException("Cannot export [" + key + "]: unknown database");
+			}
+		}
+		Properties manifest = new Properties();
+		manifest.setProperty("keys", StringUtils.join(keys, ','));
+		manifest.setProperty("incremental", String.valueOf(incremental));
+		if (incremental)
+		{
+			if (watermarkColumn == null)
+			{
+				throw new IllegalStateException("Incremental exports require " + EXPORT_CONF_PREFIX + "watermark");
+			}
+			//
+			//	The starting watermarks are kept with the run, so that a resumed run starts from the
+			//	same ones.
+			//
+			Properties watermarks = load(new File(directory, WATERMARKS));
+			for (String property : watermarks.stringPropertyNames())
+			{
+				if (keys.contains(property.substring(0, property.indexOf('/'))))
+				{
+					manifest.setProperty("from." + property, watermarks.getProperty(property));
+				}
+			}
+		}
+		TenantExport export = new TenantExport(name, runDirectory, keys, incremental, manifest);
+		export.launch();
+		return export;
+	}
+
+	/**
+	 * Resumes an interrupted run, in the background: the tables it did not finish are exported.
+	 * @param name The name of the run.
+	 * @return The export, which reports its progress.
+	 * @throws IllegalStateException if the run does not exist.
+	 */
+	public static TenantExport resume(String name)
+	{
+		File runDirectory = new File(directory, name);
+		if (!new File(runDirectory, MANIFEST).exists())
+		{
+			throw new IllegalStateException("No export [" + name + "] in " + directory);
+		}
+		Properties manifest = load(new File(runDirectory, MANIFEST));
+		List<String> keys = new ArrayList<String>();
+		for (String key : StringUtils.split(manifest.getProperty("keys", ""), ','))
+		{
+			if (MDB.getDataSource(key) == null)
+			{
+				Logger.warn("Export [%s]: database [%s] is gone; it is not exported", name, key);
+				continue;
+			}
+			keys.add(key);
+		}
+		boolean incremental = Boolean.parseBoolean(manifest.getProperty("incremental"));
+		TenantExport export = new TenantExport(name, runDirectory, keys, incremental, manifest);
+		export.launch();
+		return export;
+	}
+
+	private void launch()
+	{
+		if (active.putIfAbsent(name, this) != null)
+		{
+			throw new IllegalStateException("Export [" + name + "] is already running");
+		}
+		manifest.remove("complete");
+		runDirectory.mkdirs();
+		saveManifest();
+		Thread thread = MDBTasks.daemonThreads("mdb-export-" + name).newThread(this);
+		thread.start();
+	}
+
+	/**
+	 * @return The exports in progress, then the last finished ones.
+	 */
+	public static List<TenantExport> getAll()
+	{
+		List<TenantExport> all = new ArrayList<TenantExport>(active.values());
+		all.addAll(history);
+		return all;
+	}
+
+	/**
+	 * Stops the exports in progress, e.g. at shutdown.  The tables being exported are abandoned,
+	 * and exported again when the runs are resumed.
+	 */
+	public static void shutdown()
+	{
+		for (TenantExport export : active.values())
+		{
+			export.stop();
+		}
+	}
+
+	@Override
+	public void run()
+	{
+		Logger.info("Exporting %s databases to %s", keys.size(), runDirectory);
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads),
+				MDBTasks.daemonThreads("mdb-export-table"));
+		State outcome = State.FAILED;
+		try
+		{
+			findTables();
+			List<Future<?>> workers = new ArrayList<Future<?>>();
+			for (int i = 0; i < Math.max(1, threads); i++)
+			{
+				workers.add(executor.submit(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						work();
+					}
+				}));
+			}
+			for (Future<?> worker : workers)
+			{
+				worker.get();
+			}
+			if (stopped)
+			{
+				outcome = State.STOPPED;
+			}
+			else if (tablesFailed.get() > 0)
+			{
+				throw new IllegalStateException(tablesFailed.get() + " tables were not exported; resume the export to retry them");
+			}
+			else
+			{
+				manifest.setProperty("complete", "true");
+				saveManifest();
+				if (incremental)
+				{
+					saveWatermarks();
+				}
+				outcome = State.DONE;
+			}
+		}
+		catch (Throwable e)
+		{
+			if (error == null)
+			{
+				error = e;
+			}
+			Logger.error(e, "Export [%s] failed", name);
+		}
+		finally
+		{
+			executor.shutdownNow();
+			finished = System.currentTimeMillis();
+			active.remove(name, this);
+			history.add(0, this);
+			while (history.size() > HISTORY)
+			{
+				history.remove(history.size() - 1);
+			}
+
+			//
+			//	The state is set last, so that the run can be resumed as soon as it is seen finished.
+			//
+			state = outcome;
+		}
+		if (outcome != State.FAILED)
+		{
+			Logger.info("Export [%s] %s: %s", name, (outcome == State.DONE ? "done" : "stopped"), this);
+		}
+	}
+
+	/**
+	 * Lists the tables left to export, taking the databases in turn so that the exports of a
+	 * database server are spread over the run.
+	 */
+	private void findTables()
+	{
+		List<Iterator<Table>> perKey = new ArrayList<Iterator<Table>>();
+		for (String key : keys)
+		{
+			List<Table> tables = new ArrayList<Table>();
+			for (String table : mappedTables(key))
+			{
+				tables.add(new Table(key, table));
+			}
+			perKey.add(tables.iterator());
+		}
+		int count = 0;
+		boolean more = true;
+		while (more)
+		{
+			more = false;
+			for (Iterator<Table> tables : perKey)
+			{
+				if (tables.hasNext())
+				{
+					Table table = tables.next();
+					count++;
+					more = true;
+					if (manifest.containsKey("done." + table.id))
+					{
+						tablesSkipped.incrementAndGet();
+					}
+					else
+					{
+						pending.add(table);
+					}
+				}
+			}
+		}
+		tableCount = count;
+	}
+
+	/**
+	 * Finds the tables of the entities and collections mapped by the factory of a database.
+	 */
+	@SuppressWarnings("unchecked")
+	private List<String> mappedTables(String key)
+	{
+		TenantHibernation.wake(key);
+		EntityManagerFactory emf = MJPAPlugin.factoryMap.get(key);
+		if (!(emf instanceof HibernateEntityManagerFactory))
+		{
+			Logger.warn("Export [%s]: no entity manager factory for [%s]; it is not exported", name, key);
+			return new ArrayList<String>();
+		}
+		SessionFactory factory = ((HibernateEntityManagerFactory) emf).getSessionFactory();
+		Set<String> tables = new LinkedHashSet<String>();
+		for (Object metadata : factory.getAllClassMetadata().values())
+		{
+			if (metadata instanceof AbstractEntityPersister)
+			{
+				tables.add(((AbstractEntityPersister) metadata).getRootTableName());
+				tables.add(((AbstractEntityPersister) metadata).getTableName());
+			}
+		}
+		for (Object metadata : factory.getAllCollectionMetadata().values())
+		{
+			if (metadata instanceof AbstractCollectionPersister && !((AbstractCollectionPersister) metadata).isOneToMany())
+			{
+				tables.add(((AbstractCollectionPersister) metadata).getTableName());
+			}
+		}
+		return new ArrayList<String>(tables);
+	}
+
+	/**
+	 * Exports tables until none is left, or the export is stopped.
+	 */
+	private void work()
+	{
+		Table table;
+		while ((table = next()) != null)
+		{
+			try
+			{
+				if (!stopped)
+				{
+					//
+					//	The export holds the database's bulkhead, so that it counts in its limit and
+					//	the database is not hibernated while the table streams.
+					//
+					TenantBulkhead.enter(table.key);
+					try
+					{
+						TenantHibernation.wake(table.key);
+						exportTable(table);
+					}
+					finally
+					{
+						TenantBulkhead.exit(table.key);
+					}
+					tablesExported.incrementAndGet();
+				}
+			}
+			catch (TenantUnavailableException e)
+			{
+				//
+				//	The database is busy; the table is exported later.
+				//
+				Logger.debug("Export [%s]: [%s] is busy, table %s is postponed", name, table.key, table.name);
+				synchronized (this)
+				{
+					pending.add(table);
+				}
+			}
+			catch (Throwable e)
+			{
+				if (!stopped)
+				{
+					tablesFailed.incrementAndGet();
+					error = e;
+					Logger.error(e, "Export [%s]: table %s of [%s] failed", name, table.name, table.key);
+				}
+			}
+			finally
+			{
+				table.host.release();
+				synchronized (this)
+				{
+					notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Takes the next table whose database server has room for another export, waiting for one if
+	 * needed.
+	 * @return The table, whose host permit is held, or null once there is none left.
+	 */
+	private synchronized Table next()
+	{
+		while (!pending.isEmpty() && !stopped)
+		{
+			for (Iterator<Table> it = pending.iterator(); it.hasNext();)
+			{
+				Table table = it.next();
+				if (table.host.tryAcquire())
+				{
+					it.remove();
+					return table;
+				}
+			}
+			try
+			{
+				//
+				//	Permits are also released by the other runs, which do not notify this one.
+				//
+				wait(100);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				stopped = true;
+			}
+		}
+		return null;
+	}
+
+	private void stop()
+	{
+		stopped = true;
+		synchronized (this)
+		{
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Streams the rows of a table to its file, and records the table in the manifest once the
+	 * file and its checksum are in place.
+	 */
+	private void exportTable(Table table) throws Exception
+	{
+		File dir = new File(runDirectory, fileName(table.key));
+		dir.mkdirs();
+		String fileName = fileName(table.name) + ".csv.gz";
+		File file = new File(dir, fileName);
+		File part = new File(dir, fileName + ".part");
+		String from = manifest.getProperty("from." + table.id);
+		Connection connection = source(table.key).getConnection();
+		try
+		{
+			String watermark = (incremental ? findColumn(connection, table.name, watermarkColumn) : null);
+			if (incremental && watermark == null)
+			{
+				Logger.warn("Export [%s]: table %s of [%s] has no %s column; all its rows are exported", name,
+						table.name, table.key, watermarkColumn);
+			}
+			String sql = "SELECT * FROM " + table.name;
+			if (watermark != null && from != null)
+			{
+				sql += " WHERE " + watermark + " > ?";
+			}
+
+			//
+			//	Some drivers only stream the results of a transaction.
+			//
+			connection.setAutoCommit(false);
+			PreparedStatement select = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY,
+					ResultSet.CONCUR_READ_ONLY);
+			try
+			{
+				select.setFetchSize(fetchSize(connection));
+				if (watermark != null && from != null)
+				{
+					bindWatermark(select, from);
+				}
+				ResultSet rs = select.executeQuery();
+				MessageDigest digest = MessageDigest.getInstance("SHA-256");
+				FileOutputStream stream = new FileOutputStream(part);
+				long rows;
+				String highest;
+				boolean written = false;
+				try
+				{
+					FileChannel channel = stream.getChannel();
+					GZIPOutputStream gzip = new GZIPOutputStream(new DigestOutputStream(Channels.newOutputStream(channel),
+							digest), BUFFER);
+					Writer out = new BufferedWriter(new OutputStreamWriter(gzip, "UTF-8"), BUFFER);
+					Object[] result = writeRows(rs, out, watermark);
+					rows = ((Long) result[0]).longValue();
+					highest = (String) result[1];
+					out.flush();
+					gzip.finish();
+					channel.force(true);
+					bytesWritten.addAndGet(channel.size());
+					written = true;
+				}
+				finally
+				{
+					stream.close();
+					if (!written)
+					{
+						part.delete();
+					}
+				}
+				String checksum = hex(digest.digest());
+				write(new File(dir, fileName + ".sha256"), checksum + "  " + fileName + "\n");
+				replace(part, file);
+				record(table, rows, checksum, (highest == null ? from : highest));
+			}
+			finally
+			{
+				select.close();
+				connection.rollback();
+			}
+		}
+		finally
+		{
+			close(connection);
+		}
+	}
+
+	/**
+	 * MySQL's driver reads the whole result into memory, whatever the fetch size, unless the url
+	 * sets useCursorFetch=true; it streams the rows one at a time given Integer.MIN_VALUE.
+	 */
+	private static int fetchSize(Connection connection) throws SQLException
+	{
+		DatabaseMetaData metadata = connection.getMetaData();
+		if (StringUtils.containsIgnoreCase(metadata.getDriverName(), "MySQL")
+				&& !StringUtils.containsIgnoreCase(metadata.getURL(), "useCursorFetch=true"))
+		{
+			return Integer.MIN_VALUE;
+		}
+		return fetchSize;
+	}
+
+	/**
+	 * Writes the header and the rows of a result set as CSV.
+	 * @return The number of rows, and the highest watermark seen or null.
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private Object[] writeRows(ResultSet rs, Writer out, String watermark) throws SQLException, IOException
+	{
+		ResultSetMetaData metadata = rs.getMetaData();
+		int columns = metadata.getColumnCount();
+		int[] types = new int[columns + 1];
+		int watermarkIndex = 0;
+		for (int i = 1; i <= columns; i++)
+		{
+			types[i] = metadata.getColumnType(i);
+			out.write(i == 1 ? "" : ",");
+			writeValue(out, metadata.getColumnLabel(i));
+			if (watermark != null && metadata.getColumnLabel(i).equalsIgnoreCase(watermark))
+			{
+				watermarkIndex = i;
+			}
+		}
+		out.write("\r\n");
+		long rows = 0;
+		Comparable highest = null;
+		String encoded = null;
+		while (rs.next())
+		{
+			for (int i = 1; i <= columns; i++)
+			{
+				out.write(i == 1 ? "" : ",");
+				if (isBinary(types[i]))
+				{
+					byte[] value = rs.getBytes(i);
+					out.write(value == null ? "" : hex(value));
+				}
+				else
+				{
+					writeValue(out, rs.getString(i));
+				}
+			}
+			out.write("\r\n");
+			if (watermarkIndex > 0)
+			{
+				Comparable value = watermarkValue(rs, watermarkIndex, types[watermarkIndex]);
+				if (value != null && (highest == null || value.compareTo(highest) > 0))
+				{
+					highest = value;
+					encoded = encodeWatermark(value);
+				}
+			}
+			if (++rows % fetchSize == 0)
+			{
+				rowsExported.addAndGet(fetchSize);
+				if (stopped)
+				{
+					throw new IllegalStateException("Export [" + name + "] stopped");
+				}
+			}
+		}
+		rowsExported.addAndGet(rows % fetchSize);
+		return new Object[] { Long.valueOf(rows), encoded };
+	}
+
+	/**
+	 * Writes a CSV value: null as nothing, and the empty string or one with separators quoted.
+	 */
+	private static void writeValue(Writer out, String value) throws IOException
+	{
+		if (value == null)
+		{
+			return;
+		}
+		if (value.length() > 0 && StringUtils.containsNone(value, ",\"\r\n"))
+		{
+			out.write(value);
+			return;
+		}
+		out.write('"');
+		out.write(value.replace("\"", "\"\""));
+		out.write('"');
+	}
+
+	private static boolean isBinary(int type)
+	{
+		return type == Types.BINARY || type == Types.VARBINARY || type == Types.LONGVARBINARY || type == Types.BLOB;
+	}
+
+	@SuppressWarnings("rawtypes")
+	private static Comparable watermarkValue(ResultSet rs, int index, int type) throws SQLException
+	{
+		switch (type)
+		{
+		case Types.DATE:
+		case Types.TIME:
+		case Types.TIMESTAMP:
+			return rs.getTimestamp(index);
+		case Types.TINYINT:
+		case Types.SMALLINT:
+		case Types.INTEGER:
+		case Types.BIGINT:
+		case Types.DECIMAL:
+		case Types.NUMERIC:
+		case Types.REAL:
+		case Types.FLOAT:
+		case Types.DOUBLE:
+			return rs.getBigDecimal(index);
+		default:
+			return rs.getString(index);
+		}
+	}
+
+	/**
+	 * Encodes a watermark with its kind, so that it is bound to the query with its type.
+	 */
+	@SuppressWarnings("rawtypes")
+	private static String encodeWatermark(Comparable value)
+	{
+		if (value instanceof Timestamp)
+		{
+			return "T:" + value;
+		}
+		if (value instanceof BigDecimal)
+		{
+			return "N:" + ((BigDecimal) value).toPlainString();
+		}
+		return "S:" + value;
+	}
+
+	private static void bindWatermark(PreparedStatement statement, String encoded) throws SQLException
+	{
+		String value = encoded.substring(2);
+		switch (encoded.charAt(0))
+		{
+		case 'T':
+			Timestamp from = Timestamp.valueOf(value);
+			long overlap = overlapMillis;
+			statement.setTimestamp(1, (overlap > 0 ? new Timestamp(from.getTime() - overlap) : from));
+			break;
+		case 'N':
+			statement.setBigDecimal(1, new BigDecimal(value));
+			break;
+		default:
+			statement.setString(1, value);
+		}
+	}
+
+	/**
+	 * Finds a column of a table.
+	 * @return The column's name as the database stores it, or null if the table has no such column.
+	 */
+	private static String findColumn(Connection connection, String table, String column) throws SQLException
+	{
+		DatabaseMetaData metadata = connection.getMetaData();
+		ResultSet rs = metadata.getColumns(null, null, TenantMigration.metaName(metadata, table),
+				TenantMigration.metaName(metadata, column));
+		try
+		{
+			return (rs.next() ? rs.getString("COLUMN_NAME") : null);
+		}
+		finally
+		{
+			rs.close();
+		}
+	}
+
+	/**
+	 * Records an exported table in the manifest.
+	 */
+	private synchronized void record(Table table, long rows, String checksum, String watermark)
+	{
+		manifest.setProperty("done." + table.id, rows + "," + checksum + "," + StringUtils.defaultString(watermark));
+		saveManifest();
+	}
+
+	private synchronized void saveManifest()
+	{
+		try
+		{
+			store(manifest, new File(runDirectory, MANIFEST), "Export " + name);
+		}
+		catch (IOException e)
+		{
+			throw new IllegalStateException("Unable to save the manifest of export [" + name + "]", e);
+		}
+	}
+
+	/**
+	 * Keeps the highest watermarks of a complete run, for the next incremental run to start from.
+	 */
+	private void saveWatermarks() throws IOException
+	{
+		synchronized (TenantExport.class)
+		{
+			File file = new File(directory, WATERMARKS);
+			Properties watermarks = load(file);
+			for (Map.Entry<Object, Object> entry : manifest.entrySet())
+			{
+				String property = (String) entry.getKey();
+				if (property.startsWith("done."))
+				{
+					String[] done = StringUtils.splitPreserveAllTokens((String) entry.getValue(), ",", 3);
+					if (done.length == 3 && done[2].length() > 0)
+					{
+						watermarks.setProperty(property.substring("done.".length()), done[2]);
+					}
+				}
+			}
+			store(watermarks, file, "Highest watermarks exported, by database and table");
+		}
+	}
+
+	private static Properties load(File file)
+	{
+		Properties properties = new Properties();
+		if (!file.exists())
+		{
+			return properties;
+		}
+		InputStream stream = null;
+		try
+		{
+			stream = new FileInputStream(file);
+			properties.load(stream);
+		}
+		catch (IOException e)
+		{
+			throw new IllegalStateException("Unable to read " + file, e);
+		}
+		finally
+		{
+			close(stream);
+		}
+		return properties;
+	}
+
+	/**
+	 * Saves properties to a temporary file first, so that an interruption leaves the previous ones.
+	 */
+	private static void store(Properties properties, File file, String comments) throws IOException
+	{
+		File temporary = new File(file.getPath() + ".tmp");
+		FileOutputStream stream = new FileOutputStream(temporary);
+		try
+		{
+			properties.store(stream, comments);
+			stream.getFD().sync();
+		}
+		finally
+		{
+			stream.close();
+		}
+		replace(temporary, file);
+	}
+
+	private static void write(File file, String content) throws IOException
+	{
+		OutputStream stream = new FileOutputStream(file);
+		try
+		{
+			stream.write(content.getBytes("UTF-8"));
+		}
+		finally
+		{
+			stream.close();
+		}
+	}
+
+	private static void replace(File from, File to) throws IOException
+	{
+		//
+		//	Renaming over an existing file fails on some platforms.
+		//
+		if (!from.renameTo(to) && !(to.delete() && from.renameTo(to)))
+		{
+			throw new IOException("Unable to rename " + from + " to " + to);
+		}
+	}
+
+	private static String fileName(String name)
+	{
+		return name.replaceAll("[^A-Za-z0-9_.-]", "_");
+	}
+
+	private static String hex(byte[] bytes)
+	{
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes)
+		{
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * Finds the server of a JDBC url: what follows // up to the database name or the options.
+	 */
+	static String host(String url)
+	{
+		int start = url.indexOf("//");
+		if (start < 0)
+		{
+			return url;
+		}
+		int end = start + 2;
+		while (end < url.length() && "/;?".indexOf(url.charAt(end)) < 0)
+		{
+			end++;
+		}
+		return url.substring(start + 2, end);
+	}
+
+	private static Semaphore hostPermits(String key)
+	{
+		String host = host(StringUtils.defaultString(MDB.getDataSource(key).getDelegate().getJdbcUrl()));
+		Semaphore permits = hosts.get(host);
+		if (permits == null)
+		{
+			permits = new Semaphore(Math.max(1, perHost));
+			Semaphore existing = hosts.putIfAbsent(host, permits);
+			if (existing != null)
+			{
+				permits = existing;
+			}
+		}
+		return permits;
+	}
+
+	private static void close(Connection connection)
+	{
+		try
+		{
+			connection.close();
+		}
+		catch (SQLException e)
+		{
+			Logger.warn("Error closing export connection: %s", e.getMessage());
+		}
+	}
+
+	private static void close(InputStream stream)
+	{
+		if (stream != null)
+		{
+			try
+			{
+				stream.close();
+			}
+			catch (IOException e)
+			{
+				// Nothing to do.
+			}
+		}
+	}
+
+	/**
+	 * The raw pools are used, so that the export is not counted in the statistics of the databases.
+	 * The export holds the database's bulkhead meanwhile.
+	 */
+	private static DataSource source(String key)
+	{
+		return MDB.getDataSource(key).getDelegate();
+	}
+
+	public State getState()
+	{
+		return state;
+	}
+
+	/**
+	 * @return The last error of the export, if any.
+	 */
+	public Throwable getError()
+	{
+		return error;
+	}
+
+	/**
+	 * @return The directory of the run's files.
+	 */
+	public File getDirectory()
+	{
+		return runDirectory;
+	}
+
+	public long getRowsExported()
+	{
+		return rowsExported.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		long end = (finished == 0 ? System.currentTimeMillis() : finished);
+		return "[" + name + "] " + (incremental ? "incremental, " : "") + state + ", "
+				+ (tablesExported.get() + tablesSkipped.get()) + "/" + tableCount + " tables (" + tablesSkipped.get()
+				+ " by a previous attempt, " + tablesFailed.get() + " failed), "
+				+ rowsExported.get() + " rows, " + bytesWritten.get() / 1024 + " KB, " + (end - started) + " ms"
+				+ (error == null ? "" : " (" + error.getMessage() + ")");
+	}
+
+	/**
+	 * A table of a database to export.
+	 */
+	private static class Table
+	{
+		final String key;
+		final String name;
+
+		/**
+		 * The name of the table in the manifest and the watermarks.
+		 */
+		final String id;
+		final Semaphore host;
+
+		Table(String key, String name)
+		{
+			this.key = key;
+			this.name = name;
+			this.id = key + "/" + name;
+			this.host = hostPermits(key);
+		}
+	}
+}
@@ -0,0 +1,245 @@
+package play.db;
+
+import java.sql.Connection;
+import java.util.Date;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import play.Logger;
+
+/**
+ * The circuit breaker of a database.  Consecutive connection failures open the circuit; while it
+ * is open, requests for the database fail fast with a {@link TenantUnavailableException}, and a
+ * background task rebuilds the database's pool and probes it.  Once a probe succeeds the circuit
+ * is half-open: requests are let through again, the first success closes the circuit and the
+ * first failure opens it again.
+ *
+ * @author dcardon
+ */
+public class TenantHealth
+{
+	public static final String CIRCUIT_CONF_PREFIX = MDBPlugin.MDB_CONF_PREFIX + "circuit.";
+
+	public enum State
+	{
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	/**
+	 * Whether open circuits reject requests.
+	 */
+	public static volatile boolean enabled = true;
+
+	/**
+	 * The number of consecutive connection failures that opens a circuit.
+	 */
+	public static volatile int failureThreshold = 5;
+
+	private static final ConcurrentMap<String, TenantHealth> healths = new ConcurrentHashMap<String, TenantHealth>();
+
+	private static ScheduledFuture<?> task;
+
+	public final String key;
+	private volatile State state = State.CLOSED;
+	private volatile long since = System.currentTimeMillis();
+	private volatile String lastError;
+	private final AtomicInteger failures = new AtomicInteger();
+	private final AtomicLong opened = new AtomicLong();
+	private final AtomicLong rebuilds = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+
+	TenantHealth(String key)
+	{
+		this.key = key;
+	}
+
+	/**
+	 * Reads the mdb.circuit.* settings and schedules the probes of open circuits.
+	 * @param configuration
+	 */
+	public static synchronized void configure(Properties configuration)
+	{
+		enabled = Boolean.parseBoolean(configuration.getProperty(CIRCUIT_CONF_PREFIX + "enabled", "true"));
+		failureThreshold = Integer.parseInt(configuration.getProperty(CIRCUIT_CONF_PREFIX + "failureThreshold", "5"));
+		long interval = Long.parseLong(configuration.getProperty(CIRCUIT_CONF_PREFIX + "probeInterval", "5000"));
+		if (task != null)
+		{
+			task.cancel(false);
+		}
+		task = MDBTasks.schedule("circuit probes", new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				probeAll();
+			}
+		}, interval);
+	}
+
+	/**
+	 * Finds the health of a database, creating it on first use.
+	 * @param key
+	 * @return
+	 */
+	public static TenantHealth get(String key)
+	{
+		TenantHealth health = healths.get(key);
+		if (health == null)
+		{
+			health = new TenantHealth(key);
+			TenantHealth existing = healths.putIfAbsent(key, health);
+			if (existing != null)
+			{
+				health = existing;
+			}
+		}
+		return health;
+	}
+
+	/**
+	 * Fails fast if the circuit of the database is open.
+	 * @throws TenantUnavailableException
+	 */
+	public void check()
+	{
+		if (enabled && state == State.OPEN)
+		{
+			rejected.incrementAndGet();
+			throw new TenantUnavailableException("Database [" + key + "] is unavailable since "
+					+ new Date(since) + " (" + lastError + ")");
+		}
+	}
+
+	/**
+	 * Records a successful connection to the database.
+	 */
+	void success()
+	{
+		if (failures.get() != 0)
+		{
+			failures.set(0);
+		}
+		if (state == State.HALF_OPEN)
+		{
+			transition(State.HALF_OPEN, State.CLOSED, null);
+		}
+	}
+
+	/**
+	 * Records a failed connection to the database.
+	 * @param error
+	 */
+	void failure(Throwable error)
+	{
+		lastError = error.getMessage();
+		if (state == State.HALF_OPEN)
+		{
+			transition(State.HALF_OPEN, State.OPEN, error);
+		}
+		else if (failures.incrementAndGet() >= failureThreshold && state == State.CLOSED)
+		{
+			transition(State.CLOSED, State.OPEN, error);
+		}
+	}
+
+	private synchronized void transition(State from, State to, Throwable error)
+	{
+		if (state != from)
+		{
+			return;
+		}
+		state = to;
+		since = System.currentTimeMillis();
+		if (to == State.OPEN)
+		{
+			opened.incrementAndGet();
+			Logger.error("Circuit of database [%s] is now OPEN after %s failures: %s", key, failures.get(),
+					error == null ? lastError : error.getMessage());
+		}
+		else
+		{
+			failures.set(0);
+			Logger.info("Circuit of database [%s] is now %s", key, to);
+		}
+	}
+
+	/**
+	 * Rebuilds the pool of each database whose circuit is open, and probes it.
+	 */
+	static void probeAll()
+	{
+		for (TenantHealth health : healths.values())
+		{
+			if (health.state == State.OPEN)
+			{
+				health.probe();
+			}
+		}
+	}
+
+	/**
+	 * Rebuilds the pool of the database and tries to get a connection from it; if this succeeds,
+	 * the circuit becomes half-open.
+	 */
+	void probe()
+	{
+		try
+		{
+			MDBDataSource ds = MDB.getDataSource(key);
+			if (ds == null)
+			{
+				return;
+			}
+			if (MDBPlugin.rebuildPool(key))
+			{
+				rebuilds.incrementAndGet();
+			}
+			Connection connection = ds.getDelegate().getConnection();
+			connection.close();
+			transition(State.OPEN, State.HALF_OPEN, null);
+		}
+		catch (Exception e)
+		{
+			lastError = e.getMessage();
+			Logger.debug("Probe of database [%s] failed: %s", key, e.getMessage());
+		}
+	}
+
+	public State getState()
+	{
+		return state;
+	}
+
+	/**
+	 * @return The time of the last state transition.
+	 */
+	public long getSince()
+	{
+		return since;
+	}
+
+	/**
+	 * @return The number of times the circuit was opened.
+	 */
+	public long getOpened()
+	{
+		return opened.get();
+	}
+
+	public long getRejected()
+	{
+		return rejected.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return state + " since " + new Date(since) + " (consecutive failures " + failures.get() + ", opened "
+				+ opened.get() + " times, pool rebuilt " + rebuilds.get() + " times, rejected " + rejected.get()
+				+ (lastError == null ? "" : ", last error: " + lastError) + ")";
+	}
+}
@@ -0,0 +1,281 @@
+package play.db;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.Entity;
+import javax.persistence.EntityManagerFactory;
+
+import org.hibernate.ejb.Ejb3Configuration;
+
+import play.Logger;
+import play.Play;
+import play.db.jpa.MJPAPlugin;
+
+/**
+ * Hibernates idle databases.  A database without traffic for a while has its pool closed, which
+ * releases its connections and helper threads, and its entity manager factory closed.  Both are
+ * rebuilt on the next request to the database, which pays for this cold start.
+ *
+ * @author dcardon
+ */
+public class TenantHibernation
+{
+	public static final String HIBERNATE_CONF_PREFIX = MDBPlugin.MDB_CONF_PREFIX + "hibernate.";
+
+	/**
+	 * How long a database is idle before it is hibernated, in milliseconds.  Zero or less never
+	 * hibernates databases.
+	 */
+	public static volatile long idleAfterMillis = 0;
+
+	private static final ConcurrentMap<String, TenantHibernation> tenants = new ConcurrentHashMap<String, TenantHibernation>();
+
+	private static ScheduledFuture<?> task;
+
+	public final String key;
+	private final Object lock = new Object();
+	private volatile long lastAccess = System.currentTimeMillis();
+	private volatile boolean hibernated;
+	private volatile long since;
+	private volatile long lastColdStart;
+	private volatile long maxColdStart;
+	private final AtomicLong hibernations = new AtomicLong();
+
+	TenantHibernation(String key)
+	{
+		this.key = key;
+	}
+
+	/**
+	 * Reads the mdb.hibernate.* settings and schedules the search for idle databases.
+	 * @param configuration
+	 */
+	public static synchronized void configure(Properties configuration)
+	{
+		idleAfterMillis = Long.parseLong(configuration.getProperty(HIBERNATE_CONF_PREFIX + "idleAfter", "0"));
+		long interval = Long.parseLong(configuration.getProperty(HIBERNATE_CONF_PREFIX + "interval", "60000"));
+		if (task != null)
+		{
+			task.cancel(false);
+			task = null;
+		}
+		if (idleAfterMillis <= 0)
+		{
+			return;
+		}
+		if ("create-drop".equals(configuration.getProperty("jpa.ddl")))
+		{
+			//
+			//	Closing the factory would drop the database's schema.
+			//
+			Logger.warn("Idle databases are not hibernated with jpa.ddl=create-drop");
+			idleAfterMillis = 0;
+			return;
+		}
+		task = MDBTasks.schedule("hibernation", new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				hibernateIdle();
+			}
+		}, interval);
+	}
+
+	/**
+	 * Finds the hibernation state of a database, creating it on first use.
+	 * @param key
+	 * @return
+	 */
+	public static TenantHibernation get(String key)
+	{
+		TenantHibernation tenant = tenants.get(key);
+		if (tenant == null)
+		{
+			tenant = new TenantHibernation(key);
+			TenantHibernation existing = tenants.putIfAbsent(key, tenant);
+			if (existing != null)
+			{
+				tenant = existing;
+			}
+		}
+		return tenant;
+	}
+
+	/**
+	 * Forgets the hibernation state of a database removed from the application.
+	 * @param key
+	 */
+	static void forget(String key)
+	{
+		tenants.remove(key);
+	}
+
+	/**
+	 * Records an access to a database, waking it up first if it is hibernated.
+	 * @param key
+	 * @throws TenantUnavailableException if the database cannot be woken up.
+	 */
+	public static void wake(String key)
+	{
+		if (idleAfterMillis <= 0 || MDB.getDataSource(key) == null)
+		{
+			return;
+		}
+		TenantHibernation tenant = get(key);
+		//
+		//	The access is recorded before the state is read, and hibernate() sets the state before it
+		//	reads the access time, so that one of them always sees the other.
+		//
+		tenant.lastAccess = System.currentTimeMillis();
+		if (tenant.hibernated)
+		{
+			tenant.resume();
+		}
+	}
+
+	/**
+	 * Hibernates the databases idle for longer than idleAfterMillis.
+	 */
+	static void hibernateIdle()
+	{
+		for (String key : MDB.wrappers.keySet())
+		{
+			get(key).hibernate();
+		}
+	}
+
+	/**
+	 * Closes the pool and factory of the database if it is idle.
+	 */
+	void hibernate()
+	{
+		if (hibernated || !isIdle())
+		{
+			return;
+		}
+		synchronized (lock)
+		{
+			hibernated = true;
+			if (!isIdle() || TenantBulkhead.get(key).getActive() > 0
+					|| TenantHealth.get(key).getState() != TenantHealth.State.CLOSED)
+			{
+				hibernated = false;
+				return;
+			}
+			EntityManagerFactory factory = MJPAPlugin.factoryMap.get(key);
+			if (factory != null && factory.isOpen())
+			{
+				factory.close();
+			}
+			MDBDataSource ds = MDB.getDataSource(key);
+			if (ds != null)
+			{
+				ConnectionAffinity.reclaim(ds.affinity);
+				ds.getDelegate().close();
+			}
+			since = System.currentTimeMillis();
+			hibernations.incrementAndGet();
+			Logger.info("Hibernated database [%s], idle since %s", key, new Date(lastAccess));
+		}
+	}
+
+	private boolean isIdle()
+	{
+		return System.currentTimeMillis() - lastAccess >= idleAfterMillis;
+	}
+
+	/**
+	 * Rebuilds the pool and factory of the hibernated database.
+	 */
+	@SuppressWarnings("unchecked")
+	void resume()
+	{
+		synchronized (lock)
+		{
+			if (!hibernated)
+			{
+				return;
+			}
+			long start = System.nanoTime();
+			try
+			{
+				MDBDataSource ds = MDBPlugin.reopenPool(key);
+				if (ds != null && MJPAPlugin.factoryMap.containsKey(key))
+				{
+					List<Class> classes = Play.classloader.getAnnotatedClasses(Entity.class);
+					Ejb3Configuration cfg = MJPAPlugin.buildEjbConfiguration(classes, ds);
+
+					//
+					//	The schema was updated when the factory was first built.
+					//
+					cfg.setProperty("hibernate.hbm2ddl.auto", "none");
+					EntityManagerFactory factory = cfg.buildEntityManagerFactory();
+					synchronized (MJPAPlugin.factoryMap)
+					{
+						MJPAPlugin.factoryMap.put(key, factory);
+					}
+				}
+			}
+			catch (Exception e)
+			{
+				Logger.error(e, "Unable to wake database [%s] up", key);
+				throw new TenantUnavailableException("Database [" + key + "] could not be woken up ("
+						+ e.getMessage() + ")");
+			}
+			hibernated = false;
+			DbTimeline.record(DbTimeline.Phase.WAKE, start);
+			lastColdStart = (System.nanoTime() - start) / 1000000;
+			maxColdStart = Math.max(maxColdStart, lastColdStart);
+			Logger.info("Woke database [%s] up in %s ms", key, lastColdStart);
+		}
+	}
+
+	public boolean isHibernated()
+	{
+		return hibernated;
+	}
+
+	/**
+	 * @return The time of the last access to the database.
+	 */
+	public long getLastAccess()
+	{
+		return lastAccess;
+	}
+
+	/**
+	 * @return The duration of the last cold start, in milliseconds.
+	 */
+	public long getLastColdStart()
+	{
+		return lastColdStart;
+	}
+
+	/**
+	 * @return The longest cold start, in milliseconds.
+	 */
+	public long getMaxColdStart()
+	{
+		return maxColdStart;
+	}
+
+	public long getHibernations()
+	{
+		return hibernations.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return (hibernated ? "hibernated since " + new Date(since) : "awake") + " (last access "
+				+ new Date(lastAccess) + ", hibernated " + hibernations.get() + " times, cold start "
+				+ lastColdStart + " ms, max " + maxColdStart + " ms)";
+	}
+}
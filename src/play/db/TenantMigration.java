@@ -0,0 +1,1364 @@
+package play.db;
+
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.EntityManagerFactory;
+import javax.sql.DataSource;
+
+import org.hibernate.EntityMode;
+import org.hibernate.Hibernate;
+import org.hibernate.SessionFactory;
+import org.hibernate.collection.PersistentCollection;
+import org.hibernate.ejb.HibernateEntityManagerFactory;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.metadata.CollectionMetadata;
+import org.hibernate.persister.collection.AbstractCollectionPersister;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+
+import play.Logger;
+import play.db.jpa.MJPAPlugin;
+
+/**
+ * Moves one tenant's data from its database to another one while the application runs.
+ * <ol>
+ * <li>The tenant's tables are copied, streamed in batches, several tables at once in the order of
+ * their foreign keys.  Meanwhile the rows changed by the tenant's transactions are tracked, and
+ * recorded once their transaction commits.</li>
+ * <li>The changed rows are copied again, until few are left.</li>
+ * <li>New write transactions of the tenant and new connections to the source database are held,
+ * the ones in progress are waited for, the last changed rows are copied, and the tenant is switched
+ * over to the target database.</li>
+ * </ol>
+ * A tenant with its own database is switched by giving its key a pool on the target server.  A
+ * tenant sharing a database (see {@link ShardRing}) has its rows selected by the tenant column and
+ * is switched by pinning it to the target.  The source rows are left in place.
+ *
+ * @author dcardon
+ */
+public class TenantMigration implements Runnable
+{
+	public static final String MIGRATION_CONF_PREFIX = MDBPlugin.MDB_CONF_PREFIX + "migration.";
+
+	public enum State
+	{
+		COPYING, CATCHING_UP, CUTOVER, DONE, FAILED
+	}
+
+	/**
+	 * The number of rows fetched and inserted at once.
+	 */
+	public static volatile int batchSize = 1000;
+
+	/**
+	 * The number of tables copied at once.
+	 */
+	public static volatile int threads = 4;
+
+	/**
+	 * The column holding the tenant id in shared databases.
+	 */
+	public static volatile String tenantColumn;
+
+	/**
+	 * How long write transactions are held during the cutover, in milliseconds.
+	 */
+	public static volatile long maxFreezeMillis = 5000;
+
+	/**
+	 * The number of changed rows left below which the cutover starts.
+	 */
+	public static volatile int catchUpThreshold = 100;
+
+	/**
+	 * The maximum number of catch-up rounds before the cutover.
+	 */
+	public static volatile int maxRounds = 20;
+
+	/**
+	 * The number of finished migrations kept for the status.
+	 */
+	private static final int HISTORY = 20;
+
+	private static final ConcurrentMap<String, TenantMigration> active = new ConcurrentHashMap<String, TenantMigration>();
+
+	private static final List<TenantMigration> history = new CopyOnWriteArrayList<TenantMigration>();
+
+	/**
+	 * The migration whose write transactions the current thread is counted in.
+	 */
+	private static final ThreadLocal<TenantMigration> entered = new ThreadLocal<TenantMigration>();
+
+	/**
+	 * The changes made by the current thread's transaction, recorded when it commits: migration,
+	 * entity (null for a collection), id or owner key, and collection role.
+	 */
+	private static final ThreadLocal<List<Object[]>> pending = new ThreadLocal<List<Object[]>>();
+
+	public final String tenant;
+	public final String sourceKey;
+	public final String targetKey;
+
+	/**
+	 * Whether the tenant's rows are selected by the tenant column.
+	 */
+	private final boolean shared;
+	private final SessionFactory factory;
+	private volatile State state = State.COPYING;
+	private volatile Throwable error;
+	private final long started = System.currentTimeMillis();
+	private volatile long finished;
+	private volatile int tableCount;
+	private final AtomicInteger tablesCopied = new AtomicInteger();
+	private final AtomicLong rowsCopied = new AtomicLong();
+	private final AtomicLong changesApplied = new AtomicLong();
+	private final Set<Change> changes = Collections.newSetFromMap(new ConcurrentHashMap<Change, Boolean>());
+	private final AtomicInteger writers = new AtomicInteger();
+
+	/**
+	 * The connections to the source database handed out outside of counted write transactions.
+	 */
+	private final AtomicInteger connections = new AtomicInteger();
+	private volatile CountDownLatch frozen;
+	private final Map<String, List<String>> primaryKeys = new ConcurrentHashMap<String, List<String>>();
+	private final Map<String, Boolean> tenantTables = new ConcurrentHashMap<String, Boolean>();
+
+	/**
+	 * The owner of each table, by which the tenant's rows of tables without the tenant column are
+	 * found: the column referencing the owner (null for the primary key), the owner's table and
+	 * the owner's id column.
+	 */
+	private final Map<String, String[]> owners = new ConcurrentHashMap<String, String[]>();
+
+	TenantMigration(String tenant, String sourceKey, String targetKey, boolean shared, SessionFactory factory)
+	{
+		this.tenant = tenant;
+		this.sourceKey = sourceKey;
+		this.targetKey = targetKey;
+		this.shared = shared;
+		this.factory = factory;
+	}
+
+	/**
+	 * Reads the mdb.migration.* settings.
+	 * @param configuration
+	 */
+	public static void configure(Properties configuration)
+	{
+		batchSize = Integer.parseInt(configuration.getProperty(MIGRATION_CONF_PREFIX + "batchSize", "1000"));
+		threads = Integer.parseInt(configuration.getProperty(MIGRATION_CONF_PREFIX + "threads", "4"));
+		tenantColumn = configuration.getProperty(MIGRATION_CONF_PREFIX + "tenantColumn");
+		maxFreezeMillis = Long.parseLong(configuration.getProperty(MIGRATION_CONF_PREFIX + "maxFreeze", "5000"));
+		catchUpThreshold = Integer.parseInt(configuration.getProperty(MIGRATION_CONF_PREFIX + "catchUpThreshold", "100"));
+		maxRounds = Integer.parseInt(configuration.getProperty(MIGRATION_CONF_PREFIX + "maxRounds", "20"));
+	}
+
+	/**
+	 * Starts moving a tenant to another database, in the background.
+	 * @param tenant The tenant id, which is the database key of tenants with their own database.
+	 * @param targetKey The key of the target database, whose schema must exist.
+	 * @return The migration, which reports its progress.
+	 * @throws IllegalStateException if the migration cannot start.
+	 */
+	public static TenantMigration start(String tenant, String targetKey)
+	{
+		String sourceKey = ShardRing.route(tenant);
+		if (MDB.getDataSource(sourceKey) == null || MDB.getDataSource(targetKey) == null)
+		{
+			throw new IllegalStateException("Cannot move [" + tenant + "] from [" + sourceKey + "] to ["
+					+ targetKey + "]: unknown database");
+		}
+		if (sourceKey.equals(targetKey))
+		{
+			throw new IllegalStateException("Tenant [" + tenant + "] is already on [" + targetKey + "]");
+		}
+		boolean shared = !sourceKey.equals(tenant) || ShardRing.getShards().contains(targetKey);
+		if (shared && tenantColumn == null)
+		{
+			throw new IllegalStateException("Moving tenants of shared databases requires "
+					+ MIGRATION_CONF_PREFIX + "tenantColumn");
+		}
+		TenantHibernation.wake(sourceKey);
+		TenantHibernation.wake(targetKey);
+		EntityManagerFactory emf = MJPAPlugin.factoryMap.get(sourceKey);
+		if (!(emf instanceof HibernateEntityManagerFactory))
+		{
+			throw new IllegalStateException("No entity manager factory for [" + sourceKey + "]");
+		}
+		TenantMigration migration = new TenantMigration(tenant, sourceKey, targetKey, shared,
+				((HibernateEntityManagerFactory) emf).getSessionFactory());
+		if (active.putIfAbsent(tenant, migration) != null)
+		{
+			throw new IllegalStateException("Tenant [" + tenant + "] is already being moved");
+		}
+		Thread thread = MDBTasks.daemonThreads("mdb-migration-" + tenant).newThread(migration);
+		thread.start();
+		return migration;
+	}
+
+	/**
+	 * @return The migrations in progress, then the last finished ones.
+	 */
+	public static List<TenantMigration> getAll()
+	{
+		List<TenantMigration> all = new ArrayList<TenantMigration>(active.values());
+		all.addAll(history);
+		return all;
+	}
+
+	/**
+	 * Counts a write transaction starting on a database, holding it while a migration of its
+	 * tenant is switching over.
+	 * @param dbKey
+	 * @param readOnly
+	 * @return The database key to use, which is the target if the tenant was just switched over.
+	 * @throws TenantUnavailableException if the switch takes too long.
+	 */
+	public static String enter(String dbKey, boolean readOnly)
+	{
+		leave();
+		if (active.isEmpty() || readOnly || dbKey == null)
+		{
+			return dbKey;
+		}
+		String tenant = currentTenant(dbKey);
+		TenantMigration migration = active.get(tenant);
+		if (migration == null)
+		{
+			return dbKey;
+		}
+		//
+		//	The writer is counted before the freeze is read, and the cutover sets the freeze before
+		//	it reads the count, so that one of them always sees the other.
+		//
+		migration.writers.incrementAndGet();
+		CountDownLatch latch = migration.frozen;
+		if (latch == null)
+		{
+			entered.set(migration);
+			return dbKey;
+		}
+		migration.writers.decrementAndGet();
+		migration.await(latch);
+		String key = (migration.shared ? ShardRing.route(tenant) : dbKey);
+		return enter(key, readOnly);
+	}
+
+	/**
+	 * Stops counting the current thread's write transaction.
+	 */
+	public static void leave()
+	{
+		TenantMigration migration = entered.get();
+		if (migration != null)
+		{
+			entered.remove();
+			migration.writers.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Counts a connection handed out on a database, holding it while a migration from the database
+	 * is switching over.  Connections of write transactions already counted, and connections of
+	 * other tenants of a shared database, are not counted.
+	 * @param dbKey
+	 * @return The migration counting the connection, to pass to {@link #checkin(TenantMigration)}
+	 * when it is closed, or null.
+	 * @throws TenantUnavailableException if the switch takes too long.
+	 */
+	static TenantMigration checkout(String dbKey)
+	{
+		if (active.isEmpty())
+		{
+			return null;
+		}
+		for (TenantMigration migration : active.values())
+		{
+			if (!migration.sourceKey.equals(dbKey) || entered.get() == migration || !migration.concerns(ShardRing.getTenant()))
+			{
+				continue;
+			}
+			migration.connections.incrementAndGet();
+			CountDownLatch latch = migration.frozen;
+			if (latch == null)
+			{
+				return migration;
+			}
+			migration.connections.decrementAndGet();
+			migration.await(latch);
+			return checkout(dbKey);
+		}
+		return null;
+	}
+
+	/**
+	 * @param dbKey
+	 * @return Whether a migration in progress moves rows from or to the database.
+	 */
+	public static boolean isMigrating(String dbKey)
+	{
+		for (TenantMigration migration : active.values())
+		{
+			if (migration.sourceKey.equals(dbKey) || migration.targetKey.equals(dbKey))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Stops counting a connection counted by {@link #checkout(String)}.
+	 * @param migration
+	 */
+	static void checkin(TenantMigration migration)
+	{
+		if (migration != null)
+		{
+			migration.connections.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Whether the writes of a thread working for the given tenant, or for no tenant in particular,
+	 * may concern the migrated tenant.
+	 */
+	private boolean concerns(String threadTenant)
+	{
+		return !shared || threadTenant == null || threadTenant.equals(tenant);
+	}
+
+	private void await(CountDownLatch latch)
+	{
+		try
+		{
+			if (!latch.await(maxFreezeMillis, TimeUnit.MILLISECONDS))
+			{
+				throw new TenantUnavailableException("Tenant [" + tenant + "] is being moved to [" + targetKey + "]");
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new TenantUnavailableException("Interrupted while tenant [" + tenant + "] is being moved");
+		}
+	}
+
+	/**
+	 * Records an entity saved, updated or deleted by the current thread's transaction.  The change
+	 * is only recorded when the transaction commits, so that the copy never reads a row before it.
+	 * @param entity
+	 * @param id The entity's id, or null if it is not generated yet (identity columns).
+	 */
+	public static void track(Object entity, Serializable id)
+	{
+		TenantMigration migration = current();
+		if (migration != null)
+		{
+			hold(new Object[] { migration, entity, id, null });
+		}
+	}
+
+	/**
+	 * Records a collection changed by the current thread's transaction, when it commits.
+	 * @param collection
+	 * @param key The key of the collection's owner.
+	 */
+	public static void trackCollection(Object collection, Serializable key)
+	{
+		TenantMigration migration = current();
+		if (migration != null && key != null && collection instanceof PersistentCollection)
+		{
+			hold(new Object[] { migration, null, key, ((PersistentCollection) collection).getRole() });
+		}
+	}
+
+	private static void hold(Object[] change)
+	{
+		List<Object[]> changes = pending.get();
+		if (changes == null)
+		{
+			changes = new ArrayList<Object[]>();
+			pending.set(changes);
+		}
+		changes.add(change);
+	}
+
+	/**
+	 * Records the changes tracked in the current thread's transaction if it committed, and forgets
+	 * them.  The ids generated by the inserts are known by then.
+	 * @param committed
+	 */
+	public static void complete(boolean committed)
+	{
+		List<Object[]> changes = pending.get();
+		if (changes == null)
+		{
+			return;
+		}
+		pending.remove();
+		if (!committed)
+		{
+			return;
+		}
+		for (Object[] change : changes)
+		{
+			TenantMigration migration = (TenantMigration) change[0];
+			if (change[3] == null)
+			{
+				migration.entityChanged(change[1], (Serializable) change[2]);
+			}
+			else
+			{
+				migration.collectionChanged((String) change[3], (Serializable) change[2]);
+			}
+		}
+	}
+
+	/**
+	 * Records entities inserted into a database outside of a transaction of the entity manager,
+	 * e.g. by bulk inserts, once they are committed.
+	 * @param dbKey
+	 * @param entities
+	 */
+	public static void trackInserted(String dbKey, List<?> entities)
+	{
+		if (active.isEmpty())
+		{
+			return;
+		}
+		for (TenantMigration migration : active.values())
+		{
+			if (!migration.sourceKey.equals(dbKey) || !migration.concerns(ShardRing.getTenant()))
+			{
+				continue;
+			}
+			for (Object entity : entities)
+			{
+				if (migration.shared)
+				{
+					//
+					//	The rows may belong to other tenants: copy the tenant's rows of the tables again.
+					//
+					migration.tableChanged(entity);
+				}
+				else
+				{
+					migration.entityChanged(entity, null);
+				}
+			}
+		}
+	}
+
+	private static TenantMigration current()
+	{
+		if (active.isEmpty())
+		{
+			return null;
+		}
+		String tenant = currentTenant(MJPAPlugin.getCurrentKey());
+		return (tenant == null ? null : active.get(tenant));
+	}
+
+	private static String currentTenant(String dbKey)
+	{
+		String tenant = ShardRing.getTenant();
+		return (tenant == null ? dbKey : tenant);
+	}
+
+	@Override
+	public void run()
+	{
+		Logger.info("Moving tenant [%s] from [%s] to [%s]", tenant, sourceKey, targetKey);
+		try
+		{
+			copy();
+			state = State.CATCHING_UP;
+			for (int round = 0; round < maxRounds && changes.size() > catchUpThreshold; round++)
+			{
+				applyChanges();
+			}
+			state = State.CUTOVER;
+			cutover();
+			state = State.DONE;
+			Logger.info("Moved tenant [%s] to [%s]: %s", tenant, targetKey, this);
+		}
+		catch (Throwable e)
+		{
+			error = e;
+			state = State.FAILED;
+			Logger.error(e, "Moving tenant [%s] to [%s] failed", tenant, targetKey);
+		}
+		finally
+		{
+			finished = System.currentTimeMillis();
+			active.remove(tenant, this);
+			history.add(0, this);
+			while (history.size() > HISTORY)
+			{
+				history.remove(history.size() - 1);
+			}
+		}
+	}
+
+	/**
+	 * Copies the tenant's tables, several at once, each table after the tables it references.
+	 */
+	private void copy() throws Exception
+	{
+		List<String> tables = findTables();
+		tableCount = tables.size();
+		List<List<String>> waves = orderByForeignKeys(tables);
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads),
+				MDBTasks.daemonThreads("mdb-migration-copy"));
+		try
+		{
+			for (List<String> wave : waves)
+			{
+				List<Future<?>> futures = new ArrayList<Future<?>>();
+				for (final String table : wave)
+				{
+					futures.add(executor.submit(new Callable<Void>()
+					{
+						@Override
+						public Void call() throws Exception
+						{
+							copyTable(table);
+							tablesCopied.incrementAndGet();
+							return null;
+						}
+					}));
+				}
+				for (Future<?> future : futures)
+				{
+					future.get();
+				}
+			}
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Holds new write transactions and connections, waits for the ones in progress, copies the last
+	 * changed rows and switches the tenant over.
+	 */
+	private void cutover() throws Exception
+	{
+		for (int attempt = 1; ; attempt++)
+		{
+			CountDownLatch latch = new CountDownLatch(1);
+			frozen = latch;
+			try
+			{
+				long deadline = System.currentTimeMillis() + maxFreezeMillis / 2;
+				while (busy() > 0 && System.currentTimeMillis() < deadline)
+				{
+					Thread.sleep(5);
+				}
+				if (busy() == 0)
+				{
+					while (!changes.isEmpty())
+					{
+						if (applyChanges() == 0)
+						{
+							throw new IllegalStateException(changes.size() + " changed rows cannot be copied");
+						}
+					}
+					switchOver();
+					return;
+				}
+				if (attempt >= 3)
+				{
+					throw new IllegalStateException(busy() + " write transactions or connections still in progress");
+				}
+				Logger.info("Cutover of tenant [%s] postponed: %s write transactions or connections in progress", tenant, busy());
+			}
+			finally
+			{
+				frozen = null;
+				latch.countDown();
+			}
+			applyChanges();
+		}
+	}
+
+	/**
+	 * @return The number of write transactions and connections the cutover waits for.
+	 */
+	private int busy()
+	{
+		return writers.get() + connections.get();
+	}
+
+	private void switchOver() throws Exception
+	{
+		if (shared)
+		{
+			ShardRing.override(tenant, targetKey);
+			Logger.info("Tenant [%s] is pinned to [%s]; add %s%s=%s to the configuration to keep it there",
+					tenant, targetKey, ShardRing.OVERRIDE_PREFIX, tenant, targetKey);
+		}
+		else
+		{
+			MDBPlugin.movePool(tenant, targetKey);
+		}
+	}
+
+	/**
+	 * Finds the tables of the entities and collections mapped by the source factory.
+	 */
+	@SuppressWarnings("unchecked")
+	private List<String> findTables()
+	{
+		Set<String> tables = new LinkedHashSet<String>();
+		for (Object metadata : factory.getAllClassMetadata().values())
+		{
+			if (metadata instanceof AbstractEntityPersister)
+			{
+				AbstractEntityPersister persister = (AbstractEntityPersister) metadata;
+				tables.add(persister.getRootTableName());
+				if (tables.add(persister.getTableName()) && persister.getRootTableIdentifierColumnNames().length == 1)
+				{
+					owners.put(persister.getTableName(), new String[] { null, persister.getRootTableName(),
+							persister.getRootTableIdentifierColumnNames()[0] });
+				}
+			}
+		}
+		for (Object metadata : factory.getAllCollectionMetadata().values())
+		{
+			if (metadata instanceof AbstractCollectionPersister && !((AbstractCollectionPersister) metadata).isOneToMany())
+			{
+				AbstractCollectionPersister persister = (AbstractCollectionPersister) metadata;
+				tables.add(persister.getTableName());
+				if (persister.getKeyColumnNames().length == 1
+						&& persister.getOwnerEntityPersister() instanceof AbstractEntityPersister)
+				{
+					AbstractEntityPersister owner = (AbstractEntityPersister) persister.getOwnerEntityPersister();
+					if (owner.getRootTableIdentifierColumnNames().length == 1)
+					{
+						owners.put(persister.getTableName(), new String[] { persister.getKeyColumnNames()[0],
+								owner.getRootTableName(), owner.getRootTableIdentifierColumnNames()[0] });
+					}
+				}
+			}
+		}
+		return new ArrayList<String>(tables);
+	}
+
+	/**
+	 * Splits the tables into waves, each table coming after the tables it references.  Tables in
+	 * a reference cycle end up in the same wave.
+	 */
+	private List<List<String>> orderByForeignKeys(List<String> tables) throws SQLException
+	{
+		Map<String, Set<String>> dependencies = new HashMap<String, Set<String>>();
+		Connection connection = target().getConnection();
+		try
+		{
+			DatabaseMetaData metadata = connection.getMetaData();
+			for (String table : tables)
+			{
+				Set<String> referenced = new HashSet<String>();
+				ResultSet rs = metadata.getImportedKeys(null, null, metaName(metadata, table));
+				try
+				{
+					while (rs.next())
+					{
+						String name = rs.getString("PKTABLE_NAME");
+						for (String other : tables)
+						{
+							if (other.equalsIgnoreCase(name) && !other.equals(table))
+							{
+								referenced.add(other);
+							}
+						}
+					}
+				}
+				finally
+				{
+					rs.close();
+				}
+				dependencies.put(table, referenced);
+			}
+		}
+		finally
+		{
+			connection.close();
+		}
+
+		List<List<String>> waves = new ArrayList<List<String>>();
+		Set<String> done = new HashSet<String>();
+		List<String> left = new ArrayList<String>(tables);
+		while (!left.isEmpty())
+		{
+			List<String> wave = new ArrayList<String>();
+			for (String table : left)
+			{
+				if (done.containsAll(dependencies.get(table)))
+				{
+					wave.add(table);
+				}
+			}
+			if (wave.isEmpty())
+			{
+				wave.addAll(left);
+			}
+			left.removeAll(wave);
+			done.addAll(wave);
+			waves.add(wave);
+		}
+		return waves;
+	}
+
+	/**
+	 * Streams the tenant's rows of a table from the source to the target, committing each batch.
+	 */
+	private void copyTable(String table) throws SQLException
+	{
+		String where = tenantWhere(table);
+		if (where == null)
+		{
+			Logger.warn("Table %s has no %s column nor owner; it is not copied", table, tenantColumn);
+			return;
+		}
+		Connection source = source().getConnection();
+		Connection target = target().getConnection();
+		try
+		{
+			target.setAutoCommit(false);
+			PreparedStatement count = target.prepareStatement("SELECT COUNT(*) FROM " + table + where);
+			try
+			{
+				bindTenant(count);
+				ResultSet rs = count.executeQuery();
+				rs.next();
+				if (rs.getLong(1) > 0)
+				{
+					throw new IllegalStateException("Target table " + table + " already holds rows of tenant [" + tenant + "]");
+				}
+			}
+			finally
+			{
+				count.close();
+			}
+
+			//
+			//	Some drivers only stream the results of a transaction.
+			//
+			source.setAutoCommit(false);
+			PreparedStatement select = source.prepareStatement("SELECT * FROM " + table + where,
+					ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			try
+			{
+				select.setFetchSize(batchSize);
+				bindTenant(select);
+				ResultSet rs = select.executeQuery();
+				PreparedStatement insert = target.prepareStatement(insertSql(table, rs.getMetaData()));
+				try
+				{
+					int columns = rs.getMetaData().getColumnCount();
+					int pending = 0;
+					while (rs.next())
+					{
+						for (int i = 1; i <= columns; i++)
+						{
+							insert.setObject(i, rs.getObject(i));
+						}
+						insert.addBatch();
+						if (++pending == batchSize)
+						{
+							insert.executeBatch();
+							target.commit();
+							rowsCopied.addAndGet(pending);
+							pending = 0;
+						}
+					}
+					if (pending > 0)
+					{
+						insert.executeBatch();
+						target.commit();
+						rowsCopied.addAndGet(pending);
+					}
+				}
+				finally
+				{
+					insert.close();
+				}
+			}
+			finally
+			{
+				select.close();
+				source.rollback();
+			}
+		}
+		finally
+		{
+			close(source);
+			close(target);
+		}
+	}
+
+	/**
+	 * Copies the rows changed so far again.
+	 * @return The number of changes applied.
+	 */
+	private int applyChanges() throws SQLException
+	{
+		int applied = 0;
+		Connection source = source().getConnection();
+		Connection target = target().getConnection();
+		try
+		{
+			target.setAutoCommit(false);
+			for (Change change : new ArrayList<Change>(changes))
+			{
+				changes.remove(change);
+				try
+				{
+					apply(change, source, target);
+					target.commit();
+					applied++;
+				}
+				catch (SQLException e)
+				{
+					//
+					//	E.g. a row still referenced by a row not copied yet: try again next round.
+					//
+					target.rollback();
+					changes.add(change);
+					Logger.debug("Change %s of tenant [%s] postponed: %s", change, tenant, e.getMessage());
+				}
+			}
+		}
+		finally
+		{
+			close(source);
+			close(target);
+		}
+		changesApplied.addAndGet(applied);
+		return applied;
+	}
+
+	/**
+	 * Makes the target rows of a change match the source rows.
+	 */
+	private void apply(Change change, Connection source, Connection target) throws SQLException
+	{
+		List<String> pk = primaryKey(change.table);
+		String column = change.column;
+		if (column == null && pk.size() == 1)
+		{
+			column = pk.get(0);
+		}
+		if (pk.isEmpty() || column == null)
+		{
+			replaceRows(change.table, column, change.value, source, target);
+			return;
+		}
+		String where = (change.value == null ? tenantWhere(change.table) : " WHERE " + column + " = ?");
+		if (where == null)
+		{
+			return;
+		}
+		Object value = (change.value == null ? (shared ? tenant : null) : change.value);
+		Set<List<Object>> keys = new LinkedHashSet<List<Object>>();
+		selectKeys(source, change.table, pk, where, value, keys);
+		selectKeys(target, change.table, pk, where, value, keys);
+		for (List<Object> key : keys)
+		{
+			syncRow(change.table, pk, key, source, target);
+		}
+	}
+
+	private void selectKeys(Connection connection, String table, List<String> pk, String where, Object value,
+			Set<List<Object>> keys) throws SQLException
+	{
+		StringBuilder sql = new StringBuilder("SELECT ");
+		for (int i = 0; i < pk.size(); i++)
+		{
+			sql.append(i == 0 ? "" : ", ").append(pk.get(i));
+		}
+		PreparedStatement select = connection.prepareStatement(sql.append(" FROM ").append(table).append(where).toString());
+		try
+		{
+			if (value != null)
+			{
+				select.setObject(1, value);
+			}
+			ResultSet rs = select.executeQuery();
+			while (rs.next())
+			{
+				Object[] key = new Object[pk.size()];
+				for (int i = 0; i < key.length; i++)
+				{
+					key[i] = rs.getObject(i + 1);
+				}
+				keys.add(Arrays.asList(key));
+			}
+		}
+		finally
+		{
+			select.close();
+		}
+	}
+
+	/**
+	 * Updates, inserts or deletes the target row of a primary key to match the source row.
+	 */
+	private void syncRow(String table, List<String> pk, List<Object> key, Connection source, Connection target)
+			throws SQLException
+	{
+		StringBuilder where = new StringBuilder(" WHERE ");
+		for (int i = 0; i < pk.size(); i++)
+		{
+			where.append(i == 0 ? "" : " AND ").append(pk.get(i)).append(" = ?");
+		}
+		PreparedStatement select = source.prepareStatement("SELECT * FROM " + table + where);
+		try
+		{
+			bind(select, key, 1);
+			ResultSet rs = select.executeQuery();
+			if (!rs.next())
+			{
+				PreparedStatement delete = target.prepareStatement("DELETE FROM " + table + where);
+				try
+				{
+					bind(delete, key, 1);
+					delete.executeUpdate();
+				}
+				finally
+				{
+					delete.close();
+				}
+				return;
+			}
+			ResultSetMetaData metadata = rs.getMetaData();
+			int columns = metadata.getColumnCount();
+			StringBuilder sql = new StringBuilder("UPDATE ").append(table).append(" SET ");
+			for (int i = 1; i <= columns; i++)
+			{
+				sql.append(i == 1 ? "" : ", ").append(metadata.getColumnName(i)).append(" = ?");
+			}
+			PreparedStatement update = target.prepareStatement(sql.append(where).toString());
+			try
+			{
+				for (int i = 1; i <= columns; i++)
+				{
+					update.setObject(i, rs.getObject(i));
+				}
+				bind(update, key, columns + 1);
+				if (update.executeUpdate() > 0)
+				{
+					return;
+				}
+			}
+			finally
+			{
+				update.close();
+			}
+			PreparedStatement insert = target.prepareStatement(insertSql(table, metadata));
+			try
+			{
+				for (int i = 1; i <= columns; i++)
+				{
+					insert.setObject(i, rs.getObject(i));
+				}
+				insert.executeUpdate();
+			}
+			finally
+			{
+				insert.close();
+			}
+		}
+		finally
+		{
+			select.close();
+		}
+	}
+
+	/**
+	 * Replaces the target rows of a table without a primary key by the source rows.
+	 */
+	private void replaceRows(String table, String column, Object value, Connection source, Connection target)
+			throws SQLException
+	{
+		String where;
+		if (value != null && column != null)
+		{
+			where = " WHERE " + column + " = ?";
+		}
+		else
+		{
+			where = tenantWhere(table);
+			value = (shared ? tenant : null);
+			if (where == null)
+			{
+				return;
+			}
+		}
+		PreparedStatement delete = target.prepareStatement("DELETE FROM " + table + where);
+		try
+		{
+			if (value != null)
+			{
+				delete.setObject(1, value);
+			}
+			delete.executeUpdate();
+		}
+		finally
+		{
+			delete.close();
+		}
+		PreparedStatement select = source.prepareStatement("SELECT * FROM " + table + where);
+		try
+		{
+			if (value != null)
+			{
+				select.setObject(1, value);
+			}
+			ResultSet rs = select.executeQuery();
+			int columns = rs.getMetaData().getColumnCount();
+			PreparedStatement insert = target.prepareStatement(insertSql(table, rs.getMetaData()));
+			try
+			{
+				while (rs.next())
+				{
+					for (int i = 1; i <= columns; i++)
+					{
+						insert.setObject(i, rs.getObject(i));
+					}
+					insert.addBatch();
+				}
+				insert.executeBatch();
+			}
+			finally
+			{
+				insert.close();
+			}
+		}
+		finally
+		{
+			select.close();
+		}
+	}
+
+	private void entityChanged(Object entity, Serializable id)
+	{
+		ClassMetadata metadata = factory.getClassMetadata(Hibernate.getClass(entity));
+		if (!(metadata instanceof AbstractEntityPersister))
+		{
+			return;
+		}
+		AbstractEntityPersister persister = (AbstractEntityPersister) metadata;
+		if (id == null)
+		{
+			id = persister.getIdentifier(entity, EntityMode.POJO);
+		}
+		boolean simple = (persister.getRootTableIdentifierColumnNames().length == 1 && id != null);
+		changes.add(new Change(persister.getRootTableName(), null, simple ? id : null));
+		if (!persister.getTableName().equals(persister.getRootTableName()))
+		{
+			changes.add(new Change(persister.getTableName(), null, simple ? id : null));
+		}
+	}
+
+	/**
+	 * Records that any of the tenant's rows of an entity's tables may have changed.
+	 */
+	private void tableChanged(Object entity)
+	{
+		ClassMetadata metadata = factory.getClassMetadata(Hibernate.getClass(entity));
+		if (metadata instanceof AbstractEntityPersister)
+		{
+			AbstractEntityPersister persister = (AbstractEntityPersister) metadata;
+			changes.add(new Change(persister.getRootTableName(), null, null));
+			changes.add(new Change(persister.getTableName(), null, null));
+		}
+	}
+
+	private void collectionChanged(String role, Serializable key)
+	{
+		CollectionMetadata metadata = (role == null ? null : factory.getCollectionMetadata(role));
+		if (!(metadata instanceof AbstractCollectionPersister))
+		{
+			return;
+		}
+		AbstractCollectionPersister persister = (AbstractCollectionPersister) metadata;
+		String[] columns = persister.getKeyColumnNames();
+		if (columns.length == 1)
+		{
+			changes.add(new Change(persister.getTableName(), columns[0], key));
+		}
+		else
+		{
+			changes.add(new Change(persister.getTableName(), null, null));
+		}
+	}
+
+	private List<String> primaryKey(String table) throws SQLException
+	{
+		List<String> pk = primaryKeys.get(table);
+		if (pk == null)
+		{
+			pk = new ArrayList<String>();
+			Connection connection = target().getConnection();
+			try
+			{
+				DatabaseMetaData metadata = connection.getMetaData();
+				ResultSet rs = metadata.getPrimaryKeys(null, null, metaName(metadata, table));
+				try
+				{
+					while (rs.next())
+					{
+						pk.add(rs.getString("COLUMN_NAME"));
+					}
+				}
+				finally
+				{
+					rs.close();
+				}
+			}
+			finally
+			{
+				connection.close();
+			}
+			primaryKeys.put(table, pk);
+		}
+		return pk;
+	}
+
+	/**
+	 * Builds the condition selecting the tenant's rows of a table, whose parameter is the tenant id.
+	 * @return The condition, empty if the tenant has the whole database, or null if the tenant's
+	 * rows cannot be told apart.
+	 */
+	private String tenantWhere(String table) throws SQLException
+	{
+		if (!shared)
+		{
+			return "";
+		}
+		if (hasTenantColumn(table))
+		{
+			return " WHERE " + tenantColumn + " = ?";
+		}
+		String[] owner = owners.get(table);
+		if (owner == null || !hasTenantColumn(owner[1]))
+		{
+			return null;
+		}
+		String column = owner[0];
+		if (column == null)
+		{
+			List<String> pk = primaryKey(table);
+			if (pk.size() != 1)
+			{
+				return null;
+			}
+			column = pk.get(0);
+		}
+		return " WHERE " + column + " IN (SELECT " + owner[2] + " FROM " + owner[1] + " WHERE " + tenantColumn + " = ?)";
+	}
+
+	private boolean hasTenantColumn(String table) throws SQLException
+	{
+		Boolean result = tenantTables.get(table);
+		if (result == null)
+		{
+			Connection connection = source().getConnection();
+			try
+			{
+				DatabaseMetaData metadata = connection.getMetaData();
+				ResultSet rs = metadata.getColumns(null, null, metaName(metadata, table), metaName(metadata, tenantColumn));
+				try
+				{
+					result = Boolean.valueOf(rs.next());
+				}
+				finally
+				{
+					rs.close();
+				}
+			}
+			finally
+			{
+				connection.close();
+			}
+			tenantTables.put(table, result);
+		}
+		return result.booleanValue();
+	}
+
+	/**
+	 * Converts a name to the case the database stores it in, dropping any schema.
+	 */
+	static String metaName(DatabaseMetaData metadata, String name) throws SQLException
+	{
+		name = name.substring(name.lastIndexOf('.') + 1).replace("\"", "").replace("`", "");
+		if (metadata.storesUpperCaseIdentifiers())
+		{
+			return name.toUpperCase();
+		}
+		if (metadata.storesLowerCaseIdentifiers())
+		{
+			return name.toLowerCase();
+		}
+		return name;
+	}
+
+	static String insertSql(String table, ResultSetMetaData metadata) throws SQLException
+	{
+		StringBuilder columns = new StringBuilder();
+		StringBuilder values = new StringBuilder();
+		for (int i = 1; i <= metadata.getColumnCount(); i++)
+		{
+			columns.append(i == 1 ? "" : ", ").append(metadata.getColumnName(i));
+			values.append(i == 1 ? "?" : ", ?");
+		}
+		return "INSERT INTO " + table + " (" + columns + ") VALUES (" + values + ")";
+	}
+
+	private void bindTenant(PreparedStatement statement) throws SQLException
+	{
+		if (shared)
+		{
+			statement.setObject(1, tenant);
+		}
+	}
+
+	private static void bind(PreparedStatement statement, List<Object> key, int first) throws SQLException
+	{
+		for (int i = 0; i < key.size(); i++)
+		{
+			statement.setObject(first + i, key.get(i));
+		}
+	}
+
+	private static void close(Connection connection)
+	{
+		try
+		{
+			connection.close();
+		}
+		catch (SQLException e)
+		{
+			Logger.warn("Error closing migration connection: %s", e.getMessage());
+		}
+	}
+
+	/**
+	 * The raw pools are used, so that the copy is not counted in the statistics of the databases.
+	 */
+	private DataSource source()
+	{
+		return MDB.getDataSource(sourceKey).getDelegate();
+	}
+
+	private DataSource target()
+	{
+		return MDB.getDataSource(targetKey).getDelegate();
+	}
+
+	public State getState()
+	{
+		return state;
+	}
+
+	/**
+	 * @return The error that made the migration fail, if any.
+	 */
+	public Throwable getError()
+	{
+		return error;
+	}
+
+	public long getRowsCopied()
+	{
+		return rowsCopied.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		long end = (finished == 0 ? System.currentTimeMillis() : finished);
+		return "[" + tenant + "] " + sourceKey + " -> " + targetKey + ": " + state + ", " + tablesCopied.get() + "/"
+				+ tableCount + " tables, " + rowsCopied.get() + " rows, " + changesApplied.get()
+				+ " changes copied again, " + changes.size() + " pending, " + (end - started) + " ms"
+				+ (error == null ? "" : " (" + error.getMessage() + ")");
+	}
+
+	/**
+	 * Rows changed in a table: the rows whose column has a value, or every row of the tenant if the
+	 * value is null.  A null column stands for the primary key.
+	 */
+	private static class Change
+	{
+		final String table;
+		final String column;
+		final Object value;
+
+		Change(String table, String column, Object value)
+		{
+			this.table = table;
+			this.column = column;
+			this.value = value;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof Change))
+			{
+				return false;
+			}
+			Change other = (Change) o;
+			return table.equals(other.table) && eq(column, other.column) && eq(value, other.value);
+		}
+
+		private static boolean eq(Object a, Object b)
+		{
+			return (a == null ? b == null : a.equals(b));
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return table.hashCode() * 31 + (column == null ? 0 : column.hashCode()) * 17
+					+ (value == null ? 0 : value.hashCode());
+		}
+
+		@Override
+		public String toString()
+		{
+			return table + (value == null ? "" : "[" + (column == null ? "id" : column) + "=" + value + "]");
+		}
+	}
+}
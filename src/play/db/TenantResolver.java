@@ -0,0 +1,358 @@
+package play.db;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import play.Logger;
+import play.Play;
+import play.db.jpa.TenantIndex;
+
+/**
+ * Connects tenants found in a tenant catalog on their first request.  At most maxTenants of them
+ * stay connected: past that, the least recently used idle ones are disconnected, and connected
+ * again on their next request.  Unknown keys are remembered for a while, so that repeated requests
+ * for them do not each read the catalog.  The catalog is polled for changes, which rebuild the
+ * pools of the changed tenants.
+ *
+ * @author dcardon
+ */
+public class TenantResolver
+{
+	public static final String CATALOG_CONF_PREFIX = MDBPlugin.MDB_CONF_PREFIX + "catalog.";
+
+	/**
+	 * The number of catalog tenants kept connected.
+	 */
+	public static volatile int maxTenants = 1000;
+
+	/**
+	 * How long an unknown key is remembered, in milliseconds.
+	 */
+	public static volatile long missTtlMillis = 60000;
+
+	/**
+	 * How long a tenant must have been idle to be disconnected, in milliseconds.
+	 */
+	private static final long MIN_IDLE_MILLIS = 1000;
+
+	/**
+	 * The maximum number of unknown keys remembered.
+	 */
+	private static final int MAX_MISSES = 10000;
+
+	private static volatile TenantCatalog catalog;
+
+	private static ScheduledFuture<?> task;
+
+	/**
+	 * The time of the last use of each connected catalog tenant, by key.
+	 */
+	private static final Map<String, long[]> resolved = new ConcurrentHashMap<String, long[]>();
+
+	/**
+	 * The time each unknown key was looked up, by key.
+	 */
+	private static final Map<String, Long> misses = new ConcurrentHashMap<String, Long>();
+
+	/**
+	 * Locks serializing the lookups of each key, striped by the key's hash.
+	 */
+	private static final Object[] locks = new Object[64];
+
+	private static final AtomicLong lookups = new AtomicLong();
+	private static final AtomicLong evictions = new AtomicLong();
+	private static final AtomicLong refreshes = new AtomicLong();
+
+	static
+	{
+		for (int i = 0; i < locks.length; i++)
+		{
+			locks[i] = new Object();
+		}
+	}
+
+	/**
+	 * Reads the mdb.catalog.* settings, opens the catalog and schedules its polling.  The catalog
+	 * is the application's implementation of TenantCatalog if it has one, or else the one named by
+	 * mdb.catalog: jdbc or file.
+	 * @param configuration
+	 */
+	@SuppressWarnings("unchecked")
+	public static synchronized void configure(Properties configuration)
+	{
+		maxTenants = Integer.parseInt(configuration.getProperty(CATALOG_CONF_PREFIX + "maxTenants", "1000"));
+		long interval = Long.parseLong(configuration.getProperty(CATALOG_CONF_PREFIX + "pollInterval", "60000"));
+		missTtlMillis = Long.parseLong(configuration.getProperty(CATALOG_CONF_PREFIX + "missTtl", "60000"));
+		close();
+
+		TenantCatalog found = null;
+		String type = configuration.getProperty(MDBPlugin.MDB_CONF_PREFIX + "catalog", "");
+		try
+		{
+			for (Class clazz : Play.classloader.getAssignableClasses(TenantCatalog.class))
+			{
+				found = (TenantCatalog) clazz.newInstance();
+				break;
+			}
+			if (found == null && "jdbc".equals(type))
+			{
+				found = new JdbcTenantCatalog();
+			}
+			else if (found == null && "file".equals(type))
+			{
+				found = new FileTenantCatalog();
+			}
+			else if (found == null && type.length() > 0)
+			{
+				Logger.error("Unknown tenant catalog: mdb.catalog=%s", type);
+			}
+			if (found == null)
+			{
+				return;
+			}
+			found.open(configuration);
+		}
+		catch (Exception e)
+		{
+			Logger.error(e, "Unable to open the tenant catalog");
+			return;
+		}
+		catalog = found;
+		Logger.info("Looking tenants up in %s", found);
+		if (interval > 0)
+		{
+			task = MDBTasks.schedule("catalog poll", new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					poll();
+				}
+			}, interval);
+		}
+	}
+
+	/**
+	 * @return Whether tenants are looked up in a catalog.
+	 */
+	public static boolean isEnabled()
+	{
+		return catalog != null;
+	}
+
+	/**
+	 * Makes sure a database is connected, looking it up in the catalog if it is not.
+	 * @param key
+	 * @return Whether the database is connected.
+	 * @throws TenantUnavailableException if the catalog cannot be read or the database cannot be
+	 * connected to.
+	 */
+	public static boolean resolve(String key)
+	{
+		if (MDB.getDataSource(key) != null)
+		{
+			long[] lastUse = resolved.get(key);
+			if (lastUse != null)
+			{
+				lastUse[0] = System.currentTimeMillis();
+			}
+			return true;
+		}
+		TenantCatalog current = catalog;
+		if (current == null || key == null)
+		{
+			return false;
+		}
+		Long missed = misses.get(key);
+		if (missed != null && System.currentTimeMillis() - missed < missTtlMillis)
+		{
+			return false;
+		}
+		synchronized (locks[(key.hashCode() & 0x7fffffff) % locks.length])
+		{
+			if (MDB.getDataSource(key) != null)
+			{
+				return true;
+			}
+			long start = System.nanoTime();
+			try
+			{
+				Map<String, String> parms = current.find(key);
+				lookups.incrementAndGet();
+				if (parms == null)
+				{
+					if (misses.size() >= MAX_MISSES)
+					{
+						misses.clear();
+					}
+					misses.put(key, System.currentTimeMillis());
+					return false;
+				}
+				MDBPlugin.addDatabase(key, parms);
+			}
+			catch (Exception e)
+			{
+				Logger.error(e, "Unable to connect tenant [%s] from the catalog", key);
+				if (MDB.getDataSource(key) != null)
+				{
+					MDBPlugin.removeDatabase(key);
+				}
+				throw new TenantUnavailableException("Database [" + key + "] could not be connected ("
+						+ e.getMessage() + ")");
+			}
+			resolved.put(key, new long[] { System.currentTimeMillis() });
+			misses.remove(key);
+			DbTimeline.record(DbTimeline.Phase.CATALOG, start);
+			Logger.info("Connected tenant [%s] from the catalog in %s ms", key,
+					(System.nanoTime() - start) / 1000000);
+		}
+		evict();
+		return true;
+	}
+
+	/**
+	 * Disconnects the least recently used idle tenants past maxTenants.
+	 */
+	static synchronized void evict()
+	{
+		long now = System.currentTimeMillis();
+		while (resolved.size() > maxTenants)
+		{
+			String oldest = null;
+			long oldestUse = Long.MAX_VALUE;
+			for (Entry<String, long[]> entry : resolved.entrySet())
+			{
+				long lastUse = entry.getValue()[0];
+				if (lastUse < oldestUse && now - lastUse >= MIN_IDLE_MILLIS
+						&& TenantBulkhead.get(entry.getKey()).getActive() == 0)
+				{
+					oldest = entry.getKey();
+					oldestUse = lastUse;
+				}
+			}
+			if (oldest == null)
+			{
+				//
+				//	Every tenant is busy: stay over the limit until the next lookup.
+				//
+				return;
+			}
+			disconnect(oldest);
+			evictions.incrementAndGet();
+		}
+	}
+
+	private static void disconnect(String key)
+	{
+		synchronized (locks[(key.hashCode() & 0x7fffffff) % locks.length])
+		{
+			resolved.remove(key);
+			MDBPlugin.removeDatabase(key);
+		}
+	}
+
+	/**
+	 * Reads the changes from the catalog.  The changed tenants that are connected get new pools,
+	 * and the removed ones are disconnected and dropped from the tenant indexes.
+	 */
+	static void poll()
+	{
+		TenantCatalog current = catalog;
+		if (current == null)
+		{
+			return;
+		}
+		Collection<String> keys;
+		try
+		{
+			keys = current.poll();
+		}
+		catch (Exception e)
+		{
+			Logger.warn("Unable to poll the tenant catalog: %s", e.getMessage());
+			return;
+		}
+		for (String key : keys)
+		{
+			misses.remove(key);
+			//
+			//	Disconnected tenants may still have values in the tenant indexes.
+			//
+			boolean connected = resolved.containsKey(key);
+			if (!connected && TenantIndex.getAll().isEmpty())
+			{
+				continue;
+			}
+			try
+			{
+				Map<String, String> parms = current.find(key);
+				if (parms == null)
+				{
+					Logger.info("Tenant [%s] was removed from the catalog", key);
+					if (connected)
+					{
+						disconnect(key);
+					}
+					TenantIndex.forget(key);
+				}
+				else if (connected && MDBPlugin.updateDatabase(key, parms))
+				{
+					refreshes.incrementAndGet();
+				}
+			}
+			catch (Exception e)
+			{
+				Logger.error(e, "Unable to update tenant [%s] from the catalog", key);
+			}
+		}
+	}
+
+	/**
+	 * Forgets the connected catalog tenants, whose databases were all dropped.
+	 */
+	static void clear()
+	{
+		resolved.clear();
+		misses.clear();
+	}
+
+	/**
+	 * Stops polling and closes the catalog.
+	 */
+	public static synchronized void close()
+	{
+		if (task != null)
+		{
+			task.cancel(false);
+			task = null;
+		}
+		if (catalog != null)
+		{
+			catalog.close();
+			catalog = null;
+		}
+	}
+
+	/**
+	 * @return The number of catalog tenants connected.
+	 */
+	public static int getResolved()
+	{
+		return resolved.size();
+	}
+
+	/**
+	 * @return A summary of the catalog's use.
+	 */
+	public static String getSummary()
+	{
+		return catalog + ": " + resolved.size() + " of " + maxTenants + " tenants connected, " + lookups.get()
+				+ " lookups, " + misses.size() + " unknown keys, " + evictions.get() + " evictions, " + refreshes.get()
+				+ " refreshed";
+	}
+}
@@ -0,0 +1,1022 @@
+package play.db;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.EntityManagerFactory;
+import javax.sql.DataSource;
+
+import org.apache.commons.lang.StringUtils;
+import org.hibernate.EntityMode;
+import org.hibernate.HibernateException;
+import org.hibernate.SessionFactory;
+import org.hibernate.ejb.HibernateEntityManagerFactory;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.persister.collection.AbstractCollectionPersister;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.hibernate.persister.entity.SingleTableEntityPersister;
+
+import play.Logger;
+import play.db.jpa.MJPAPlugin;
+import play.db.jpa.Tiered;
+
+/**
+ * Moves the old rows of tiered entities (see {@link Tiered}) from each database to its archive
+ * database, declared as mdb.archive.&lt;group&gt;=&lt;key of the archive&gt;.  A background mover
+ * copies the rows older than their entity's age to the archive in batches, then deletes the rows
+ * found in the archive from the primary database, locking them while their copies are brought up
+ * to date.  A run interrupted between the two is completed by the next one.
+ * <p>
+ * Only entities mapped to a single table with a single id column are moved, along with the rows
+ * of their element collections and of the many-to-many collections they own.  Rows referencing
+ * rows that are not archived, or referenced by rows that are not, stay in the primary database.
+ *
+ * @author dcardon
+ */
+public class TenantTiering
+{
+	public static final String TIERING_CONF_PREFIX = MDBPlugin.MDB_CONF_PREFIX + "tiering.";
+
+	/**
+	 * Whether the mover runs.
+	 */
+	public static volatile boolean enabled = true;
+
+	/**
+	 * The number of rows copied and deleted per transaction.
+	 */
+	public static volatile int batchSize = 500;
+
+	/**
+	 * The number of rows of a table moved per run, so that a run of a large backlog ends.
+	 */
+	public static volatile int maxRows = 100000;
+
+	private static final long DAY = 24L * 3600 * 1000;
+
+	/**
+	 * The key of the archive of each database, by database key.
+	 */
+	private static final ConcurrentMap<String, String> archives = new ConcurrentHashMap<String, String>();
+
+	private static final ConcurrentMap<String, TenantTiering> tenants = new ConcurrentHashMap<String, TenantTiering>();
+
+	private static final AtomicBoolean running = new AtomicBoolean();
+
+	private static ScheduledFuture<?> task;
+
+	private static ExecutorService mover;
+
+	private static volatile boolean stopped;
+
+	public final String key;
+
+	private final AtomicLong copied = new AtomicLong();
+	private final AtomicLong moved = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong kept = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private volatile long lastRun;
+	private volatile String lastError;
+
+	TenantTiering(String key)
+	{
+		this.key = key;
+	}
+
+	/**
+	 * Reads the mdb.tiering.* settings and schedules the mover.
+	 * @param configuration
+	 */
+	public static synchronized void configure(Properties configuration)
+	{
+		enabled = Boolean.parseBoolean(configuration.getProperty(TIERING_CONF_PREFIX + "enabled", "true"));
+		batchSize = Integer.parseInt(configuration.getProperty(TIERING_CONF_PREFIX + "batchSize", "500"));
+		maxRows = Integer.parseInt(configuration.getProperty(TIERING_CONF_PREFIX + "maxRows", "100000"));
+		shutdown();
+		stopped = false;
+		if (enabled)
+		{
+			//
+			//	A run may take long: it has its own thread rather than one of the shared scheduler's.
+			//
+			mover = Executors.newSingleThreadExecutor(MDBTasks.daemonThreads("mdb-tiering"));
+			long interval = Long.parseLong(configuration.getProperty(TIERING_CONF_PREFIX + "interval", "3600000"));
+			task = MDBTasks.schedule("tiering", new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					runNow();
+				}
+			}, interval);
+		}
+	}
+
+	/**
+	 * Stops the mover.  The batch in progress is rolled back.
+	 */
+	public static synchronized void shutdown()
+	{
+		stopped = true;
+		if (task != null)
+		{
+			task.cancel(false);
+			task = null;
+		}
+		if (mover != null)
+		{
+			mover.shutdownNow();
+			mover = null;
+		}
+	}
+
+	/**
+	 * Sets the archive of a database.
+	 * @param key
+	 * @param archiveKey The key of the archive database, empty or null for none.
+	 */
+	static void setArchive(String key, String archiveKey)
+	{
+		if (key == null)
+		{
+			return;
+		}
+		if (StringUtils.isEmpty(archiveKey))
+		{
+			archives.remove(key);
+		}
+		else
+		{
+			archives.put(key, archiveKey);
+		}
+	}
+
+	/**
+	 * @param key
+	 * @return The key of the archive of a database, or null if it has none.
+	 */
+	public static String getArchive(String key)
+	{
+		return (key == null ? null : archives.get(key));
+	}
+
+	/**
+	 * Forgets the archive and the statistics of a removed database.
+	 * @param key
+	 */
+	static void forget(String key)
+	{
+		archives.remove(key);
+		tenants.remove(key);
+	}
+
+	/**
+	 * Finds the statistics of a database, creating them on first use.
+	 * @param key
+	 * @return
+	 */
+	public static TenantTiering get(String key)
+	{
+		TenantTiering tenant = tenants.get(key);
+		if (tenant == null)
+		{
+			tenant = new TenantTiering(key);
+			TenantTiering existing = tenants.putIfAbsent(key, tenant);
+			if (existing != null)
+			{
+				tenant = existing;
+			}
+		}
+		return tenant;
+	}
+
+	/**
+	 * Starts a run of the mover in the background, unless one is in progress.
+	 */
+	public static synchronized void runNow()
+	{
+		if (mover != null && running.compareAndSet(false, true))
+		{
+			mover.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						moveAll();
+					}
+					catch (Throwable e)
+					{
+						Logger.error(e, "Error moving rows to the archives");
+					}
+					finally
+					{
+						running.set(false);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Moves the old rows of each database that has an archive.  Hibernated databases, those whose
+	 * circuit is open and those being migrated are left for a later run.
+	 */
+	static void moveAll()
+	{
+		for (Map.Entry<String, String> entry : archives.entrySet())
+		{
+			String key = entry.getKey();
+			String archiveKey = entry.getValue();
+			if (stopped)
+			{
+				return;
+			}
+			if (MDB.getDataSource(key) == null || TenantHibernation.get(key).isHibernated()
+					|| TenantHealth.get(key).getState() == TenantHealth.State.OPEN)
+			{
+				continue;
+			}
+
+			//
+			//	The mover writes through the raw pools, which a migration does not see.
+			//
+			if (TenantMigration.isMigrating(key) || TenantMigration.isMigrating(archiveKey))
+			{
+				continue;
+			}
+			if (MDB.getDataSource(archiveKey) == null)
+			{
+				Logger.warn("The archive [%s] of database [%s] is not connected", archiveKey, key);
+				continue;
+			}
+			EntityManagerFactory emf = MJPAPlugin.factoryMap.get(key);
+			if (emf instanceof HibernateEntityManagerFactory)
+			{
+				SessionFactory factory = ((HibernateEntityManagerFactory) emf).getSessionFactory();
+				get(key).move(archiveKey, findRules(factory),
+						((SessionFactoryImplementor) factory).getDialect().getForUpdateString());
+			}
+		}
+	}
+
+	/**
+	 * Moves the old rows of the tiered entities of the database: they are all copied, referenced
+	 * tables first since the archive has the same foreign keys, then deleted, referencing tables
+	 * first.
+	 * @param forUpdate The clause locking the selected rows, in the database's dialect.
+	 */
+	private void move(String archiveKey, List<Rule> rules, String forUpdate)
+	{
+		if (rules.isEmpty())
+		{
+			return;
+		}
+		lastRun = System.currentTimeMillis();
+		wake(archiveKey);
+		try
+		{
+			rules = orderByForeignKeys(rules);
+		}
+		catch (SQLException e)
+		{
+			Logger.warn("Unable to read the foreign keys of [%s]: %s", key, e.getMessage());
+		}
+		Map<Rule, Timestamp> cutoffs = new HashMap<Rule, Timestamp>();
+		for (Rule rule : rules)
+		{
+			cutoffs.put(rule, new Timestamp(lastRun - rule.days * DAY));
+		}
+		for (int i = rules.size() - 1; i >= 0; i--)
+		{
+			Rule rule = rules.get(i);
+			try
+			{
+				copyRows(archiveKey, rule, cutoffs.get(rule));
+			}
+			catch (SQLException e)
+			{
+				failed(rule, e);
+			}
+		}
+		for (Rule rule : rules)
+		{
+			try
+			{
+				int count = deleteRows(archiveKey, rule, cutoffs.get(rule), forUpdate);
+				if (count > 0)
+				{
+					Logger.info("Moved %s rows of %s from [%s] to [%s]", count, rule.table, key, archiveKey);
+				}
+			}
+			catch (SQLException e)
+			{
+				failed(rule, e);
+			}
+		}
+	}
+
+	private void failed(Rule rule, SQLException e)
+	{
+		failures.incrementAndGet();
+		lastError = rule.table + ": " + e.getMessage();
+		Logger.error(e, "Moving rows of %s from [%s] failed", rule.table, key);
+	}
+
+	/**
+	 * Copies the rows of a table older than its entity's age to the archive, one batch per
+	 * transaction, leaving out the rows it holds already.
+	 * @return The number of rows copied.
+	 */
+	private int copyRows(String archiveKey, Rule rule, Timestamp cutoff) throws SQLException
+	{
+		int count = 0;
+		Object last = null;
+		while (count < maxRows && !stopped)
+		{
+			wake(archiveKey);
+			Connection primary = pool(key).getConnection();
+			Connection archive = null;
+			try
+			{
+				List<Object> ids = selectIds(primary, rule, cutoff, last);
+				if (ids.isEmpty())
+				{
+					break;
+				}
+				last = ids.get(ids.size() - 1);
+				archive = pool(archiveKey).getConnection();
+				ids.removeAll(selectArchived(archive, rule, ids));
+				if (ids.isEmpty())
+				{
+					continue;
+				}
+				archive.setAutoCommit(false);
+				try
+				{
+					copy(primary, archive, rule, ids);
+					archive.commit();
+					count += ids.size();
+				}
+				catch (SQLException e)
+				{
+					//
+					//	A row referencing a row that is not in the archive fails its whole batch:
+					//	copy the others one by one.
+					//
+					archive.rollback();
+					for (Object id : ids)
+					{
+						try
+						{
+							copy(primary, archive, rule, Collections.singletonList(id));
+							archive.commit();
+							count++;
+						}
+						catch (SQLException failure)
+						{
+							archive.rollback();
+							kept.incrementAndGet();
+							Logger.debug("Row %s of %s on [%s] is not archived: %s", id, rule.table, key,
+									failure.getMessage());
+						}
+					}
+				}
+			}
+			finally
+			{
+				close(primary);
+				close(archive);
+			}
+		}
+		copied.addAndGet(count);
+		return count;
+	}
+
+	/**
+	 * Deletes the rows of a table older than its entity's age that are in the archive, one batch
+	 * per transaction.
+	 * @return The number of rows deleted.
+	 */
+	private int deleteRows(String archiveKey, Rule rule, Timestamp cutoff, String forUpdate) throws SQLException
+	{
+		int count = 0;
+		Object last = null;
+		while (count < maxRows && !stopped)
+		{
+			wake(archiveKey);
+			Connection primary = pool(key).getConnection();
+			Connection archive = null;
+			try
+			{
+				List<Object> ids = selectIds(primary, rule, cutoff, last);
+				if (ids.isEmpty())
+				{
+					break;
+				}
+				last = ids.get(ids.size() - 1);
+				archive = pool(archiveKey).getConnection();
+				ids.retainAll(selectArchived(archive, rule, ids));
+				if (ids.isEmpty())
+				{
+					continue;
+				}
+				primary.setAutoCommit(false);
+				archive.setAutoCommit(false);
+				try
+				{
+					count += delete(primary, archive, rule, cutoff, forUpdate, ids);
+					batches.incrementAndGet();
+				}
+				catch (SQLException e)
+				{
+					//
+					//	A row still referenced by a row that is not moved fails its whole batch:
+					//	delete the others one by one.
+					//
+					primary.rollback();
+					archive.rollback();
+					for (Object id : ids)
+					{
+						try
+						{
+							count += delete(primary, archive, rule, cutoff, forUpdate, Collections.singletonList(id));
+						}
+						catch (SQLException failure)
+						{
+							primary.rollback();
+							archive.rollback();
+							kept.incrementAndGet();
+							Logger.debug("Row %s of %s on [%s] is kept: %s", id, rule.table, key, failure.getMessage());
+						}
+					}
+				}
+			}
+			finally
+			{
+				close(primary);
+				close(archive);
+			}
+		}
+		moved.addAndGet(count);
+		return count;
+	}
+
+	/**
+	 * Deletes rows from the database once the archive holds their current state.  The rows still
+	 * older than the cutoff are locked, so that they cannot change any more, their copies in the
+	 * archive are brought up to date and committed, then they are deleted.
+	 * @return The number of rows deleted.
+	 */
+	private static int delete(Connection primary, Connection archive, Rule rule, Timestamp cutoff, String forUpdate,
+			List<Object> ids) throws SQLException
+	{
+		List<Object> locked = lock(primary, rule, cutoff, forUpdate, ids);
+		if (locked.isEmpty())
+		{
+			primary.rollback();
+			return 0;
+		}
+		refresh(primary, archive, rule, locked);
+		archive.commit();
+		delete(primary, rule, locked);
+		primary.commit();
+		return locked.size();
+	}
+
+	/**
+	 * Locks the rows of a list of ids that are still older than the cutoff.
+	 * @return Their ids.
+	 */
+	private static List<Object> lock(Connection primary, Rule rule, Timestamp cutoff, String forUpdate,
+			List<Object> ids) throws SQLException
+	{
+		List<Object> locked = new ArrayList<Object>();
+		PreparedStatement select = primary.prepareStatement("SELECT " + rule.idColumn + " FROM " + rule.table
+				+ " WHERE " + rule.idColumn + inList(ids.size()) + " AND " + rule.ageColumn + " < ?"
+				+ StringUtils.defaultString(forUpdate));
+		try
+		{
+			bind(select, ids);
+			select.setTimestamp(ids.size() + 1, cutoff);
+			ResultSet rs = select.executeQuery();
+			while (rs.next())
+			{
+				locked.add(rs.getObject(1));
+			}
+		}
+		finally
+		{
+			select.close();
+		}
+		return locked;
+	}
+
+	/**
+	 * Selects the ids of a batch of rows older than the cutoff, in the order of their ids.
+	 * @param last The last id of the previous batch, or null.
+	 */
+	private static List<Object> selectIds(Connection connection, Rule rule, Timestamp cutoff, Object last)
+			throws SQLException
+	{
+		List<Object> ids = new ArrayList<Object>();
+		PreparedStatement select = connection.prepareStatement("SELECT " + rule.idColumn + " FROM " + rule.table
+				+ " WHERE " + rule.ageColumn + " < ?" + (last == null ? "" : " AND " + rule.idColumn + " > ?")
+				+ " ORDER BY " + rule.idColumn);
+		try
+		{
+			select.setMaxRows(batchSize);
+			select.setTimestamp(1, cutoff);
+			if (last != null)
+			{
+				select.setObject(2, last);
+			}
+			ResultSet rs = select.executeQuery();
+			while (rs.next())
+			{
+				ids.add(rs.getObject(1));
+			}
+		}
+		finally
+		{
+			select.close();
+		}
+		return ids;
+	}
+
+	/**
+	 * Selects the ids of a list that the archive holds.
+	 */
+	private static List<Object> selectArchived(Connection archive, Rule rule, List<Object> ids) throws SQLException
+	{
+		List<Object> archived = new ArrayList<Object>();
+		PreparedStatement select = archive.prepareStatement("SELECT " + rule.idColumn + " FROM " + rule.table
+				+ " WHERE " + rule.idColumn + inList(ids.size()));
+		try
+		{
+			bind(select, ids);
+			ResultSet rs = select.executeQuery();
+			while (rs.next())
+			{
+				archived.add(rs.getObject(1));
+			}
+		}
+		finally
+		{
+			select.close();
+		}
+		return archived;
+	}
+
+	/**
+	 * Copies rows of a tiered table and of its collections.
+	 */
+	private static void copy(Connection primary, Connection archive, Rule rule, List<Object> ids) throws SQLException
+	{
+		String in = inList(ids.size());
+		copy(primary, archive, rule.table, rule.idColumn, in, ids);
+		for (String[] collection : rule.collections)
+		{
+			copy(primary, archive, collection[0], collection[1], in, ids);
+		}
+	}
+
+	/**
+	 * Brings the archive's copies of rows up to date: the rows of the tiered table are updated, and
+	 * those of its collections replaced.
+	 */
+	private static void refresh(Connection primary, Connection archive, Rule rule, List<Object> ids)
+			throws SQLException
+	{
+		String in = inList(ids.size());
+		update(primary, archive, rule.table, rule.idColumn, in, ids);
+		for (String[] collection : rule.collections)
+		{
+			delete(archive, collection[0], collection[1], in, ids);
+			copy(primary, archive, collection[0], collection[1], in, ids);
+		}
+	}
+
+	/**
+	 * Deletes rows of a tiered table and of its collections.
+	 */
+	private static void delete(Connection primary, Rule rule, List<Object> ids) throws SQLException
+	{
+		String in = inList(ids.size());
+		for (String[] collection : rule.collections)
+		{
+			delete(primary, collection[0], collection[1], in, ids);
+		}
+		delete(primary, rule.table, rule.idColumn, in, ids);
+	}
+
+	/**
+	 * Copies the rows of a table whose column is in a list of ids.
+	 */
+	private static void copy(Connection source, Connection target, String table, String column, String in,
+			List<Object> ids) throws SQLException
+	{
+		PreparedStatement select = source.prepareStatement("SELECT * FROM " + table + " WHERE " + column + in);
+		try
+		{
+			bind(select, ids);
+			ResultSet rs = select.executeQuery();
+			PreparedStatement insert = target.prepareStatement(TenantMigration.insertSql(table, rs.getMetaData()));
+			try
+			{
+				int columns = rs.getMetaData().getColumnCount();
+				boolean any = false;
+				while (rs.next())
+				{
+					for (int i = 1; i <= columns; i++)
+					{
+						insert.setObject(i, rs.getObject(i));
+					}
+					insert.addBatch();
+					any = true;
+				}
+				if (any)
+				{
+					insert.executeBatch();
+				}
+			}
+			finally
+			{
+				insert.close();
+			}
+		}
+		finally
+		{
+			select.close();
+		}
+	}
+
+	/**
+	 * Updates the rows of a table whose id is in a list with their values in another database.
+	 */
+	private static void update(Connection source, Connection target, String table, String idColumn, String in,
+			List<Object> ids) throws SQLException
+	{
+		PreparedStatement select = source.prepareStatement("SELECT * FROM " + table + " WHERE " + idColumn + in);
+		try
+		{
+			bind(select, ids);
+			ResultSet rs = select.executeQuery();
+			ResultSetMetaData metadata = rs.getMetaData();
+			int columns = metadata.getColumnCount();
+			int idIndex = 0;
+			StringBuilder sql = new StringBuilder("UPDATE ").append(table).append(" SET ");
+			for (int i = 1; i <= columns; i++)
+			{
+				String column = metadata.getColumnName(i);
+				if (idIndex == 0 && column.equalsIgnoreCase(idColumn))
+				{
+					idIndex = i;
+					continue;
+				}
+				sql.append(sql.charAt(sql.length() - 1) == ' ' ? "" : ", ").append(column).append(" = ?");
+			}
+			if (idIndex == 0)
+			{
+				throw new SQLException("No column " + idColumn + " in " + table);
+			}
+			if (columns == 1)
+			{
+				return;
+			}
+			sql.append(" WHERE ").append(idColumn).append(" = ?");
+			PreparedStatement update = target.prepareStatement(sql.toString());
+			try
+			{
+				boolean any = false;
+				while (rs.next())
+				{
+					int parameter = 1;
+					for (int i = 1; i <= columns; i++)
+					{
+						if (i != idIndex)
+						{
+							update.setObject(parameter++, rs.getObject(i));
+						}
+					}
+					update.setObject(parameter, rs.getObject(idIndex));
+					update.addBatch();
+					any = true;
+				}
+				if (any)
+				{
+					update.executeBatch();
+				}
+			}
+			finally
+			{
+				update.close();
+			}
+		}
+		finally
+		{
+			select.close();
+		}
+	}
+
+	private static void delete(Connection connection, String table, String column, String in, List<Object> ids)
+			throws SQLException
+	{
+		PreparedStatement delete = connection.prepareStatement("DELETE FROM " + table + " WHERE " + column + in);
+		try
+		{
+			bind(delete, ids);
+			delete.executeUpdate();
+		}
+		finally
+		{
+			delete.close();
+		}
+	}
+
+	private static String inList(int size)
+	{
+		StringBuilder in = new StringBuilder(" IN (");
+		for (int i = 0; i < size; i++)
+		{
+			in.append(i == 0 ? "?" : ", ?");
+		}
+		return in.append(")").toString();
+	}
+
+	private static void bind(PreparedStatement statement, List<Object> ids) throws SQLException
+	{
+		for (int i = 0; i < ids.size(); i++)
+		{
+			statement.setObject(i + 1, ids.get(i));
+		}
+	}
+
+	/**
+	 * Finds the tiered entities mapped by a factory.
+	 */
+	@SuppressWarnings("unchecked")
+	static List<Rule> findRules(SessionFactory factory)
+	{
+		List<Rule> rules = new ArrayList<Rule>();
+		for (Object metadata : factory.getAllClassMetadata().values())
+		{
+			if (!(metadata instanceof AbstractEntityPersister))
+			{
+				continue;
+			}
+			AbstractEntityPersister persister = (AbstractEntityPersister) metadata;
+			Class<?> mapped = persister.getMappedClass(EntityMode.POJO);
+			Tiered tiered = (mapped == null ? null : mapped.getAnnotation(Tiered.class));
+			if (tiered == null)
+			{
+				continue;
+			}
+			if (!(persister instanceof SingleTableEntityPersister) || persister.isInherited()
+					|| ((SingleTableEntityPersister) persister).getTableSpan() != 1
+					|| persister.getRootTableIdentifierColumnNames().length != 1)
+			{
+				Logger.warn("%s is not tiered: only root entities mapped to a single table with a single id column are",
+						persister.getEntityName());
+				continue;
+			}
+			String[] ageColumns;
+			try
+			{
+				ageColumns = persister.getPropertyColumnNames(tiered.property());
+			}
+			catch (HibernateException e)
+			{
+				Logger.warn("%s is not tiered: it has no property %s", persister.getEntityName(), tiered.property());
+				continue;
+			}
+			Rule rule = new Rule(persister.getTableName(), persister.getRootTableIdentifierColumnNames()[0],
+					ageColumns[0], tiered.days());
+			for (Object collection : factory.getAllCollectionMetadata().values())
+			{
+				if (collection instanceof AbstractCollectionPersister)
+				{
+					AbstractCollectionPersister owned = (AbstractCollectionPersister) collection;
+					if (!owned.isOneToMany() && !owned.isInverse() && owned.getKeyColumnNames().length == 1
+							&& owned.getOwnerEntityPersister() == persister)
+					{
+						rule.collections.add(new String[] { owned.getTableName(), owned.getKeyColumnNames()[0] });
+					}
+				}
+			}
+			rules.add(rule);
+		}
+		return rules;
+	}
+
+	/**
+	 * Orders the tables so that a table is moved before the tables it references, whose rows would
+	 * otherwise still be referenced when they are deleted.
+	 */
+	private List<Rule> orderByForeignKeys(List<Rule> rules) throws SQLException
+	{
+		Map<Rule, Set<String>> references = new HashMap<Rule, Set<String>>();
+		Map<Rule, String> names = new HashMap<Rule, String>();
+		Connection connection = pool(key).getConnection();
+		try
+		{
+			DatabaseMetaData metadata = connection.getMetaData();
+			for (Rule rule : rules)
+			{
+				Set<String> referenced = new HashSet<String>();
+				names.put(rule, TenantMigration.metaName(metadata, rule.table).toLowerCase());
+				ResultSet rs = metadata.getImportedKeys(null, null, TenantMigration.metaName(metadata, rule.table));
+				try
+				{
+					while (rs.next())
+					{
+						referenced.add(rs.getString("PKTABLE_NAME").toLowerCase());
+					}
+				}
+				finally
+				{
+					rs.close();
+				}
+				references.put(rule, referenced);
+			}
+		}
+		finally
+		{
+			close(connection);
+		}
+
+		List<Rule> ordered = new ArrayList<Rule>();
+		List<Rule> left = new ArrayList<Rule>(rules);
+		while (!left.isEmpty())
+		{
+			List<Rule> unreferenced = new ArrayList<Rule>();
+			for (Rule rule : left)
+			{
+				String table = names.get(rule);
+				boolean isReferenced = false;
+				for (Rule other : left)
+				{
+					isReferenced |= (other != rule && references.get(other).contains(table));
+				}
+				if (!isReferenced)
+				{
+					unreferenced.add(rule);
+				}
+			}
+			if (unreferenced.isEmpty())
+			{
+				unreferenced.addAll(left);
+			}
+			left.removeAll(unreferenced);
+			ordered.addAll(unreferenced);
+		}
+		return ordered;
+	}
+
+	/**
+	 * Records an access to the database and its archive before a batch, so that neither is
+	 * hibernated during a long move.
+	 */
+	private void wake(String archiveKey)
+	{
+		TenantHibernation.wake(key);
+		TenantHibernation.wake(archiveKey);
+	}
+
+	/**
+	 * The raw pools are used, so that the mover is not counted in the statistics of the databases.
+	 */
+	private static DataSource pool(String key)
+	{
+		return MDB.getDataSource(key).getDelegate();
+	}
+
+	private static void rollback(Connection connection)
+	{
+		if (connection != null)
+		{
+			try
+			{
+				connection.rollback();
+			}
+			catch (SQLException e)
+			{
+				Logger.warn("Error rolling back a tiering batch: %s", e.getMessage());
+			}
+		}
+	}
+
+	private static void close(Connection connection)
+	{
+		if (connection != null)
+		{
+			try
+			{
+				connection.close();
+			}
+			catch (SQLException e)
+			{
+				Logger.warn("Error closing tiering connection: %s", e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * @return The statistics of the databases with an archive, by database key.
+	 */
+	static Map<String, TenantTiering> getAll()
+	{
+		return tenants;
+	}
+
+	/**
+	 * @return The number of rows moved to the archive.
+	 */
+	public long getMoved()
+	{
+		return moved.get();
+	}
+
+	public long getBatches()
+	{
+		return batches.get();
+	}
+
+	/**
+	 * @return The number of rows copied to the archive, which are deleted from the database once
+	 * the rows referencing them are.
+	 */
+	public long getCopied()
+	{
+		return copied.get();
+	}
+
+	/**
+	 * @return The number of rows that could not be copied or deleted, as they reference rows that
+	 * are not in the archive or are referenced by rows that are not moved.
+	 */
+	public long getKept()
+	{
+		return kept.get();
+	}
+
+	/**
+	 * @return The number of tables whose move failed.
+	 */
+	public long getFailures()
+	{
+		return failures.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "archive [" + getArchive(key) + "], moved " + getMoved() + " rows in " + getBatches()
+				+ " batches (copied " + getCopied() + ", kept " + getKept() + "), last run " + (lastRun == 0 ? "never" : new Date(lastRun).toString()) + ", failed "
+				+ getFailures() + (lastError == null ? "" : " (" + lastError + ")");
+	}
+
+	/**
+	 * The table of a tiered entity: its id column, the column giving the age of its rows, and the
+	 * tables and key columns of the collections it owns.
+	 */
+	static class Rule
+	{
+		final String table;
+		final String idColumn;
+		final String ageColumn;
+		final int days;
+		final List<String[]> collections = new ArrayList<String[]>();
+
+		Rule(String table, String idColumn, String ageColumn, int days)
+		{
+			this.table = table;
+			this.idColumn = idColumn;
+			this.ageColumn = ageColumn;
+			this.days = days;
+		}
+	}
+}
@@ -0,0 +1,19 @@
+package play.db;
+
+/**
+ *	Thrown when a database cannot serve a request right now, e.g. because too many requests are
+ *	already waiting for it.  Requests failing this way are answered with a 503 (Service Unavailable).
+ * @author dcardon
+ */
+public class TenantUnavailableException extends RuntimeException
+{
+	/**
+	 * Generated GUID for serialization support.
+	 */
+	private static final long serialVersionUID = 4390255867340327961L;
+	
+	public TenantUnavailableException(String message)
+	{
+		super(message);
+	}
+}
@@ -0,0 +1,399 @@
+package play.db;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Map.Entry;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.hibernate.ejb.HibernateEntityManagerFactory;
+import org.hibernate.stat.Statistics;
+
+import play.Logger;
+import play.Play;
+
+import com.mchange.v2.c3p0.ComboPooledDataSource;
+
+/**
+ * Warms the databases up at start-up from the access statistics saved at the previous shutdown.
+ * The request rate, peak concurrency and most executed JPQL queries of each database are saved
+ * to a local file when the application stops.  When it starts again, the pools of the busiest
+ * databases are grown to their previous peak and their hot queries are compiled, busiest first,
+ * before the first request arrives.
+ *
+ * @author dcardon
+ */
+public class TenantWarmup
+{
+	public static final String WARMUP_CONF_PREFIX = MDBPlugin.MDB_CONF_PREFIX + "warmup.";
+
+	/**
+	 * Whether statistics are saved and used at start-up.
+	 */
+	public static volatile boolean enabled = true;
+
+	/**
+	 * Whether the JPQL queries executed on each database are recorded.  This turns Hibernate
+	 * statistics on, which costs some throughput.
+	 */
+	public static volatile boolean recordQueries = false;
+
+	/**
+	 * The maximum number of databases warmed up.
+	 */
+	public static volatile int maxTenants = 100;
+
+	/**
+	 * The maximum number of queries saved per database.
+	 */
+	public static volatile int maxQueries = 20;
+
+	/**
+	 * The time allowed for the warm-up, in milliseconds.
+	 */
+	public static volatile long timeoutMillis = 30000;
+
+	private static volatile File file;
+
+	private static volatile long startedAt = System.currentTimeMillis();
+
+	/**
+	 * The statistics loaded at start-up, the busiest database first.
+	 */
+	private static volatile List<Profile> profiles = Collections.emptyList();
+
+	/**
+	 * Reads the mdb.warmup.* settings and loads the statistics saved at the previous shutdown.
+	 * @param configuration
+	 */
+	public static void configure(Properties configuration)
+	{
+		enabled = Boolean.parseBoolean(configuration.getProperty(WARMUP_CONF_PREFIX + "enabled", "true"));
+		recordQueries = Boolean.parseBoolean(configuration.getProperty(WARMUP_CONF_PREFIX + "recordQueries", "false"));
+		maxTenants = Integer.parseInt(configuration.getProperty(WARMUP_CONF_PREFIX + "maxTenants", "100"));
+		maxQueries = Integer.parseInt(configuration.getProperty(WARMUP_CONF_PREFIX + "maxQueries", "20"));
+		timeoutMillis = Long.parseLong(configuration.getProperty(WARMUP_CONF_PREFIX + "timeout", "30000"));
+		String path = configuration.getProperty(WARMUP_CONF_PREFIX + "file", "tmp/mdb-warmup.properties");
+		file = (new File(path).isAbsolute() ? new File(path) : Play.getFile(path));
+		startedAt = System.currentTimeMillis();
+		profiles = (enabled ? load() : Collections.<Profile> emptyList());
+	}
+
+	/**
+	 * Grows the pools of the busiest databases to their previous peak concurrency, by checking out
+	 * that many connections at once.
+	 */
+	public static void warmPools()
+	{
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		for (Profile profile : profiles)
+		{
+			if (System.currentTimeMillis() > deadline)
+			{
+				Logger.warn("Database warm-up timed out after %s ms", timeoutMillis);
+				return;
+			}
+			MDBDataSource ds = MDB.getDataSource(profile.key);
+			if (ds == null || profile.peak <= 1)
+			{
+				continue;
+			}
+			ComboPooledDataSource pool = ds.getDelegate();
+			int size = Math.min(profile.peak, pool.getMaxPoolSize());
+			if (size > pool.getMinPoolSize())
+			{
+				pool.setMinPoolSize(size);
+			}
+			List<Connection> connections = new ArrayList<Connection>(size);
+			try
+			{
+				for (int i = 0; i < size; i++)
+				{
+					connections.add(pool.getConnection());
+				}
+			}
+			catch (Exception e)
+			{
+				Logger.warn("Error warming up the pool of database [%s]: %s", profile.key, e.getMessage());
+			}
+			finally
+			{
+				for (Connection connection : connections)
+				{
+					try
+					{
+						connection.close();
+					}
+					catch (Exception e)
+					{
+						// Ignore: the pool discards the connection.
+					}
+				}
+			}
+			Logger.debug("Warmed up the pool of database [%s] to %s connections", profile.key, size);
+		}
+	}
+
+	/**
+	 * Compiles the hot queries of the busiest databases, so that their query plans are cached.
+	 * @param factories The entity manager factories, by database key.
+	 */
+	public static void warmQueries(Map<String, EntityManagerFactory> factories)
+	{
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		int compiled = 0;
+		for (Profile profile : profiles)
+		{
+			EntityManagerFactory factory = factories.get(profile.key);
+			if (factory == null || profile.queries.isEmpty())
+			{
+				continue;
+			}
+			if (System.currentTimeMillis() > deadline)
+			{
+				Logger.warn("Query warm-up timed out after %s ms", timeoutMillis);
+				break;
+			}
+			EntityManager manager = factory.createEntityManager();
+			try
+			{
+				for (String query : profile.queries)
+				{
+					try
+					{
+						manager.createQuery(query);
+						compiled++;
+					}
+					catch (Exception e)
+					{
+						Logger.debug("Unable to compile query on [%s]: %s", profile.key, query);
+					}
+				}
+			}
+			finally
+			{
+				manager.close();
+			}
+		}
+		if (compiled > 0)
+		{
+			Logger.info("Compiled %s hot queries for %s databases", compiled, profiles.size());
+		}
+	}
+
+	/**
+	 * Saves the access statistics of each database.
+	 * @param factories The entity manager factories, by database key.
+	 */
+	public static void save(Map<String, EntityManagerFactory> factories)
+	{
+		if (!enabled || file == null)
+		{
+			return;
+		}
+		double seconds = Math.max(1, (System.currentTimeMillis() - startedAt) / 1000.0);
+		Properties out = new Properties();
+		for (Entry<String, TenantBulkhead> entry : TenantBulkhead.getAll().entrySet())
+		{
+			TenantBulkhead bulkhead = entry.getValue();
+			if (bulkhead.getEntries() == 0)
+			{
+				continue;
+			}
+			out.setProperty("rate." + entry.getKey(), String.valueOf(bulkhead.getEntries() / seconds));
+			out.setProperty("peak." + entry.getKey(), String.valueOf(bulkhead.getPeak()));
+		}
+		for (Entry<String, EntityManagerFactory> entry : factories.entrySet())
+		{
+			int i = 0;
+			for (String query : hotQueries(entry.getValue()))
+			{
+				out.setProperty("query." + (i++) + "." + entry.getKey(), query);
+			}
+		}
+		OutputStream stream = null;
+		try
+		{
+			file.getParentFile().mkdirs();
+			stream = new FileOutputStream(file);
+			out.store(stream, "Multiple database access statistics");
+			Logger.debug("Saved database access statistics to %s", file);
+		}
+		catch (Exception e)
+		{
+			Logger.warn("Unable to save database access statistics to %s: %s", file, e.getMessage());
+		}
+		finally
+		{
+			close(stream);
+		}
+	}
+
+	/**
+	 * Finds the most executed queries of a factory, if Hibernate statistics are enabled.
+	 */
+	private static List<String> hotQueries(EntityManagerFactory factory)
+	{
+		if (!(factory instanceof HibernateEntityManagerFactory))
+		{
+			return Collections.emptyList();
+		}
+		final Statistics statistics = ((HibernateEntityManagerFactory) factory).getSessionFactory().getStatistics();
+		if (!statistics.isStatisticsEnabled())
+		{
+			return Collections.emptyList();
+		}
+		List<String> queries = new ArrayList<String>(Arrays.asList(statistics.getQueries()));
+		Collections.sort(queries, new Comparator<String>()
+		{
+			@Override
+			public int compare(String a, String b)
+			{
+				long ca = statistics.getQueryStatistics(a).getExecutionCount();
+				long cb = statistics.getQueryStatistics(b).getExecutionCount();
+				return (ca < cb ? 1 : (ca == cb ? 0 : -1));
+			}
+		});
+		return queries.size() > maxQueries ? queries.subList(0, maxQueries) : queries;
+	}
+
+	/**
+	 * Loads the statistics saved at the previous shutdown.
+	 * @return The profiles of the busiest databases, the busiest first.
+	 */
+	private static List<Profile> load()
+	{
+		if (file == null || !file.exists())
+		{
+			return Collections.emptyList();
+		}
+		Properties in = new Properties();
+		InputStream stream = null;
+		try
+		{
+			stream = new FileInputStream(file);
+			in.load(stream);
+		}
+		catch (Exception e)
+		{
+			Logger.warn("Unable to read database access statistics from %s: %s", file, e.getMessage());
+			return Collections.emptyList();
+		}
+		finally
+		{
+			close(stream);
+		}
+
+		Map<String, Profile> byKey = new HashMap<String, Profile>();
+		for (String name : in.stringPropertyNames())
+		{
+			String value = in.getProperty(name);
+			try
+			{
+				if (name.startsWith("rate."))
+				{
+					profile(byKey, name.substring(5)).rate = Double.parseDouble(value);
+				}
+				else if (name.startsWith("peak."))
+				{
+					profile(byKey, name.substring(5)).peak = Integer.parseInt(value);
+				}
+				else if (name.startsWith("query."))
+				{
+					String rest = name.substring(6);
+					profile(byKey, rest.substring(rest.indexOf('.') + 1)).queries.add(value);
+				}
+			}
+			catch (NumberFormatException e)
+			{
+				Logger.warn("Ignoring malformed database access statistic %s=%s", name, value);
+			}
+		}
+
+		List<Profile> sorted = new ArrayList<Profile>(byKey.values());
+		Collections.sort(sorted, new Comparator<Profile>()
+		{
+			@Override
+			public int compare(Profile a, Profile b)
+			{
+				return Double.compare(b.rate, a.rate);
+			}
+		});
+		return sorted.size() > maxTenants ? new ArrayList<Profile>(sorted.subList(0, maxTenants)) : sorted;
+	}
+
+	private static Profile profile(Map<String, Profile> byKey, String key)
+	{
+		Profile profile = byKey.get(key);
+		if (profile == null)
+		{
+			profile = new Profile(key);
+			byKey.put(key, profile);
+		}
+		return profile;
+	}
+
+	private static void close(java.io.Closeable stream)
+	{
+		if (stream != null)
+		{
+			try
+			{
+				stream.close();
+			}
+			catch (Exception e)
+			{
+				// Ignore
+			}
+		}
+	}
+
+	/**
+	 * @return The statistics loaded at start-up, the busiest database first.
+	 */
+	public static List<Profile> getProfiles()
+	{
+		return profiles;
+	}
+
+	/**
+	 * The access statistics of one database.
+	 */
+	public static class Profile
+	{
+		public final String key;
+
+		/**
+		 * The average number of requests per second.
+		 */
+		public double rate;
+
+		/**
+		 * The largest number of concurrent requests.
+		 */
+		public int peak;
+
+		/**
+		 * The most executed JPQL queries, the most executed first.
+		 */
+		public final List<String> queries = new ArrayList<String>();
+
+		Profile(String key)
+		{
+			this.key = key;
+		}
+	}
+}
@@ -0,0 +1,212 @@
+package play.db.jpa;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.AnnotatedElement;
+import java.lang.reflect.Method;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import play.exceptions.JPAException;
+import play.mvc.ActionInvoker;
+import play.mvc.Http.Request;
+
+/**
+ *	The transaction settings of a single controller action, resolved from the {@link NoTransaction},
+ *	{@link ReadOnlyTransaction} and {@link TenantKey} annotations.  Policies are resolved once per
+ *	action and cached, so that the request path only performs a map lookup.
+ * @author dcardon
+ */
+public class ActionPolicy
+{
+	private static Log log = LogFactory.getLog(ActionPolicy.class);
+
+	/**
+	 * The policy used when no action can be resolved: a read-write transaction with the default extractor.
+	 */
+	public static final ActionPolicy DEFAULT = new ActionPolicy(true, false, null);
+
+	/**
+	 * The resolved policies, keyed by action name (e.g. 'Application.index').
+	 */
+	private static final ConcurrentMap<String, ActionPolicy> policies = new ConcurrentHashMap<String, ActionPolicy>();
+
+	/**
+	 * The extractor instances named by {@link TenantKey}, shared by all actions.
+	 */
+	private static final ConcurrentMap<Class<?>, RequestDBKeyExtractor> extractors = new ConcurrentHashMap<Class<?>, RequestDBKeyExtractor>();
+
+	/**
+	 * Whether the action runs inside an automatic transaction.
+	 */
+	public final boolean transactional;
+
+	/**
+	 * Whether the automatic transaction is read-only.
+	 */
+	public final boolean readOnly;
+
+	/**
+	 * The extractor overriding MJPAPlugin.keyExtractor, or null to use the plugin's extractor.
+	 */
+	public final RequestDBKeyExtractor extractor;
+
+	ActionPolicy(boolean transactional, boolean readOnly, RequestDBKeyExtractor extractor)
+	{
+		this.transactional = transactional;
+		this.readOnly = readOnly;
+		this.extractor = extractor;
+	}
+
+	/**
+	 * Finds the policy for the action serving the request, once Play has routed it.
+	 * @param request
+	 * @return The cached policy, or DEFAULT if the action cannot be resolved.
+	 */
+	public static ActionPolicy forRequest(Request request)
+	{
+		if (request == null)
+		{
+			return DEFAULT;
+		}
+		return forAction(request.action);
+	}
+
+	/**
+	 * Finds the policy for the named action, resolving and caching it on first use.
+	 * @param action
+	 * @return
+	 */
+	public static ActionPolicy forAction(String action)
+	{
+		if (action == null)
+		{
+			return DEFAULT;
+		}
+		ActionPolicy policy = policies.get(action);
+		if (policy == null)
+		{
+			policy = resolve(action);
+			ActionPolicy existing = policies.putIfAbsent(action, policy);
+			if (existing != null)
+			{
+				policy = existing;
+			}
+		}
+		return policy;
+	}
+
+	/**
+	 * Forgets all resolved policies, e.g. when the application classes are reloaded.
+	 */
+	public static void clear()
+	{
+		policies.clear();
+		extractors.clear();
+	}
+
+	/**
+	 * Resolves the policy of an action from its annotations.  Method annotations take precedence
+	 * over the annotations of the controller class.
+	 * @param action
+	 * @return
+	 */
+	private static ActionPolicy resolve(String action)
+	{
+		Method method;
+		Class<?> controller;
+		try
+		{
+			Object[] actionMethod = ActionInvoker.getActionMethod(action);
+			controller = (Class<?>) actionMethod[0];
+			method = (Method) actionMethod[1];
+		}
+		catch (Throwable e)
+		{
+			log.debug("Unable to resolve action " + action + ", using the default transaction policy");
+			return DEFAULT;
+		}
+
+		boolean transactional = !isPresent(NoTransaction.class, method, controller);
+		boolean readOnly = isPresent(ReadOnlyTransaction.class, method, controller);
+
+		RequestDBKeyExtractor extractor = null;
+		TenantKey tenantKey = method.getAnnotation(TenantKey.class);
+		if (tenantKey == null)
+		{
+			tenantKey = controller.getAnnotation(TenantKey.class);
+		}
+		if (tenantKey != null)
+		{
+			extractor = getExtractor(tenantKey.value());
+		}
+
+		if (transactional && !readOnly && extractor == null)
+		{
+			return DEFAULT;
+		}
+		return new ActionPolicy(transactional, readOnly, extractor);
+	}
+
+	/**
+	 * Finds the extractor classes named by {@link TenantKey} on the given controllers or their
+	 * methods.  These are overrides, so they are not candidates for the default extractor.
+	 * @param controllers
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public static Set<Class<?>> findOverrideExtractors(List<Class> controllers)
+	{
+		Set<Class<?>> found = new HashSet<Class<?>>();
+		for (Class controller : controllers)
+		{
+			TenantKey tenantKey = (TenantKey) controller.getAnnotation(TenantKey.class);
+			if (tenantKey != null)
+			{
+				found.add(tenantKey.value());
+			}
+			for (Method method : controller.getDeclaredMethods())
+			{
+				tenantKey = method.getAnnotation(TenantKey.class);
+				if (tenantKey != null)
+				{
+					found.add(tenantKey.value());
+				}
+			}
+		}
+		return found;
+	}
+
+	private static boolean isPresent(Class<? extends Annotation> annotation,
+			AnnotatedElement method, AnnotatedElement controller)
+	{
+		return method.isAnnotationPresent(annotation) || controller.isAnnotationPresent(annotation);
+	}
+
+	private static RequestDBKeyExtractor getExtractor(Class<? extends RequestDBKeyExtractor> clazz)
+	{
+		RequestDBKeyExtractor extractor = extractors.get(clazz);
+		if (extractor == null)
+		{
+			try
+			{
+				extractor = clazz.newInstance();
+			}
+			catch (Exception e)
+			{
+				throw new JPAException("Unable to instantiate extractor class " + clazz.getName(), e);
+			}
+			RequestDBKeyExtractor existing = extractors.putIfAbsent(clazz, extractor);
+			if (existing != null)
+			{
+				extractor = existing;
+			}
+		}
+		return extractor;
+	}
+}
@@ -0,0 +1,47 @@
+package play.db.jpa;
+
+import org.hibernate.HibernateException;
+import org.hibernate.ejb.event.EJB3FlushEntityEventListener;
+import org.hibernate.engine.Status;
+import org.hibernate.event.FlushEntityEvent;
+
+/**
+ * The flush listener implementing the explicit save of JPASupport entities.  A loaded entity that
+ * was not saved has no dirty property: its state is not compared to its snapshot, so that a flush
+ * only does this work for the entities being saved, whatever the number of entities the session
+ * holds.
+ * <p>
+ * Its collections are still visited, as Hibernate takes a collection that no flushed entity holds
+ * for dereferenced: it would refuse the flush of an orphan-removing collection, and drop the others
+ * from the session.  The interceptor's onCollection*() keep them from being written.
+ * <p>
+ * The interceptor's findDirty does the same check, but after the snapshot was read: it stays as
+ * the fallback when another listener is configured.
+ *
+ * @author dcardon
+ */
+class ExplicitSaveListener extends EJB3FlushEntityEventListener
+{
+	private static final long serialVersionUID = 1L;
+
+	private static final int[] NONE = new int[0];
+
+	@Override
+	protected void dirtyCheck(FlushEntityEvent event) throws HibernateException
+	{
+		Object entity = event.getEntity();
+		//
+		//	Deleted entities still go through Hibernate, which schedules their removal.
+		//
+		if (entity instanceof JPASupport && !((JPASupport) entity).willBeSaved
+				&& event.getEntityEntry().getStatus() == Status.MANAGED)
+		{
+			event.setDatabaseSnapshot(null);
+			event.setDirtyProperties(NONE);
+			event.setDirtyCheckHandledByInterceptor(true);
+			event.setDirtyCheckPossible(true);
+			return;
+		}
+		super.dirtyCheck(event);
+	}
+}
@@ -0,0 +1,255 @@
+package play.db.jpa;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.persistence.EntityManagerFactory;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.hibernate.Transaction;
+import org.hibernate.ejb.HibernateEntityManagerFactory;
+
+import play.Logger;
+import play.db.MDBPlugin;
+import play.db.ShardRing;
+import play.db.TenantBulkhead;
+import play.db.TenantHealth;
+import play.db.TenantHibernation;
+import play.db.TenantMigration;
+import play.db.TenantResolver;
+import play.db.TenantUnavailableException;
+import play.exceptions.JPAException;
+
+/**
+ * Bulk persistence of large numbers of entities into one database.  The entities are inserted
+ * through a Hibernate stateless session, so that they are never kept in a persistence context,
+ * and committed in chunks.  Within a chunk the entities are grouped by type, so that JDBC batches
+ * are not broken by alternating insert statements.
+ * <p>
+ * Stateless sessions bypass the persistence context: entity listeners, cascades and collections
+ * are ignored, and entities with identity-generated ids cannot be batched by the driver.
+ *
+ * @author dcardon
+ */
+public class MJPABulk
+{
+	public static final String BULK_CONF_PREFIX = MDBPlugin.MDB_CONF_PREFIX + "bulk.";
+
+	/**
+	 * The number of entities committed in each transaction.
+	 */
+	public static volatile int chunkSize = 1000;
+
+	/**
+	 * The JDBC batch size given to Hibernate.
+	 */
+	public static volatile int batchSize = 50;
+
+	/**
+	 * Reads the mdb.bulk.* settings.
+	 * @param configuration
+	 */
+	public static void configure(Properties configuration)
+	{
+		chunkSize = Integer.parseInt(configuration.getProperty(BULK_CONF_PREFIX + "chunkSize", "1000"));
+		batchSize = Integer.parseInt(configuration.getProperty(BULK_CONF_PREFIX + "batchSize", "50"));
+	}
+
+	/**
+	 * Inserts entities into a database.
+	 * @param dbKey
+	 * @param entities
+	 * @return The number of entities inserted and the throughput.
+	 * @throws JPAException if an insert fails.  The chunks committed before stay committed.
+	 */
+	public static Result persist(String dbKey, Object... entities)
+	{
+		return persist(dbKey, Arrays.asList(entities).iterator());
+	}
+
+	/**
+	 * Inserts entities into a database.
+	 * @param dbKey
+	 * @param entities
+	 * @return The number of entities inserted and the throughput.
+	 * @throws JPAException if an insert fails.  The chunks committed before stay committed.
+	 */
+	public static Result persist(String dbKey, Iterable<?> entities)
+	{
+		return persist(dbKey, entities.iterator());
+	}
+
+	/**
+	 * Inserts entities into a database, reading them from the iterator one chunk at a time.
+	 * @param dbKey
+	 * @param entities
+	 * @return The number of entities inserted and the throughput.
+	 * @throws JPAException if an insert fails.  The chunks committed before stay committed.
+	 */
+	public static Result persist(String dbKey, Iterator<?> entities)
+	{
+		Result result = insert(dbKey, ShardRing.getTenant(), entities, chunkSize);
+		Logger.info("%s", result);
+		return result;
+	}
+
+	/**
+	 * Inserts entities into a database, committing every chunkSize entities.
+	 * @param dbKey
+	 * @param tenant The tenant the entities belong to if tenants share databases, or null.
+	 * @param entities
+	 * @param chunkSize
+	 * @return The number of entities inserted and the throughput.
+	 * @throws TenantUnavailableException if the database is unavailable; nothing was inserted.
+	 * @throws JPAException if an insert fails.  The chunks committed before stay committed.
+	 */
+	static Result insert(String dbKey, String tenant, Iterator<?> entities, int chunkSize)
+	{
+		TenantResolver.resolve(dbKey);
+		TenantHibernation.wake(dbKey);
+		EntityManagerFactory factory = MJPAPlugin.factoryMap.get(dbKey);
+		if (!(factory instanceof HibernateEntityManagerFactory))
+		{
+			throw new InvalidDatabaseException("No database found for key: '" + dbKey + "'");
+		}
+		TenantHealth.get(dbKey).check();
+		TenantBulkhead.enter(dbKey);
+		Result result = new Result(dbKey);
+		StatelessSession session = null;
+		Transaction tx = null;
+		try
+		{
+			SessionFactory sessionFactory = ((HibernateEntityManagerFactory) factory).getSessionFactory();
+			session = sessionFactory.openStatelessSession();
+			List<Object> chunk = new ArrayList<Object>(chunkSize);
+			while (entities.hasNext())
+			{
+				chunk.add(entities.next());
+				if (chunk.size() >= chunkSize || !entities.hasNext())
+				{
+					tx = session.beginTransaction();
+					insert(session, chunk);
+					tx.commit();
+					tx = null;
+					TenantMigration.trackInserted(dbKey, chunk);
+					TenantIndex.inserted(dbKey, tenant, sessionFactory, chunk);
+					result.count += chunk.size();
+					result.chunks++;
+					chunk.clear();
+				}
+			}
+		}
+		catch (RuntimeException e)
+		{
+			if (tx != null)
+			{
+				try
+				{
+					tx.rollback();
+				}
+				catch (RuntimeException re)
+				{
+					Logger.warn("Error rolling back bulk insert into [%s]: %s", dbKey, re.getMessage());
+				}
+			}
+			throw new JPAException("Bulk insert into database [" + dbKey + "] failed after " + result.count
+					+ " entities were committed", e);
+		}
+		finally
+		{
+			try
+			{
+				if (session != null)
+				{
+					session.close();
+				}
+			}
+			finally
+			{
+				TenantBulkhead.exit(dbKey);
+			}
+		}
+		result.nanos = System.nanoTime() - result.start;
+		return result;
+	}
+
+	/**
+	 * Inserts a chunk of entities, one type after the other.
+	 */
+	private static void insert(StatelessSession session, List<Object> chunk)
+	{
+		Map<Class<?>, List<Object>> byType = new LinkedHashMap<Class<?>, List<Object>>();
+		for (Object entity : chunk)
+		{
+			List<Object> list = byType.get(entity.getClass());
+			if (list == null)
+			{
+				list = new ArrayList<Object>();
+				byType.put(entity.getClass(), list);
+			}
+			list.add(entity);
+		}
+		for (List<Object> list : byType.values())
+		{
+			for (Object entity : list)
+			{
+				session.insert(entity);
+			}
+		}
+	}
+
+	/**
+	 * The outcome of a bulk insert.
+	 */
+	public static class Result
+	{
+		public final String dbKey;
+
+		/**
+		 * The number of entities inserted.
+		 */
+		public long count;
+
+		/**
+		 * The number of transactions committed.
+		 */
+		public int chunks;
+
+		final long start = System.nanoTime();
+		long nanos;
+
+		Result(String dbKey)
+		{
+			this.dbKey = dbKey;
+		}
+
+		/**
+		 * @return The duration of the insert, in milliseconds.
+		 */
+		public double getMillis()
+		{
+			return nanos / 1e6;
+		}
+
+		/**
+		 * @return The number of entities inserted per second.
+		 */
+		public double getThroughput()
+		{
+			return (nanos == 0 ? 0 : count * 1e9 / nanos);
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format("Bulk inserted %d entities into [%s] in %d chunks, %.1f ms (%.0f entities/s)", count,
+					dbKey, chunks, getMillis(), getThroughput());
+		}
+	}
+}
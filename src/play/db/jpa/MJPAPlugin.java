@@ -3,6 +3,8 @@ package play.db.jpa;
 import java.io.Serializable;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -24,21 +26,38 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.log4j.Level;
 import org.hibernate.CallbackException;
 import org.hibernate.EmptyInterceptor;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
 import org.hibernate.collection.PersistentCollection;
 import org.hibernate.ejb.Ejb3Configuration;
+import org.hibernate.ejb.HibernateEntityManager;
+import org.hibernate.engine.FilterDefinition;
+import org.hibernate.event.FlushEntityEventListener;
+import org.hibernate.event.PersistEventListener;
 import org.hibernate.type.Type;
 
 import play.CorePlugin;
 import play.Logger;
 import play.Play;
+import play.db.DbTimeline;
 import play.db.MDB;
+import play.db.MDBDataSource;
+import play.db.NPlusOneDetector;
+import play.db.ShardRing;
+import play.db.StatementTimeout;
+import play.db.TenantBulkhead;
+import play.db.TenantHealth;
+import play.db.TenantHibernation;
+import play.db.TenantMigration;
+import play.db.TenantResolver;
+import play.db.TenantUnavailableException;
+import play.db.TenantWarmup;
 import play.exceptions.JPAException;
+import play.mvc.Controller;
 import play.mvc.Http.Request;
 import play.mvc.results.NotFound;
 import play.utils.Utils;
 
-import com.mchange.v2.c3p0.ComboPooledDataSource;
-
 /**
  * The multiple JPA plugin, which supports setting the database connection based on a request parameter. 
  * 
@@ -60,6 +79,24 @@ public class MJPAPlugin extends CorePlugin
 	 */
 	public static RequestDBKeyExtractor keyExtractor = new DomainDBKeyExtractor();
 
+	/**
+	 * The mjpa.runWithNoDB setting, read at start rather than on every request.
+	 */
+	private static volatile boolean runWithNoDB;
+
+	/**
+	 * The database key of the current thread's transaction.
+	 */
+	private static ThreadLocal<String> currentKey = new ThreadLocal<String>();
+
+	/**
+	 * @return The database key of the current thread's transaction, or null if there is none.
+	 */
+	public static String getCurrentKey()
+	{
+		return currentKey.get();
+	}
+
 	@Override
 	public void beforeInvocation()
 	{
@@ -71,20 +108,72 @@ public class MJPAPlugin extends CorePlugin
 		//
 		//	If we have no databases defined, and we have a directive to permit this state, allow it.
 		//
-		if (factoryMap.isEmpty() && Play.configuration.getProperty("mjpa.runWithNoDB","").equals("true"))
+		if (runWithNoDB && factoryMap.isEmpty())
 		{
 			log.debug("Empty factory map--using dummy factory");
 			JPA.entityManagerFactory = getDummyFactory();
 			return;
 		}
 		
-		log.debug("Extracting DB key from request: " + Request.current());
+		//
+		//	Play routes requests after this, and only if they are not routed yet, so that the routing
+		//	plugins run: the transactions of requests start once their action is known.
+		//
+		if (Request.current() != null)
+		{
+			return;
+		}
+		beginInvocation(null);
+	}
+
+	@Override
+	public void beforeActionInvocation(Method actionMethod)
+	{
+		if (runWithNoDB && factoryMap.isEmpty())
+		{
+			return;
+		}
+		beginInvocation(Request.current());
+	}
+
+	/**
+	 * Starts the transaction of an invocation, as set by the policy of its action.
+	 * @param request The routed request, or null for a job.
+	 */
+	private static void beginInvocation(Request request)
+	{
+		//
+		//	Look up the cached transaction policy of the action; annotated actions may skip the
+		//	transaction, run it read-only or use their own key extractor.
+		//
+		ActionPolicy policy = ActionPolicy.forRequest(request);
+		DbTimeline.begin(request == null ? null : request.action);
+		StatementTimeout.begin();
+		NPlusOneDetector.begin(request == null ? null : request.action);
+		if (!policy.transactional)
+		{
+			return;
+		}
+		RequestDBKeyExtractor extractor = (policy.extractor == null ? keyExtractor : policy.extractor);
+
+		//
+		//	This runs on every request: build log messages only if they are logged.
+		//
+		if (log.isDebugEnabled())
+		{
+			log.debug("Extracting DB key from request: " + request);
+		}
 
 		//
 		// Find the database key, so that we'll have one for the transaction.
 		//
-		String dbKey = keyExtractor.extractKey(Request.current());
-		log.debug("Found key: " + dbKey);
+		long start = System.nanoTime();
+		String dbKey = ShardRing.select(extractor.extractKey(request));
+		DbTimeline.record(DbTimeline.Phase.KEY, start);
+		if (log.isDebugEnabled())
+		{
+			log.debug("Found key: " + dbKey);
+		}
 		try
 		{
 			if (dbKey != null)
@@ -92,13 +181,18 @@ public class MJPAPlugin extends CorePlugin
     			//
     			// Start the transaction
     			//
-    			startTx(dbKey, false);
+    			startTx(dbKey, policy.readOnly);
 			}
 		}
 		catch (InvalidDatabaseException e)
 		{
 			throw new NotFound(e.getMessage());
 		}
+		catch (TenantUnavailableException e)
+		{
+			log.warn(e.getMessage());
+			throw new play.mvc.results.Error(503, e.getMessage());
+		}
 	}
 
 	/**
@@ -109,22 +203,109 @@ public class MJPAPlugin extends CorePlugin
 	 */
 	public static void startTx(String dbKey, boolean readOnly)
 	{
-		EntityManagerFactory factory = factoryMap.get(dbKey);
-		log.debug("Starting transaction with factory" + factory + " on DB: " + dbKey);
-		if (dbKey == null || factory == null)
-		{	
-			log.warn("No database found for key: '" + dbKey + "'.  Skipping database connection.");
+		//
+		//	A job may pass a tenant id rather than the key of a database: route it to its shard.
+		//
+		if (dbKey != null && ShardRing.isEnabled() && !TenantResolver.resolve(dbKey))
+		{
+			dbKey = ShardRing.select(dbKey);
+		}
+
+		//
+		//	Write transactions of a tenant being moved are counted, and held during its cutover.
+		//
+		dbKey = TenantMigration.enter(dbKey, readOnly);
+		EntityManagerFactory factory;
+		try
+		{
+			TenantResolver.resolve(dbKey);
+			TenantHibernation.wake(dbKey);
+			factory = factoryMap.get(dbKey);
+			if (log.isDebugEnabled())
+			{
+				log.debug("Starting transaction with factory" + factory + " on DB: " + dbKey);
+			}
+			if (dbKey == null || factory == null)
+			{	
+				log.warn("No database found for key: '" + dbKey + "'.  Skipping database connection.");
+				TenantMigration.leave();
+				return;
+			}
+
+			//
+			//	Creating a context closes the thread's previous one, so leave its bulkhead as well.
+			//	Then fail fast if the database's circuit is open or its bulkhead is over its limit.
+			//
+			leaveBulkhead();
+			TenantHealth.get(dbKey).check();
+			TenantBulkhead.enter(dbKey);
+		}
+		catch (RuntimeException e)
+		{
+			TenantMigration.leave();
+			throw e;
+		}
+		currentKey.set(dbKey);
+		try
+		{
+			DbTimeline.tenant(dbKey);
+			long start = System.nanoTime();
+			EntityManager manager = factory.createEntityManager();
+			manager.setFlushMode(FlushModeType.COMMIT);
+			if (autoTxs)
+			{
+				manager.getTransaction().begin();
+			}
+			DbTimeline.record(DbTimeline.Phase.ENTITY_MANAGER, start);
+			enableTenantFilter(manager);
+			if (log.isDebugEnabled())
+			{
+				log.debug("Creating JPA context: " + manager + " for db: " + dbKey);
+			}
+			JPA.createContext(manager, readOnly);
+		}
+		catch (RuntimeException e)
+		{
+			leaveBulkhead();
+			TenantMigration.leave();
+			throw e;
+		}
+	}
+
+	/**
+	 * Restricts the entity manager to the current tenant's rows, if tenants are sharded and the
+	 * factory defines the tenant filter.
+	 * @param manager
+	 */
+	static void enableTenantFilter(EntityManager manager)
+	{
+		String tenant = ShardRing.getTenant();
+		if (tenant == null || !(manager instanceof HibernateEntityManager))
+		{
 			return;
 		}
+		Session session = ((HibernateEntityManager) manager).getSession();
+		FilterDefinition filter = session.getSessionFactory().getFilterDefinition(ShardRing.TENANT_FILTER);
+		if (filter != null)
+		{
+			session.enableFilter(ShardRing.TENANT_FILTER).setParameter(ShardRing.TENANT_FILTER, tenant);
+		}
+	}
 
-		EntityManager manager = factory.createEntityManager();
-		manager.setFlushMode(FlushModeType.COMMIT);
-		if (autoTxs)
+	/**
+	 * Leaves the bulkhead entered by the current thread's transaction, if any.
+	 */
+	private static void leaveBulkhead()
+	{
+		String dbKey = currentKey.get();
+		if (dbKey != null)
 		{
-			manager.getTransaction().begin();
+			//
+			//	Clear rather than remove the value, so that the next transaction reuses its entry.
+			//
+			currentKey.set(null);
+			TenantBulkhead.exit(dbKey);
 		}
-		log.debug("Creating JPA context: " + manager + " for db: " + dbKey);
-		JPA.createContext(manager, readOnly);
 	}
 
 	/**
@@ -148,15 +329,43 @@ public class MJPAPlugin extends CorePlugin
 					if (JPA.get().readonly || rollback
 							|| manager.getTransaction().getRollbackOnly())
 					{
+						long start = System.nanoTime();
 						manager.getTransaction().rollback();
+						DbTimeline.record(DbTimeline.Phase.ROLLBACK, start);
 					}
 					else
 					{
+						//
+						//	Make room in the write-behind queue for the entities held by the
+						//	transaction; if there is none, the transaction fails.
+						//
+						try
+						{
+							WriteBehindQueue.beforeCommit(manager);
+						}
+						catch (RuntimeException e)
+						{
+							manager.getTransaction().rollback();
+							throw e;
+						}
 						try
 						{
 							if (autoTxs)
 							{
+								//
+								//	Flush separately when tracing, so that the timeline tells
+								//	flush and commit apart.
+								//
+								if (DbTimeline.isActive())
+								{
+									long start = System.nanoTime();
+									manager.flush();
+									DbTimeline.record(DbTimeline.Phase.FLUSH, start);
+								}
+								long start = System.nanoTime();
 								manager.getTransaction().commit();
+								DbTimeline.record(DbTimeline.Phase.COMMIT, start);
+								WriteBehindQueue.afterCommit();
 							}
 						}
 						catch (Throwable e)
@@ -183,8 +392,20 @@ public class MJPAPlugin extends CorePlugin
 		}
 		finally
 		{
-			manager.close();
-			JPA.clearContext();
+			try
+			{
+				WriteBehindQueue.clear();
+				TenantIndex.complete(false);
+				TenantMigration.complete(false);
+				manager.close();
+				JPA.clearContext();
+			}
+			finally
+			{
+				MJPATiered.close();
+				leaveBulkhead();
+				TenantMigration.leave();
+			}
 		}
 	}
 
@@ -198,6 +419,7 @@ public class MJPAPlugin extends CorePlugin
 	public void afterActionInvocation()
 	{
 		closeTx(false);
+		DbTimeline.writeHeader();
 	}
 
 	@Override
@@ -210,6 +432,19 @@ public class MJPAPlugin extends CorePlugin
 	public void invocationFinally()
 	{
 		closeTx(true);
+		ShardRing.clear();
+		DbTimeline.end();
+		NPlusOneDetector.end();
+		StatementTimeout.end();
+	}
+
+	@Override
+	public void onApplicationStop()
+	{
+		//
+		//	Write the entities left in the write-behind queues while the databases are still open.
+		//
+		WriteBehindQueue.shutdown();
 	}
 
 	/**
@@ -253,6 +488,7 @@ public class MJPAPlugin extends CorePlugin
 		//	NOTE: this uses the JPA class to store the request's entityManagerFactory.
 		//	The trick is that the MJPAPlugin has higher priority than Play's native JPAPlugin.
 		//
+		runWithNoDB = Play.configuration.getProperty("mjpa.runWithNoDB", "").equals("true");
 		if (JPA.entityManagerFactory == null)
 		{
 			List<Class> classes = Play.classloader.getAnnotatedClasses(Entity.class);
@@ -263,7 +499,7 @@ public class MJPAPlugin extends CorePlugin
 			}
 			if (MDB.datasources == null || MDB.datasources.isEmpty())
 			{
-                if (Play.configuration.getProperty("mjpa.runWithNoDB","").equals("true"))
+                if (runWithNoDB)
                 {
                 	//
                 	//	Create a dummy entity manager factory, so that JPA is prevented from screaming.
@@ -283,7 +519,7 @@ public class MJPAPlugin extends CorePlugin
     			//
     			for (Entry<String, DataSource> entry : MDB.datasources.entrySet())
     			{
-    				ComboPooledDataSource datasource = (ComboPooledDataSource) entry.getValue();
+    				MDBDataSource datasource = MDB.getDataSource(entry.getKey());
     				
     				Ejb3Configuration cfg = buildEjbConfiguration(classes, datasource);
     				Logger.trace("Initializing JPA ...");
@@ -292,7 +528,7 @@ public class MJPAPlugin extends CorePlugin
     					EntityManagerFactory factory = cfg.buildEntityManagerFactory(); 
     					JPA.entityManagerFactory = factory;
     					factoryMap.put(entry.getKey(), factory);
-    					log.debug("Added datasource: " + datasource.getJdbcUrl());
+    					log.debug("Added datasource: " + datasource);
     				}
     				catch (PersistenceException e)
     				{
@@ -300,14 +536,32 @@ public class MJPAPlugin extends CorePlugin
     							? e.getCause() : e);
     				}
     			}
+    			
+    			//
+    			//	Compile the hot queries of the busiest databases before the first request.
+    			//
+    			TenantWarmup.warmQueries(factoryMap);
+
+    			//
+    			//	Index the natural keys of every database.
+    			//
+    			TenantIndex.build(factoryMap);
 			}
 			JPQLDialect.instance = new JPQLDialect();
 		}
 		
+		//
+		//	Forget the transaction policies resolved from the previous application classes.
+		//
+		ActionPolicy.clear();
+
 		//
 		//	Set up the key extractor here, by looking for an application class that implements it.
 		//
-		List<Class> extractors = Play.classloader.getAssignableClasses(RequestDBKeyExtractor.class);
+		List<Class> extractors = new ArrayList<Class>(
+				Play.classloader.getAssignableClasses(RequestDBKeyExtractor.class));
+		extractors.removeAll(ActionPolicy.findOverrideExtractors(
+				Play.classloader.getAssignableClasses(Controller.class)));
 		if (extractors.size() > 1)
 		{
 			throw new JPAException("Too many DB Key extract classes.  " +
@@ -339,12 +593,12 @@ public class MJPAPlugin extends CorePlugin
 
 	/**
 	 * @param classes
-	 * @param datasource
+	 * @param datasource The instrumented datasource of the database.
 	 * @return
 	 */
 	@SuppressWarnings("unchecked")
 	public static Ejb3Configuration buildEjbConfiguration(List<Class> classes,
-			ComboPooledDataSource datasource)
+			MDBDataSource datasource)
 	{
 		Ejb3Configuration cfg = new Ejb3Configuration();
 		cfg.setDataSource(datasource);
@@ -353,10 +607,26 @@ public class MJPAPlugin extends CorePlugin
 			cfg.setProperty("hibernate.hbm2ddl.auto", Play.configuration.getProperty(
 					"jpa.ddl", "update"));
 		}
-		cfg.setProperty("hibernate.dialect", getDefaultDialect(datasource.getDriverClass()));
+		cfg.setProperty("hibernate.dialect", getDefaultDialect(datasource.getDelegate().getDriverClass()));
 		cfg.setProperty("javax.persistence.transaction", "RESOURCE_LOCAL");
 
-		// Explicit SAVE for JPASupport is implemented here
+		//
+		//	Batch the statements of each flush, which bulk inserts rely on.  The hibernate.* settings
+		//	of the configuration file override this one.
+		//
+		cfg.setProperty("hibernate.jdbc.batch_size", String.valueOf(MJPABulk.batchSize));
+		if (WriteBehindQueue.hasWriteBehind(classes))
+		{
+			cfg.setListeners("create", new PersistEventListener[] { new WriteBehindQueue.PersistListener() });
+		}
+		cfg.setListeners("flush-entity", new FlushEntityEventListener[] { new ExplicitSaveListener() });
+		if (TenantWarmup.recordQueries)
+		{
+			cfg.setProperty("hibernate.generate_statistics", "true");
+		}
+
+		// Explicit SAVE for JPASupport is implemented here, and by ExplicitSaveListener
+		// which skips the dirty check of the unsaved entities
 		// ~~~~~~
 		// We've hacked the org.hibernate.event.def.AbstractFlushingEventListener line
 		// 271, to flush collection update,remove,recreation
@@ -368,6 +638,7 @@ public class MJPAPlugin extends CorePlugin
 		//
 		// This is really hacky. We should move to something better than Hibernate
 		// like EBEAN
+		final String dbKey = datasource.key;
 		cfg.setInterceptor(new EmptyInterceptor()
 		{
 			/**
@@ -375,6 +646,40 @@ public class MJPAPlugin extends CorePlugin
 			 */
 			private static final long serialVersionUID = -8670026536584880961L;
 
+			@Override
+			public boolean onSave(Object entity, Serializable id, Object[] state,
+					String[] propertyNames, Type[] types) throws CallbackException
+			{
+				TenantMigration.track(entity, id);
+				TenantIndex.record(dbKey, entity, propertyNames, null, state);
+				return super.onSave(entity, id, state, propertyNames, types);
+			}
+
+			@Override
+			public boolean onFlushDirty(Object entity, Serializable id, Object[] currentState,
+					Object[] previousState, String[] propertyNames, Type[] types) throws CallbackException
+			{
+				TenantMigration.track(entity, id);
+				TenantIndex.record(dbKey, entity, propertyNames, previousState, currentState);
+				return super.onFlushDirty(entity, id, currentState, previousState, propertyNames, types);
+			}
+
+			@Override
+			public void onDelete(Object entity, Serializable id, Object[] state,
+					String[] propertyNames, Type[] types) throws CallbackException
+			{
+				TenantMigration.track(entity, id);
+				TenantIndex.record(dbKey, entity, propertyNames, state, null);
+				super.onDelete(entity, id, state, propertyNames, types);
+			}
+
+			@Override
+			public void afterTransactionCompletion(Transaction tx)
+			{
+				TenantIndex.complete(tx.wasCommitted());
+				TenantMigration.complete(tx.wasCommitted());
+			}
+
 			@Override
 			public int[] findDirty(Object o, Serializable id, Object[] arg2,
 					Object[] arg3, String[] arg4, Type[] arg5)
@@ -390,6 +695,7 @@ public class MJPAPlugin extends CorePlugin
 			public boolean onCollectionUpdate(Object collection, Serializable key)
 					throws CallbackException
 			{
+				TenantMigration.trackCollection(collection, key);
 				if (collection instanceof PersistentCollection)
 				{
 					Object o = ((PersistentCollection) collection).getOwner();
@@ -398,10 +704,6 @@ public class MJPAPlugin extends CorePlugin
 						return ((JPASupport) o).willBeSaved;
 					}
 				}
-				else
-				{
-					System.out.println("HOO: Case not handled !!!");
-				}
 				return super.onCollectionUpdate(collection, key);
 			}
 
@@ -409,6 +711,7 @@ public class MJPAPlugin extends CorePlugin
 			public boolean onCollectionRecreate(Object collection, Serializable key)
 					throws CallbackException
 			{
+				TenantMigration.trackCollection(collection, key);
 				if (collection instanceof PersistentCollection)
 				{
 					Object o = ((PersistentCollection) collection).getOwner();
@@ -417,10 +720,6 @@ public class MJPAPlugin extends CorePlugin
 						return ((JPASupport) o).willBeSaved;
 					}
 				}
-				else
-				{
-					System.out.println("HOO: Case not handled !!!");
-				}
 				return super.onCollectionRecreate(collection, key);
 			}
 
@@ -428,6 +727,7 @@ public class MJPAPlugin extends CorePlugin
 			public boolean onCollectionRemove(Object collection, Serializable key)
 					throws CallbackException
 			{
+				TenantMigration.trackCollection(collection, key);
 				if (collection instanceof PersistentCollection)
 				{
 					Object o = ((PersistentCollection) collection).getOwner();
@@ -436,10 +736,6 @@ public class MJPAPlugin extends CorePlugin
 						return ((JPASupport) o).willBeSaved;
 					}
 				}
-				else
-				{
-					System.out.println("HOO: Case not handled !!!");
-				}
 				return super.onCollectionRemove(collection, key);
 			}
 		});
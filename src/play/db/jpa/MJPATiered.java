@@ -0,0 +1,316 @@
+package play.db.jpa;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.FlushModeType;
+import javax.persistence.NoResultException;
+import javax.persistence.Query;
+
+import org.hibernate.ejb.HibernateEntityManager;
+import org.hibernate.ejb.HibernateQuery;
+import org.hibernate.type.EntityType;
+import org.hibernate.type.Type;
+
+import play.Logger;
+import play.db.TenantHibernation;
+import play.db.TenantTiering;
+
+/**
+ * Reads of tiered entities (see {@link Tiered}) from both the current transaction's database and
+ * its archive.  The archive is read through a read-only entity manager opened on first use and
+ * closed with the transaction; the entity manager of the transaction, JPA.em(), only reads the
+ * database.
+ * <ul>
+ * <li>findById() looks for an entity missing from the database in the archive;</li>
+ * <li>the queries of createQuery() return the rows of the database, then those of the archive
+ * that the database does not hold, their first result and maximum number of results applying to
+ * the whole.  The order of the query only applies within each tier, unless it is given to
+ * {@link TieredQuery#orderBy(Comparator)} as well.</li>
+ * </ul>
+ *
+ * @author dcardon
+ */
+public class MJPATiered
+{
+	/**
+	 * The archive's entity manager of the current thread's transaction.
+	 */
+	private static final ThreadLocal<EntityManager> archive = new ThreadLocal<EntityManager>();
+
+	/**
+	 * Finds an entity in the current transaction's database, or else in its archive.
+	 * @param clazz
+	 * @param id
+	 * @return The entity, or null if neither holds it.
+	 */
+	public static <T> T findById(Class<T> clazz, Object id)
+	{
+		T found = JPA.em().find(clazz, id);
+		if (found == null)
+		{
+			EntityManager manager = archive();
+			if (manager != null)
+			{
+				found = manager.find(clazz, id);
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Creates a query reading both tiers.
+	 * @param jpql A query returning a single tiered entity.
+	 * @param clazz The entity returned.
+	 * @return The query.
+	 * @throws IllegalArgumentException if the query does not return a tiered entity.
+	 */
+	public static <T> TieredQuery<T> createQuery(String jpql, Class<T> clazz)
+	{
+		Query query = JPA.em().createQuery(jpql);
+		if (!(query instanceof HibernateQuery))
+		{
+			throw new IllegalArgumentException("Not a Hibernate query: " + jpql);
+		}
+		Type[] types = ((HibernateQuery) query).getHibernateQuery().getReturnTypes();
+		Class<?> returned = (types.length == 1 && types[0] instanceof EntityType ? types[0].getReturnedClass() : null);
+		if (returned == null || returned.getAnnotation(Tiered.class) == null || !clazz.isAssignableFrom(returned))
+		{
+			throw new IllegalArgumentException("The query does not return tiered entities of " + clazz.getName()
+					+ ": " + jpql);
+		}
+		return new TieredQuery<T>(query, jpql);
+	}
+
+	/**
+	 * Opens the read-only entity manager of the current transaction's archive, on first use, and
+	 * records the access to the archive.
+	 * @return The entity manager, or null if the database has no archive.
+	 */
+	private static EntityManager archive()
+	{
+		String archiveKey = TenantTiering.getArchive(MJPAPlugin.getCurrentKey());
+		if (archiveKey == null)
+		{
+			return null;
+		}
+		//
+		//	Every read is an access, so that an archive only read from is not hibernated.
+		//
+		TenantHibernation.wake(archiveKey);
+		EntityManager manager = archive.get();
+		if (manager == null)
+		{
+			EntityManagerFactory factory = MJPAPlugin.factoryMap.get(archiveKey);
+			if (factory == null)
+			{
+				throw new IllegalStateException("The archive [" + archiveKey + "] is not connected");
+			}
+			manager = factory.createEntityManager();
+			manager.setFlushMode(FlushModeType.COMMIT);
+			if (manager instanceof HibernateEntityManager)
+			{
+				((HibernateEntityManager) manager).getSession().setDefaultReadOnly(true);
+			}
+			manager.getTransaction().begin();
+			MJPAPlugin.enableTenantFilter(manager);
+			archive.set(manager);
+		}
+		return manager;
+	}
+
+	/**
+	 * Closes the archive's entity manager of the current thread's transaction, if it was opened.
+	 */
+	static void close()
+	{
+		EntityManager manager = archive.get();
+		if (manager != null)
+		{
+			archive.set(null);
+			try
+			{
+				if (manager.getTransaction().isActive())
+				{
+					manager.getTransaction().rollback();
+				}
+				manager.close();
+			}
+			catch (RuntimeException e)
+			{
+				Logger.warn("Error closing the archive's entity manager: %s", e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * The id of an entity read by an entity manager.
+	 */
+	private static Serializable id(EntityManager manager, Object entity)
+	{
+		return ((HibernateEntityManager) manager).getSession().getIdentifier(entity);
+	}
+
+	/**
+	 * A query of a tiered entity reading both tiers.  Its parameters are recorded, to be bound to
+	 * the archive's query as well.
+	 */
+	public static class TieredQuery<T>
+	{
+		private final Query query;
+		private final String jpql;
+		private final List<Object[]> parameters = new ArrayList<Object[]>();
+		private int firstResult = 0;
+		private int maxResults = -1;
+		private Comparator<? super T> order;
+
+		TieredQuery(Query query, String jpql)
+		{
+			this.query = query;
+			this.jpql = jpql;
+		}
+
+		public TieredQuery<T> setParameter(String name, Object value)
+		{
+			query.setParameter(name, value);
+			parameters.add(new Object[] { name, value });
+			return this;
+		}
+
+		public TieredQuery<T> setParameter(int position, Object value)
+		{
+			query.setParameter(position, value);
+			parameters.add(new Object[] { Integer.valueOf(position), value });
+			return this;
+		}
+
+		public TieredQuery<T> setFirstResult(int firstResult)
+		{
+			this.firstResult = firstResult;
+			return this;
+		}
+
+		public TieredQuery<T> setMaxResults(int maxResults)
+		{
+			this.maxResults = maxResults;
+			return this;
+		}
+
+		/**
+		 * Orders the merged rows of both tiers, and so the rows the first result and maximum number of
+		 * results select.  It should agree with the query's ORDER BY.
+		 * @param order
+		 * @return
+		 */
+		public TieredQuery<T> orderBy(Comparator<? super T> order)
+		{
+			this.order = order;
+			return this;
+		}
+
+		/**
+		 * @return The rows of the database, then those of the archive that the database does not
+		 * hold, or the rows of both in the order given to orderBy(); from the first result on.
+		 */
+		@SuppressWarnings("unchecked")
+		public List<T> getResultList()
+		{
+			EntityManager manager = archive();
+			if (manager == null)
+			{
+				query.setFirstResult(firstResult);
+				if (maxResults >= 0)
+				{
+					query.setMaxResults(maxResults);
+				}
+				return query.getResultList();
+			}
+
+			//
+			//	Each tier returns the rows up to the last one asked for, as any of them may be among
+			//	the merged rows selected.
+			//
+			int limit = (maxResults < 0 ? -1 : firstResult + maxResults);
+			if (limit >= 0)
+			{
+				query.setMaxResults(limit);
+			}
+			List<T> results = new ArrayList<T>(query.getResultList());
+			EntityManager primary = JPA.em();
+			Set<Serializable> ids = new HashSet<Serializable>();
+			for (T result : results)
+			{
+				ids.add(id(primary, result));
+			}
+			Query archived = archiveQuery(manager);
+			if (limit >= 0)
+			{
+				archived.setMaxResults(limit);
+			}
+			for (T result : (List<T>) archived.getResultList())
+			{
+				//
+				//	A row moved while it is read, or kept in the database after it was copied,
+				//	is returned once, as the database holds it.
+				//
+				if (!ids.contains(id(manager, result)))
+				{
+					results.add(result);
+				}
+			}
+			if (order != null)
+			{
+				Collections.sort(results, order);
+			}
+			int from = Math.min(firstResult, results.size());
+			int to = (limit < 0 ? results.size() : Math.min(limit, results.size()));
+			return new ArrayList<T>(results.subList(from, to));
+		}
+
+		/**
+		 * @return The row of the database, or else of the archive.
+		 * @throws NoResultException if neither returns a row.
+		 */
+		@SuppressWarnings("unchecked")
+		public T getSingleResult()
+		{
+			try
+			{
+				return (T) query.getSingleResult();
+			}
+			catch (NoResultException e)
+			{
+				EntityManager manager = archive();
+				if (manager == null)
+				{
+					throw e;
+				}
+				return (T) archiveQuery(manager).getSingleResult();
+			}
+		}
+
+		private Query archiveQuery(EntityManager manager)
+		{
+			Query archived = manager.createQuery(jpql);
+			for (Object[] parameter : parameters)
+			{
+				if (parameter[0] instanceof Integer)
+				{
+					archived.setParameter(((Integer) parameter[0]).intValue(), parameter[1]);
+				}
+				else
+				{
+					archived.setParameter((String) parameter[0], parameter[1]);
+				}
+			}
+			return archived;
+		}
+	}
+}
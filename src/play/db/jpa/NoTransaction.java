@@ -0,0 +1,17 @@
+package play.db.jpa;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ *	Marks a controller class or action method that must not run inside an automatic transaction.
+ *	The MJPAPlugin neither extracts a database key nor opens an entity manager for such actions.
+ * @author dcardon
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.TYPE, ElementType.METHOD})
+public @interface NoTransaction
+{
+}
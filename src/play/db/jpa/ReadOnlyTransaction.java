@@ -0,0 +1,17 @@
+package play.db.jpa;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ *	Marks a controller class or action method whose automatic transaction is read-only.  The 
+ *	transaction is always rolled back when the action completes.
+ * @author dcardon
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.TYPE, ElementType.METHOD})
+public @interface ReadOnlyTransaction
+{
+}
@@ -0,0 +1,774 @@
+package play.db.jpa;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+
+import javax.persistence.EntityManagerFactory;
+
+import org.apache.commons.lang.StringUtils;
+import org.hibernate.EntityMode;
+import org.hibernate.Hibernate;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.hibernate.ejb.HibernateEntityManagerFactory;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.persister.entity.Queryable;
+
+import play.Logger;
+import play.db.MDBPlugin;
+import play.db.MDBTasks;
+import play.db.ShardRing;
+import play.db.TenantMigration;
+import play.db.TenantResolver;
+
+/**
+ * A global index from the values of an entity field, such as a user's email address, to the
+ * tenants holding them.  It answers which tenant a request belongs to when all the request has is
+ * such a value, as in a login form.  A tenant is its database key, or its tenant id when tenants
+ * share databases (see {@link ShardRing}).
+ * <p>
+ * Indexes are declared as mdb.index.&lt;name&gt;=&lt;Entity&gt;.&lt;field&gt;.  They are built at
+ * start by scanning every database in parallel, and then kept up to date by the entity manager
+ * factories' interceptor and by bulk inserts: the changes to indexed fields are recorded during
+ * flushes and applied once their transaction commits.  Each index counts the rows holding a value
+ * for each tenant, so that deleting one of two rows sharing a value keeps the value indexed.
+ * <p>
+ * Catalog tenants are scanned in the background once connected, and keep their values when they
+ * are disconnected to make room for others: the index only knows the catalog tenants connected
+ * on the node since it started.
+ * <p>
+ * Indexes live in the memory of each application node, and only see the commits of their own node.
+ * Rebuilding them periodically brings in the changes made on the other nodes.
+ *
+ * @author dcardon
+ */
+public class TenantIndex
+{
+	public static final String INDEX_CONF_PREFIX = MDBPlugin.MDB_CONF_PREFIX + "index.";
+
+	/**
+	 * The number of databases scanned at once while building the indexes.
+	 */
+	public static volatile int threads = 4;
+
+	/**
+	 * How often the indexes are rebuilt from the databases, in milliseconds, or 0 never to.
+	 */
+	public static volatile long rebuildMillis = 0;
+
+	/**
+	 * The column holding the tenant id in shared databases, by default mdb.migration.tenantColumn.
+	 */
+	public static volatile String tenantColumn;
+
+	private static ScheduledFuture<?> task;
+
+	private static final String[] NONE = new String[0];
+
+	private static volatile Map<String, TenantIndex> indexes = Collections.emptyMap();
+
+	/**
+	 * The indexes of each entity class, found on first use.
+	 */
+	private static final ConcurrentMap<Class<?>, List<TenantIndex>> byClass = new ConcurrentHashMap<Class<?>, List<TenantIndex>>();
+
+	/**
+	 * The changes made by the current thread's transaction: index, value removed, value added and
+	 * tenant.
+	 */
+	private static final ThreadLocal<List<Object[]>> pending = new ThreadLocal<List<Object[]>>();
+
+	public final String name;
+	public final String entity;
+	public final String field;
+
+	/**
+	 * The tenants holding each value: a String for a value held by a single row, or else the
+	 * Holders of the value.  They are replaced, never modified.
+	 */
+	private final ConcurrentMap<Object, Object> keys = new ConcurrentHashMap<Object, Object>();
+
+	/**
+	 * The tenants found in each shared database by its last scan.
+	 */
+	private final ConcurrentMap<String, Set<String>> scanned = new ConcurrentHashMap<String, Set<String>>();
+
+	TenantIndex(String name, String entity, String field)
+	{
+		this.name = name;
+		this.entity = entity;
+		this.field = field;
+	}
+
+	/**
+	 * Reads the mdb.index.* settings.
+	 * @param configuration
+	 */
+	public static synchronized void configure(Properties configuration)
+	{
+		threads = Integer.parseInt(configuration.getProperty(INDEX_CONF_PREFIX + "threads", "4"));
+		rebuildMillis = Long.parseLong(configuration.getProperty(INDEX_CONF_PREFIX + "rebuild", "0"));
+		tenantColumn = configuration.getProperty(INDEX_CONF_PREFIX + "tenantColumn",
+				configuration.getProperty(TenantMigration.MIGRATION_CONF_PREFIX + "tenantColumn"));
+		Map<String, TenantIndex> configured = new ConcurrentHashMap<String, TenantIndex>();
+		for (String property : configuration.stringPropertyNames())
+		{
+			if (!property.startsWith(INDEX_CONF_PREFIX) || property.equals(INDEX_CONF_PREFIX + "threads")
+					|| property.equals(INDEX_CONF_PREFIX + "rebuild") || property.equals(INDEX_CONF_PREFIX + "tenantColumn"))
+			{
+				continue;
+			}
+			String name = property.substring(INDEX_CONF_PREFIX.length());
+			String target = configuration.getProperty(property).trim();
+			if (target.lastIndexOf('.') <= 0)
+			{
+				Logger.error("Invalid tenant index %s=%s, expected <Entity>.<field>", property, target);
+				continue;
+			}
+			TenantIndex index = new TenantIndex(name, StringUtils.substringBeforeLast(target, "."),
+					StringUtils.substringAfterLast(target, "."));
+
+			//
+			//	Keep the values of an unchanged index, as the databases are only scanned again if
+			//	their factories are rebuilt.
+			//
+			TenantIndex existing = indexes.get(name);
+			if (existing != null && existing.entity.equals(index.entity) && existing.field.equals(index.field))
+			{
+				index = existing;
+			}
+			configured.put(name, index);
+		}
+		indexes = configured;
+		byClass.clear();
+		if (!configured.isEmpty() && TenantResolver.isEnabled())
+		{
+			Logger.info("The tenant indexes only hold the catalog tenants connected since the start");
+		}
+
+		if (task != null)
+		{
+			task.cancel(false);
+			task = null;
+		}
+		if (rebuildMillis > 0 && !configured.isEmpty())
+		{
+			task = MDBTasks.schedule("index", new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					Map<String, EntityManagerFactory> factories;
+					synchronized (MJPAPlugin.factoryMap)
+					{
+						factories = new HashMap<String, EntityManagerFactory>(MJPAPlugin.factoryMap);
+					}
+					build(factories);
+				}
+			}, rebuildMillis);
+		}
+	}
+
+	/**
+	 * Stops rebuilding the indexes.
+	 */
+	public static synchronized void shutdown()
+	{
+		if (task != null)
+		{
+			task.cancel(false);
+			task = null;
+		}
+	}
+
+	/**
+	 * Removes the values of a database from the indexes, with those of the tenants it shares, e.g.
+	 * when it is removed from the tenant catalog.
+	 * @param dbKey
+	 */
+	public static void forget(String dbKey)
+	{
+		Map<Object, int[]> none = Collections.emptyMap();
+		for (TenantIndex index : indexes.values())
+		{
+			index.replace(dbKey, none);
+			Set<String> tenants = index.scanned.remove(dbKey);
+			if (tenants != null)
+			{
+				for (String tenant : tenants)
+				{
+					index.replace(tenant, none);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Finds the tenant holding a value.
+	 * @param name The name of the index.
+	 * @param value
+	 * @return The database key, or the tenant id if tenants share databases, to be given to
+	 * ShardRing.select(); null if no tenant holds the value.  If several do, the first one indexed
+	 * is returned.
+	 * @throws IllegalArgumentException if there is no such index.
+	 */
+	public static String lookup(String name, Object value)
+	{
+		Object found = get(name).keys.get(value);
+		return (found instanceof Holders ? ((Holders) found).keys[0] : (String) found);
+	}
+
+	/**
+	 * Finds all the tenants holding a value.
+	 * @param name The name of the index.
+	 * @param value
+	 * @return The database keys, or tenant ids if tenants share databases.
+	 * @throws IllegalArgumentException if there is no such index.
+	 */
+	public static List<String> lookupAll(String name, Object value)
+	{
+		Object found = get(name).keys.get(value);
+		if (found == null)
+		{
+			return Collections.emptyList();
+		}
+		return (found instanceof Holders ? Arrays.asList(((Holders) found).keys) : Collections.singletonList((String) found));
+	}
+
+	private static TenantIndex get(String name)
+	{
+		TenantIndex index = indexes.get(name);
+		if (index == null)
+		{
+			throw new IllegalArgumentException("Unknown tenant index: " + name);
+		}
+		return index;
+	}
+
+	/**
+	 * @return The indexes, by name.
+	 */
+	public static Map<String, TenantIndex> getAll()
+	{
+		return Collections.unmodifiableMap(indexes);
+	}
+
+	/**
+	 * Builds the indexes from every database, scanning several databases at once.  The values of
+	 * the databases not given are kept.
+	 * @param factories The entity manager factories, by database key.
+	 */
+	static void build(Map<String, EntityManagerFactory> factories)
+	{
+		if (indexes.isEmpty() || factories.isEmpty())
+		{
+			return;
+		}
+		long start = System.currentTimeMillis();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads),
+				MDBTasks.daemonThreads("mdb-index"));
+		try
+		{
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (final Entry<String, EntityManagerFactory> entry : factories.entrySet())
+			{
+				futures.add(executor.submit(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						build(entry.getKey(), entry.getValue());
+					}
+				}));
+			}
+			for (Future<?> future : futures)
+			{
+				future.get();
+			}
+		}
+		catch (Exception e)
+		{
+			Logger.error(e, "Error building the tenant indexes");
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+		for (TenantIndex index : indexes.values())
+		{
+			Logger.info("Built tenant index %s from %s databases in %s ms: %s values", index.name,
+					factories.size(), System.currentTimeMillis() - start, index.keys.size());
+		}
+	}
+
+	/**
+	 * Replaces the values of one database in the indexes by the values it holds.  The rows of a
+	 * shared database are counted for the tenant of their tenant column.
+	 * @param dbKey
+	 * @param factory
+	 */
+	public static void build(String dbKey, EntityManagerFactory factory)
+	{
+		if (!(factory instanceof HibernateEntityManagerFactory))
+		{
+			return;
+		}
+		SessionFactory sessionFactory = ((HibernateEntityManagerFactory) factory).getSessionFactory();
+		boolean shared = isShared(dbKey);
+		if (shared && tenantColumn == null)
+		{
+			Logger.error("Unable to index the shared database [%s] without %stenantColumn", dbKey, INDEX_CONF_PREFIX);
+			return;
+		}
+		for (TenantIndex index : indexes.values())
+		{
+			StatelessSession session = sessionFactory.openStatelessSession();
+			try
+			{
+				if (shared)
+				{
+					index.scanShared(dbKey, (SessionFactoryImplementor) sessionFactory, session);
+				}
+				else
+				{
+					index.replace(dbKey, index.scan(session));
+				}
+			}
+			catch (RuntimeException e)
+			{
+				Logger.error(e, "Unable to index %s.%s of database [%s]", index.entity, index.field, dbKey);
+			}
+			finally
+			{
+				session.close();
+			}
+		}
+	}
+
+	/**
+	 * @return The number of rows of a database holding each value.
+	 */
+	private Map<Object, int[]> scan(StatelessSession session)
+	{
+		ScrollableResults results = session.createQuery(
+				"select e." + field + " from " + entity + " e where e." + field + " is not null")
+				.setFetchSize(1000).scroll(ScrollMode.FORWARD_ONLY);
+		Map<Object, int[]> counts = new HashMap<Object, int[]>();
+		while (results.next())
+		{
+			int[] count = counts.get(results.get(0));
+			if (count == null)
+			{
+				counts.put(results.get(0), new int[] { 1 });
+			}
+			else
+			{
+				count[0]++;
+			}
+		}
+		results.close();
+		return counts;
+	}
+
+	/**
+	 * Replaces the values of the tenants of a shared database, counting the rows holding each value
+	 * by the tenant column of the field's table.
+	 */
+	private void scanShared(String dbKey, SessionFactoryImplementor factory, StatelessSession session)
+	{
+		Queryable persister = null;
+		for (Object metadata : factory.getAllClassMetadata().values())
+		{
+			Class<?> mapped = ((ClassMetadata) metadata).getMappedClass(EntityMode.POJO);
+			if (metadata instanceof Queryable && mapped != null
+					&& (entity.equals(mapped.getSimpleName()) || entity.equals(mapped.getName())))
+			{
+				persister = (Queryable) metadata;
+				break;
+			}
+		}
+		if (persister == null)
+		{
+			throw new IllegalStateException("Unknown entity " + entity);
+		}
+		String table = persister.getSubclassTableName(persister.getSubclassPropertyTableNumber(field));
+		String column = persister.toColumns(field)[0];
+		ScrollableResults results = session.createSQLQuery(
+				"select " + column + " v, " + tenantColumn + " t, count(*) n from " + table + " where " + column
+						+ " is not null group by " + column + ", " + tenantColumn)
+				.addScalar("v", persister.getPropertyType(field)).addScalar("t", Hibernate.STRING)
+				.addScalar("n", Hibernate.LONG).setFetchSize(1000).scroll(ScrollMode.FORWARD_ONLY);
+		Map<String, Map<Object, int[]>> byTenant = new HashMap<String, Map<Object, int[]>>();
+		while (results.next())
+		{
+			String tenant = (String) results.get(1);
+			if (tenant == null)
+			{
+				continue;
+			}
+			Map<Object, int[]> counts = byTenant.get(tenant);
+			if (counts == null)
+			{
+				counts = new HashMap<Object, int[]>();
+				byTenant.put(tenant, counts);
+			}
+			counts.put(results.get(0), new int[] { ((Long) results.get(2)).intValue() });
+		}
+		results.close();
+
+		//
+		//	The tenants no longer found in the database, e.g. moved away, lose the values it gave them.
+		//
+		Set<String> previous = scanned.put(dbKey, new HashSet<String>(byTenant.keySet()));
+		if (previous != null)
+		{
+			Map<Object, int[]> none = Collections.emptyMap();
+			for (String tenant : previous)
+			{
+				if (!byTenant.containsKey(tenant))
+				{
+					replace(tenant, none);
+				}
+			}
+		}
+		for (Entry<String, Map<Object, int[]>> entry : byTenant.entrySet())
+		{
+			replace(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * @return Whether a database holds the rows of several tenants: it is a shard, or tenants other
+	 * than its own are pinned to it.
+	 */
+	private static boolean isShared(String dbKey)
+	{
+		if (ShardRing.getShards().contains(dbKey))
+		{
+			return true;
+		}
+		for (Entry<String, String> override : ShardRing.getOverrides().entrySet())
+		{
+			if (override.getValue().equals(dbKey) && !override.getKey().equals(dbKey))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return The tenant of the current thread's changes to a database: the current tenant if
+	 * tenants share databases, or else the database itself.
+	 */
+	private static String tenant(String dbKey)
+	{
+		String tenant = ShardRing.getTenant();
+		return (tenant == null ? dbKey : tenant);
+	}
+
+	/**
+	 * Adds the values of entities inserted without the interceptor, by a bulk insert whose chunk
+	 * has committed.
+	 * @param dbKey
+	 * @param tenant The tenant the entities were inserted for, or null.
+	 * @param factory
+	 * @param entities
+	 */
+	static void inserted(String dbKey, String tenant, SessionFactory factory, List<?> entities)
+	{
+		if (indexes.isEmpty())
+		{
+			return;
+		}
+		String holder = (tenant == null ? dbKey : tenant);
+		for (Object entity : entities)
+		{
+			List<TenantIndex> list = forClass(entity.getClass());
+			ClassMetadata metadata = (list.isEmpty() ? null : factory.getClassMetadata(entity.getClass()));
+			if (metadata == null)
+			{
+				continue;
+			}
+			List<String> properties = Arrays.asList(metadata.getPropertyNames());
+			for (TenantIndex index : list)
+			{
+				Object value = (properties.contains(index.field)
+						? metadata.getPropertyValue(entity, index.field, EntityMode.POJO) : null);
+				if (value != null)
+				{
+					index.add(value, holder);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Records the change of an entity's indexed fields, applied when its transaction commits.
+	 * @param dbKey
+	 * @param entity
+	 * @param propertyNames
+	 * @param previousState The entity's state before the change, null if it is new.
+	 * @param currentState The entity's state after the change, null if it is deleted.
+	 */
+	static void record(String dbKey, Object entity, String[] propertyNames, Object[] previousState,
+			Object[] currentState)
+	{
+		if (indexes.isEmpty())
+		{
+			return;
+		}
+		for (TenantIndex index : forClass(entity.getClass()))
+		{
+			int i = Arrays.asList(propertyNames).indexOf(index.field);
+			if (i < 0)
+			{
+				continue;
+			}
+			Object removed = (previousState == null ? null : previousState[i]);
+			Object added = (currentState == null ? null : currentState[i]);
+			if (removed == null ? added == null : removed.equals(added))
+			{
+				continue;
+			}
+			List<Object[]> changes = pending.get();
+			if (changes == null)
+			{
+				changes = new ArrayList<Object[]>();
+				pending.set(changes);
+			}
+			changes.add(new Object[] { index, removed, added, tenant(dbKey) });
+		}
+	}
+
+	/**
+	 * Applies the changes recorded by the current thread's transaction if it committed, and
+	 * forgets them.
+	 * @param committed
+	 */
+	static void complete(boolean committed)
+	{
+		List<Object[]> changes = pending.get();
+		if (changes == null)
+		{
+			return;
+		}
+		pending.remove();
+		if (!committed)
+		{
+			return;
+		}
+		for (Object[] change : changes)
+		{
+			TenantIndex index = (TenantIndex) change[0];
+			String tenant = (String) change[3];
+			if (change[1] != null)
+			{
+				index.remove(change[1], tenant);
+			}
+			if (change[2] != null)
+			{
+				index.add(change[2], tenant);
+			}
+		}
+	}
+
+	/**
+	 * Finds the indexes of an entity class, declared under its name or the name of a superclass.
+	 */
+	private static List<TenantIndex> forClass(Class<?> clazz)
+	{
+		List<TenantIndex> list = byClass.get(clazz);
+		if (list == null)
+		{
+			list = new ArrayList<TenantIndex>();
+			for (TenantIndex index : indexes.values())
+			{
+				for (Class<?> c = clazz; c != null; c = c.getSuperclass())
+				{
+					if (index.entity.equals(c.getSimpleName()) || index.entity.equals(c.getName()))
+					{
+						list.add(index);
+						break;
+					}
+				}
+			}
+			byClass.put(clazz, list);
+		}
+		return list;
+	}
+
+	void add(Object value, String tenant)
+	{
+		update(value, tenant, 1, false);
+	}
+
+	void remove(Object value, String tenant)
+	{
+		update(value, tenant, -1, false);
+	}
+
+	/**
+	 * Replaces the counts of a tenant, leaving the other tenants alone.
+	 * @param tenant
+	 * @param counts The number of rows of the tenant holding each value.
+	 */
+	void replace(String tenant, Map<Object, int[]> counts)
+	{
+		for (Entry<Object, Object> entry : keys.entrySet())
+		{
+			if (count(entry.getValue(), tenant) > 0 && !counts.containsKey(entry.getKey()))
+			{
+				update(entry.getKey(), tenant, 0, true);
+			}
+		}
+		for (Entry<Object, int[]> entry : counts.entrySet())
+		{
+			update(entry.getKey(), tenant, entry.getValue()[0], true);
+		}
+	}
+
+	/**
+	 * Changes the number of rows of a tenant holding a value.
+	 * @param value
+	 * @param tenant
+	 * @param count The count to add, or the new count if absolute.
+	 * @param absolute
+	 */
+	private void update(Object value, String tenant, int count, boolean absolute)
+	{
+		while (true)
+		{
+			Object found = keys.get(value);
+			int current = count(found, tenant);
+			int next = Math.max(0, absolute ? count : current + count);
+			if (next == current)
+			{
+				return;
+			}
+			Object replacement = with(found, tenant, next);
+			if (found == null)
+			{
+				if (keys.putIfAbsent(value, replacement) == null)
+				{
+					return;
+				}
+			}
+			else if (replacement == null ? keys.remove(value, found) : keys.replace(value, found, replacement))
+			{
+				return;
+			}
+		}
+	}
+
+	private static int count(Object found, String tenant)
+	{
+		if (found instanceof Holders)
+		{
+			Holders holders = (Holders) found;
+			int i = Arrays.asList(holders.keys).indexOf(tenant);
+			return (i < 0 ? 0 : holders.counts[i]);
+		}
+		return (tenant.equals(found) ? 1 : 0);
+	}
+
+	/**
+	 * @return The holders of a value once the count of a tenant is changed, or null if there
+	 * are none left.
+	 */
+	private static Object with(Object found, String tenant, int count)
+	{
+		List<String> keys = new ArrayList<String>();
+		List<Integer> counts = new ArrayList<Integer>();
+		if (found instanceof Holders)
+		{
+			Holders holders = (Holders) found;
+			for (int i = 0; i < holders.keys.length; i++)
+			{
+				keys.add(holders.keys[i]);
+				counts.add(holders.counts[i]);
+			}
+		}
+		else if (found != null)
+		{
+			keys.add((String) found);
+			counts.add(1);
+		}
+		int i = keys.indexOf(tenant);
+		if (i < 0)
+		{
+			keys.add(tenant);
+			counts.add(count);
+		}
+		else
+		{
+			counts.set(i, count);
+		}
+		if (count == 0)
+		{
+			i = keys.indexOf(tenant);
+			keys.remove(i);
+			counts.remove(i);
+		}
+		if (keys.isEmpty())
+		{
+			return null;
+		}
+		if (keys.size() == 1 && counts.get(0) == 1)
+		{
+			return keys.get(0);
+		}
+		int[] array = new int[counts.size()];
+		for (i = 0; i < array.length; i++)
+		{
+			array[i] = counts.get(i);
+		}
+		return new Holders(keys.toArray(NONE), array);
+	}
+
+	/**
+	 * @return The number of values indexed.
+	 */
+	public int size()
+	{
+		return keys.size();
+	}
+
+	@Override
+	public String toString()
+	{
+		return name + " (" + entity + "." + field + "): " + keys.size() + " values";
+	}
+
+	/**
+	 * The tenants holding a value, with the number of rows holding it for each tenant.
+	 */
+	private static class Holders
+	{
+		final String[] keys;
+		final int[] counts;
+
+		Holders(String[] keys, int[] counts)
+		{
+			this.keys = keys;
+			this.counts = counts;
+		}
+	}
+}
@@ -0,0 +1,21 @@
+package play.db.jpa;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ *	Overrides the database key extractor for a controller class or action method.  The extractor
+ *	class must have a public no-argument constructor; a single instance is shared by all requests.
+ * @author dcardon
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.TYPE, ElementType.METHOD})
+public @interface TenantKey
+{
+	/**
+	 * The extractor used to find the database key for the annotated actions.
+	 */
+	Class<? extends RequestDBKeyExtractor> value();
+}
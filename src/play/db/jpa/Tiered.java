@@ -0,0 +1,29 @@
+package play.db.jpa;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ *	Marks an entity type whose old instances are moved to the archive database of their database.
+ *	A background mover copies the instances older than the given age to the archive in batches,
+ *	then deletes them from the primary database.
+ * @see play.db.TenantTiering
+ * @see MJPATiered
+ * @author dcardon
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface Tiered
+{
+	/**
+	 * The date property whose value gives the age of an instance.
+	 */
+	String property();
+
+	/**
+	 * The age, in days, past which instances are moved to the archive.
+	 */
+	int days();
+}
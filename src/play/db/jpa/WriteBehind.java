@@ -0,0 +1,20 @@
+package play.db.jpa;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ *	Marks an append-only entity type whose new instances are written behind the request.  Instances
+ *	persisted in a transaction are queued for their database and inserted later, in batches, by a
+ *	background writer.  They never enter the persistence context, so they cannot be read back or
+ *	updated within the transaction.
+ * @see WriteBehindQueue
+ * @author dcardon
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface WriteBehind
+{
+}
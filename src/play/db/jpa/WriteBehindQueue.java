@@ -0,0 +1,652 @@
+package play.db.jpa;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.EntityManager;
+
+import org.hibernate.HibernateException;
+import org.hibernate.ejb.event.EJB3PersistEventListener;
+import org.hibernate.event.PersistEvent;
+
+import play.Logger;
+import play.db.MDBPlugin;
+import play.db.MDBTasks;
+import play.db.ShardRing;
+import play.db.TenantHealth;
+import play.db.TenantUnavailableException;
+
+/**
+ * The write-behind queue of a database.  New instances of {@link WriteBehind} entities persisted in
+ * a transaction are held by a persist listener instead of being inserted.  Depending on the
+ * durability mode, they are queued when the transaction commits (and dropped if it rolls back) or
+ * as soon as they are persisted.  A background writer inserts the queued entities in batches
+ * through {@link MJPABulk}.
+ * <p>
+ * Each queue holds at most capacity entities.  When it is full, a transaction waits briefly for
+ * room and fails (BLOCK), fails at once (REJECT) or inserts its entities itself (INLINE).  Queued
+ * entities live in memory only: they are written when the application stops, but lost if the
+ * process dies.
+ *
+ * @author dcardon
+ */
+public class WriteBehindQueue
+{
+	public static final String WRITEBEHIND_CONF_PREFIX = MDBPlugin.MDB_CONF_PREFIX + "writebehind.";
+
+	/**
+	 * When held entities are queued.
+	 */
+	public enum Durability
+	{
+		/**
+		 * When the transaction commits; the entities of rolled back transactions are dropped.
+		 */
+		COMMIT,
+
+		/**
+		 * As soon as they are persisted, whatever the outcome of the transaction.
+		 */
+		IMMEDIATE
+	}
+
+	/**
+	 * What a transaction does when the queue of its database is full.
+	 */
+	public enum Overflow
+	{
+		BLOCK, REJECT, INLINE
+	}
+
+	public static volatile Durability durability = Durability.COMMIT;
+
+	public static volatile Overflow overflow = Overflow.BLOCK;
+
+	/**
+	 * The maximum number of entities queued for one database.
+	 */
+	public static volatile int capacity = 10000;
+
+	/**
+	 * The number of entities inserted in each transaction of the writer.
+	 */
+	public static volatile int batchSize = 500;
+
+	/**
+	 * How long a BLOCK transaction waits for room in a full queue, in milliseconds.
+	 */
+	public static volatile long maxWaitMillis = 100;
+
+	private static final ConcurrentMap<String, WriteBehindQueue> queues = new ConcurrentHashMap<String, WriteBehindQueue>();
+
+	private static final ConcurrentMap<Class<?>, Boolean> types = new ConcurrentHashMap<Class<?>, Boolean>();
+
+	/**
+	 * The entities held by the current thread's transaction, before it commits.
+	 */
+	private static final ThreadLocal<Held> held = new ThreadLocal<Held>()
+	{
+		@Override
+		protected Held initialValue()
+		{
+			return new Held();
+		}
+	};
+
+	private static ScheduledExecutorService writer;
+
+	public final String key;
+	private final Semaphore room;
+	private final ConcurrentLinkedQueue<Object> entities = new ConcurrentLinkedQueue<Object>();
+
+	/**
+	 * The entities queued and not written yet, so that an entity persisted twice is queued once.
+	 */
+	private final Set<Object> pending = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>()));
+
+	/**
+	 * The tenant of each queued entity, when tenants share databases.
+	 */
+	private final Map<Object, String> tenants = Collections.synchronizedMap(new IdentityHashMap<Object, String>());
+	private final AtomicInteger depth = new AtomicInteger();
+	private final AtomicInteger peak = new AtomicInteger();
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong inlined = new AtomicLong();
+
+	WriteBehindQueue(String key, int capacity)
+	{
+		this.key = key;
+		this.room = new Semaphore(capacity);
+	}
+
+	/**
+	 * Reads the mdb.writebehind.* settings and starts the writer.  Queues already created keep
+	 * their capacity.
+	 * @param configuration
+	 */
+	public static synchronized void configure(Properties configuration)
+	{
+		durability = Durability.valueOf(configuration.getProperty(WRITEBEHIND_CONF_PREFIX + "durability", "commit").toUpperCase());
+		overflow = Overflow.valueOf(configuration.getProperty(WRITEBEHIND_CONF_PREFIX + "overflow", "block").toUpperCase());
+		capacity = Integer.parseInt(configuration.getProperty(WRITEBEHIND_CONF_PREFIX + "capacity", "10000"));
+		batchSize = Integer.parseInt(configuration.getProperty(WRITEBEHIND_CONF_PREFIX + "batchSize", "500"));
+		maxWaitMillis = Long.parseLong(configuration.getProperty(WRITEBEHIND_CONF_PREFIX + "maxWait", "100"));
+		long interval = Long.parseLong(configuration.getProperty(WRITEBEHIND_CONF_PREFIX + "interval", "200"));
+		types.clear();
+		if (writer != null)
+		{
+			writer.shutdownNow();
+		}
+		//
+		//	The writer has its own thread, so that slow inserts do not delay the other tasks.
+		//
+		writer = Executors.newSingleThreadScheduledExecutor(MDBTasks.daemonThreads("mdb-writebehind"));
+		writer.scheduleWithFixedDelay(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					writeAll();
+				}
+				catch (Throwable e)
+				{
+					Logger.error(e, "Error in background task write-behind");
+				}
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops the writer, then writes the entities left in the queues.
+	 */
+	public static synchronized void shutdown()
+	{
+		if (writer != null)
+		{
+			writer.shutdownNow();
+			writer = null;
+		}
+		writeAll();
+	}
+
+	/**
+	 * Finds the queue of a database, creating it on first use.
+	 * @param key
+	 * @return
+	 */
+	public static WriteBehindQueue get(String key)
+	{
+		WriteBehindQueue queue = queues.get(key);
+		if (queue == null)
+		{
+			queue = new WriteBehindQueue(key, capacity);
+			WriteBehindQueue existing = queues.putIfAbsent(key, queue);
+			if (existing != null)
+			{
+				queue = existing;
+			}
+		}
+		return queue;
+	}
+
+	/**
+	 * @return The queues created so far, by database key.
+	 */
+	public static Map<String, WriteBehindQueue> getAll()
+	{
+		return queues;
+	}
+
+	/**
+	 * @param type
+	 * @return Whether the entity type is written behind.
+	 */
+	public static boolean isWriteBehind(Class<?> type)
+	{
+		Boolean result = types.get(type);
+		if (result == null)
+		{
+			result = Boolean.valueOf(type.isAnnotationPresent(WriteBehind.class));
+			types.put(type, result);
+		}
+		return result.booleanValue();
+	}
+
+	/**
+	 * @param classes
+	 * @return Whether any of the entity classes is written behind.
+	 */
+	@SuppressWarnings("unchecked")
+	static boolean hasWriteBehind(List<Class> classes)
+	{
+		for (Class clazz : classes)
+		{
+			if (isWriteBehind(clazz))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Holds an entity being persisted, if it is written behind.
+	 * @param entity
+	 * @return False if the entity must be persisted normally.
+	 */
+	static boolean hold(Object entity)
+	{
+		Held current = held.get();
+		String key = MJPAPlugin.getCurrentKey();
+		if (key == null || current.inline || !isWriteBehind(entity.getClass()))
+		{
+			return false;
+		}
+		if (durability == Durability.IMMEDIATE)
+		{
+			WriteBehindQueue queue = get(key);
+			if (queue.pending.contains(entity))
+			{
+				return true;
+			}
+			if (!queue.reserve(1))
+			{
+				queue.inlined.incrementAndGet();
+				return false;
+			}
+			queue.add(entity);
+			return true;
+		}
+		current.entities.add(entity);
+		return true;
+	}
+
+	/**
+	 * Reserves room for the entities held by the current thread's transaction, which is about to
+	 * commit.  If there is none and the overflow mode is INLINE, the entities are persisted in the
+	 * transaction instead.
+	 * @param manager The entity manager of the transaction.
+	 * @throws TenantUnavailableException if there is no room for the entities.
+	 */
+	static void beforeCommit(EntityManager manager)
+	{
+		Held current = held.get();
+		String key = MJPAPlugin.getCurrentKey();
+		if (current.entities.isEmpty() || key == null)
+		{
+			return;
+		}
+		WriteBehindQueue queue = get(key);
+		if (queue.reserve(current.entities.size()))
+		{
+			current.reserved = queue;
+			return;
+		}
+		queue.inlined.addAndGet(current.entities.size());
+		current.inline = true;
+		try
+		{
+			for (Object entity : current.entities)
+			{
+				manager.persist(entity);
+			}
+		}
+		finally
+		{
+			current.inline = false;
+			current.entities.clear();
+		}
+	}
+
+	/**
+	 * Queues the entities held by the current thread's transaction, which has committed.
+	 */
+	static void afterCommit()
+	{
+		Held current = held.get();
+		if (current.reserved != null)
+		{
+			for (Object entity : current.entities)
+			{
+				current.reserved.add(entity);
+			}
+			current.reserved = null;
+		}
+		current.entities.clear();
+	}
+
+	/**
+	 * Drops the entities held by the current thread's transaction, if it did not commit.
+	 */
+	static void clear()
+	{
+		Held current = held.get();
+		if (current.reserved != null)
+		{
+			current.reserved.room.release(current.entities.size());
+			current.reserved = null;
+		}
+		current.entities.clear();
+	}
+
+	/**
+	 * Reserves room for entities in the queue, as the overflow mode allows.
+	 * @param count
+	 * @return False if there is no room and the overflow mode is INLINE.
+	 * @throws TenantUnavailableException if there is no room and the overflow mode is BLOCK or REJECT.
+	 */
+	private boolean reserve(int count)
+	{
+		if (room.tryAcquire(count))
+		{
+			return true;
+		}
+		switch (overflow)
+		{
+			case INLINE:
+				return false;
+			case BLOCK:
+				try
+				{
+					if (room.tryAcquire(count, maxWaitMillis, TimeUnit.MILLISECONDS))
+					{
+						return true;
+					}
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+				break;
+			default:
+				break;
+		}
+		rejected.addAndGet(count);
+		throw new TenantUnavailableException("Write-behind queue of database [" + key + "] is full ("
+				+ depth.get() + " entities)");
+	}
+
+	/**
+	 * Queues an entity for which room was reserved, unless it is already queued.
+	 * @param entity
+	 */
+	private void add(Object entity)
+	{
+		if (!pending.add(entity))
+		{
+			room.release(1);
+			return;
+		}
+		String tenant = ShardRing.getTenant();
+		if (tenant != null)
+		{
+			tenants.put(entity, tenant);
+		}
+		requeue(entity);
+	}
+
+	private void requeue(Object entity)
+	{
+		entities.add(entity);
+		int now = depth.incrementAndGet();
+		int max = peak.get();
+		while (now > max && !peak.compareAndSet(max, now))
+		{
+			max = peak.get();
+		}
+	}
+
+	/**
+	 * Writes the entities queued for every database.
+	 */
+	static void writeAll()
+	{
+		for (WriteBehindQueue queue : queues.values())
+		{
+			queue.write();
+		}
+	}
+
+	/**
+	 * Writes the queued entities in batches, until the queue is empty.  Batches that cannot be
+	 * written because the database is unavailable are queued again; the entities of batches that
+	 * fail are written one at a time, and only those that fail alone are dropped.
+	 */
+	void write()
+	{
+		while (depth.get() > 0)
+		{
+			if (TenantHealth.get(key).getState() == TenantHealth.State.OPEN)
+			{
+				return;
+			}
+			List<Object> batch = new ArrayList<Object>(Math.min(batchSize, depth.get()));
+			Object entity;
+			while (batch.size() < batchSize && (entity = entities.poll()) != null)
+			{
+				batch.add(entity);
+			}
+			if (batch.isEmpty())
+			{
+				return;
+			}
+			depth.addAndGet(-batch.size());
+
+			//
+			//	The entities of tenants sharing the database are written for their tenant, whose
+			//	index values they are.
+			//
+			List<List<Object>> groups = new ArrayList<List<Object>>(byTenant(batch).values());
+			for (int i = 0; i < groups.size(); i++)
+			{
+				if (!write(groups.get(i)))
+				{
+					for (List<Object> group : groups.subList(i + 1, groups.size()))
+					{
+						for (Object queued : group)
+						{
+							requeue(queued);
+						}
+					}
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes a batch of entities of the same tenant.  The entities of a batch that fails are
+	 * written one at a time, and only those that fail alone are dropped.
+	 * @param batch
+	 * @return False if the database became unavailable, the rest of the batch being queued again.
+	 */
+	private boolean write(List<Object> batch)
+	{
+		String tenant = tenants.get(batch.get(0));
+		try
+		{
+			MJPABulk.insert(key, tenant, batch.iterator(), batch.size());
+			done(batch.size(), batch);
+			return true;
+		}
+		catch (TenantUnavailableException e)
+		{
+			postpone(batch, 0, e);
+			return false;
+		}
+		catch (RuntimeException e)
+		{
+			Logger.warn("Write-behind batch of %s entities to [%s] failed, writing them one at a time: %s",
+					batch.size(), key, e.getMessage());
+			return writeEach(tenant, batch);
+		}
+	}
+
+	/**
+	 * @return The entities of a batch, by tenant.
+	 */
+	private Map<String, List<Object>> byTenant(List<Object> batch)
+	{
+		Map<String, List<Object>> groups = new LinkedHashMap<String, List<Object>>();
+		for (Object entity : batch)
+		{
+			String tenant = tenants.get(entity);
+			List<Object> group = groups.get(tenant);
+			if (group == null)
+			{
+				group = new ArrayList<Object>();
+				groups.put(tenant, group);
+			}
+			group.add(entity);
+		}
+		return groups;
+	}
+
+	/**
+	 * Writes the entities of a failed batch one at a time, each in its own transaction.
+	 * @param tenant
+	 * @param batch
+	 * @return False if the database became unavailable, the rest of the batch being queued again.
+	 */
+	private boolean writeEach(String tenant, List<Object> batch)
+	{
+		for (int i = 0; i < batch.size(); i++)
+		{
+			List<Object> single = batch.subList(i, i + 1);
+			try
+			{
+				MJPABulk.insert(key, tenant, single.iterator(), 1);
+				done(1, single);
+			}
+			catch (TenantUnavailableException e)
+			{
+				postpone(batch, i, e);
+				return false;
+			}
+			catch (RuntimeException e)
+			{
+				failed.incrementAndGet();
+				room.release(1);
+				pending.remove(batch.get(i));
+				tenants.remove(batch.get(i));
+				Logger.error(e, "Write-behind to [%s] dropped entity %s", key, batch.get(i));
+			}
+		}
+		return true;
+	}
+
+	private void done(int count, List<Object> batch)
+	{
+		written.addAndGet(count);
+		room.release(count);
+		for (Object entity : batch)
+		{
+			pending.remove(entity);
+			tenants.remove(entity);
+		}
+	}
+
+	/**
+	 * Queues the rest of a batch again, from the given index, while the database is unavailable.
+	 */
+	private void postpone(List<Object> batch, int from, TenantUnavailableException e)
+	{
+		for (Object queued : batch.subList(from, batch.size()))
+		{
+			requeue(queued);
+		}
+		Logger.debug("Write-behind to [%s] postponed: %s", key, e.getMessage());
+	}
+
+	/**
+	 * @return The number of entities waiting to be written.
+	 */
+	public int getDepth()
+	{
+		return depth.get();
+	}
+
+	public int getPeak()
+	{
+		return peak.get();
+	}
+
+	public long getWritten()
+	{
+		return written.get();
+	}
+
+	public long getFailed()
+	{
+		return failed.get();
+	}
+
+	public long getRejected()
+	{
+		return rejected.get();
+	}
+
+	/**
+	 * @return The number of entities inserted by their own transaction because the queue was full.
+	 */
+	public long getInlined()
+	{
+		return inlined.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "depth " + getDepth() + ", peak " + getPeak() + ", written " + getWritten() + ", failed "
+				+ getFailed() + ", rejected " + getRejected() + ", inlined " + getInlined();
+	}
+
+	/**
+	 * The entities held by a thread's transaction.
+	 */
+	private static class Held
+	{
+		final Set<Object> entities = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+		WriteBehindQueue reserved;
+		boolean inline;
+	}
+
+	/**
+	 * The persist listener holding new write-behind entities instead of persisting them.
+	 */
+	static class PersistListener extends EJB3PersistEventListener
+	{
+		private static final long serialVersionUID = 1L;
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public void onPersist(PersistEvent event, Map createCache) throws HibernateException
+		{
+			Object entity = event.getObject();
+			if (entity != null && !event.getSession().contains(entity) && hold(entity))
+			{
+				return;
+			}
+			super.onPersist(event, createCache);
+		}
+	}
+}